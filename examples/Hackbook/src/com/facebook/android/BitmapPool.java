@@ -0,0 +1,119 @@
+package com.facebook.topface;
+
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/*
+ * Bitmaps evicted from an ImageCache, kept for reuse as the inBitmap of the
+ * next decode of the same dimensions and config.
+ *
+ * BitmapFactory.Options.inBitmap and inMutable exist from Honeycomb on, but
+ * this project targets API level 8, so they are set through reflection. On
+ * older devices the pool stays empty.
+ *
+ * Reused bitmaps are overwritten: only put bitmaps that are no longer
+ * displayed.
+ */
+public class BitmapPool {
+
+    private static final Field IN_BITMAP;
+    private static final Field IN_MUTABLE;
+
+    static {
+        Field inBitmap = null;
+        Field inMutable = null;
+        if (Build.VERSION.SDK_INT >= 11) {
+            try {
+                inBitmap = BitmapFactory.Options.class.getField("inBitmap");
+                inMutable = BitmapFactory.Options.class.getField("inMutable");
+            } catch (NoSuchFieldException e) {
+                inBitmap = null;
+                inMutable = null;
+            }
+        }
+        IN_BITMAP = inBitmap;
+        IN_MUTABLE = inMutable;
+    }
+
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+    private final int mMaxBytes;
+    private int mBytes = 0;
+
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public static boolean isSupported() {
+        return IN_BITMAP != null;
+    }
+
+    /*
+     * Offer a bitmap for reuse. Bitmaps that cannot be reused are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (!isSupported() || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        int size = ImageCache.sizeOf(bitmap);
+        if (size > mMaxBytes) {
+            return;
+        }
+        mBitmaps.addLast(bitmap);
+        mBytes += size;
+        while (mBytes > mMaxBytes) {
+            mBytes -= ImageCache.sizeOf(mBitmaps.removeFirst());
+        }
+    }
+
+    /*
+     * Take a bitmap of exactly the given dimensions and config out of the
+     * pool, or return null. Exact matches are what inBitmap requires before
+     * KitKat.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Iterator<Bitmap> it = mBitmaps.iterator();
+        while (it.hasNext()) {
+            Bitmap bitmap = it.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                    && bitmap.getConfig() == config) {
+                it.remove();
+                mBytes -= ImageCache.sizeOf(bitmap);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void clear() {
+        mBitmaps.clear();
+        mBytes = 0;
+    }
+
+    /*
+     * Ask the decoder for a mutable bitmap, so that it can be pooled later.
+     */
+    static void setMutable(BitmapFactory.Options options) {
+        if (IN_MUTABLE != null) {
+            try {
+                IN_MUTABLE.setBoolean(options, true);
+            } catch (IllegalAccessException e) {
+                // Public field: cannot happen.
+            }
+        }
+    }
+
+    static void setInBitmap(BitmapFactory.Options options, Bitmap bitmap) {
+        if (IN_BITMAP != null) {
+            try {
+                IN_BITMAP.set(options, bitmap);
+            } catch (IllegalAccessException e) {
+                // Public field: cannot happen.
+            }
+        }
+    }
+}
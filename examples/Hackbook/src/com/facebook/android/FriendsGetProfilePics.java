@@ -1,109 +1,502 @@
 package com.facebook.topface;
 
-import java.util.Hashtable;
-import java.util.Stack;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import android.content.Context;
 import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.AsyncTask;
-import android.widget.BaseAdapter;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseIntArray;
+import android.widget.ImageView;
 
 /*
- * Fetch friends profile pictures request via AsyncTask
+ * Fetch friends profile pictures via AsyncTask.
+ *
+ * Requests are bound to the ImageView they are displayed in. Rebinding a
+ * view (when the list recycles it for another row) cancels the request it
+ * was bound to. Pending requests for views on screen are started before
+ * other requests, the most recently bound first, and at most a few
+ * requests run at a time depending on the type of network, on an executor
+ * sized to that limit. Pictures can
+ * also be prefetched for rows about to scroll into view; prefetches come
+ * after requests for rows on screen.
+ *
+ * Pictures are displayed through the ImageCache's retain()/release(), so
+ * that a picture evicted from the cache is only reused by the decoder once
+ * no view shows it.
+ *
+ * All methods must be called from the UI thread.
  */
 public class FriendsGetProfilePics {
 
-    Hashtable<String, Bitmap> friendsImages;
-    Hashtable<String, String> positionRequested;
-    BaseAdapter listener;
-    int runningCount = 0;
-    Stack<ItemPair> queue;
+    private static final String TAG = "Hackbook-pics";
+
+    /*
+     * Request priorities: requests for rows on screen outrank the others.
+     */
+    final static int PRIORITY_VISIBLE = 0;
+    final static int PRIORITY_OFFSCREEN = 1;
+
+    /*
+     * Max requests running at any given time on networks without a
+     * specific limit.
+     */
+    final static int DEFAULT_MAX_RUNNING = 4;
+
+    /*
+     * How long the active network type is trusted before it is looked up
+     * again.
+     */
+    final static long NETWORK_CHECK_INTERVAL = 5 * 1000;
+
+    /*
+     * How long idle download threads are kept, in seconds.
+     */
+    final static long KEEP_ALIVE_SECONDS = 30;
+
+    /*
+     * AsyncTask.execute() runs tasks one at a time from Honeycomb on, so the
+     * tasks are run on our own executor through executeOnExecutor(), which
+     * this project (API level 8) only reaches through reflection. Before
+     * Honeycomb execute() already runs tasks in parallel.
+     */
+    private static final Method EXECUTE_ON_EXECUTOR;
+
+    static {
+        Method executeOnExecutor = null;
+        if (Build.VERSION.SDK_INT >= 11) {
+            try {
+                executeOnExecutor = AsyncTask.class.getMethod("executeOnExecutor",
+                        Executor.class, Object[].class);
+            } catch (NoSuchMethodException e) {
+                executeOnExecutor = null;
+            }
+        }
+        EXECUTE_ON_EXECUTOR = executeOnExecutor;
+    }
+
+    /*
+     * 10MB of downloaded pictures kept on disk.
+     */
+    final static long MAX_DISK_CACHE_BYTES = 10 * 1024 * 1024;
 
     /*
-     * 15 max async tasks at any given time.
+     * 1MB of evicted pictures kept for reuse by the decoder.
      */
-    final static int MAX_ALLOWED_TASKS = 15;
+    final static int MAX_POOL_BYTES = 1024 * 1024;
+
+    ImageCache friendsImages;
+    BitmapPool bitmapPool;
+    ConnectivityManager connectivity;
+    // runs the requests, as many at a time as the network allows
+    ThreadPoolExecutor executor;
+
+    // cache key -> pending (queued or running) request
+    HashMap<String, Request> pending;
+    // view -> request it is bound to
+    HashMap<ImageView, Request> bound;
+    // view -> picture it displays
+    HashMap<ImageView, Bitmap> shown;
+    PriorityQueue<Request> queue;
+    int runningCount = 0;
+    long sequence = 0;
+
+    boolean paused = false;
+
+    // Keys prefetched into the memory cache and not displayed yet.
+    HashSet<String> prefetched;
+    int bindCount = 0;
+    int hitCount = 0;
+    int prefetchCount = 0;
+    int prefetchHitCount = 0;
+    int prefetchLateCount = 0;
 
-    public FriendsGetProfilePics() {
-        friendsImages = new Hashtable<String, Bitmap>();
-        positionRequested = new Hashtable<String, String>();
-        queue = new Stack<ItemPair>();
+    SparseIntArray maxRunning;
+    int currentMaxRunning = DEFAULT_MAX_RUNNING;
+    long networkCheckedAt = 0;
+
+    public FriendsGetProfilePics(Context context) {
+        bitmapPool = new BitmapPool(MAX_POOL_BYTES);
+        friendsImages = new ImageCache(context.getApplicationContext(),
+                ImageCache.defaultMemoryBytes(), MAX_DISK_CACHE_BYTES, bitmapPool);
+        connectivity = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        executor = new ThreadPoolExecutor(DEFAULT_MAX_RUNNING, DEFAULT_MAX_RUNNING,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        if (Build.VERSION.SDK_INT >= 9) {
+            executor.allowCoreThreadTimeOut(true);
+        }
+        pending = new HashMap<String, Request>();
+        bound = new HashMap<ImageView, Request>();
+        shown = new HashMap<ImageView, Bitmap>();
+        prefetched = new HashSet<String>();
+        queue = new PriorityQueue<Request>(16, new Comparator<Request>() {
+            @Override
+            public int compare(Request lhs, Request rhs) {
+                if (lhs.priority != rhs.priority) {
+                    return lhs.priority < rhs.priority ? -1 : 1;
+                }
+                // Most recent first.
+                return lhs.sequence > rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+            }
+        });
+        maxRunning = new SparseIntArray();
+        maxRunning.put(ConnectivityManager.TYPE_WIFI, 6);
+        maxRunning.put(ConnectivityManager.TYPE_MOBILE, 3);
     }
 
     /*
-     * Inform the listener when the image has been downloaded. listener is
-     * FriendsList here.
+     * Set the max number of requests running at the same time while the
+     * given type of network (ConnectivityManager.TYPE_*) is active.
      */
-    public void setListener(BaseAdapter listener) {
-        this.listener = listener;
-        reset();
+    public void setMaxRunning(int networkType, int max) {
+        maxRunning.put(networkType, Math.max(1, max));
+        networkCheckedAt = 0;
     }
 
+    /*
+     * Drop all pending requests and detach and clear all views, e.g. when
+     * the list is recreated. Running requests still complete into the cache.
+     */
     public void reset() {
-        positionRequested.clear();
-        runningCount = 0;
+        for (Request request : pending.values()) {
+            request.cancelled = true;
+            request.view = null;
+        }
+        pending.clear();
+        bound.clear();
+        for (ImageView view : shown.keySet()) {
+            // the view must not draw the bitmap once it is released
+            view.setImageDrawable(null);
+            friendsImages.release(shown.get(view));
+        }
+        shown.clear();
         queue.clear();
+        prefetched.clear();
     }
 
     /*
-     * If the profile picture has already been downloaded and cached, return it
-     * else execute a new async task to fetch it - if total async tasks >15,
-     * queue the request.
+     * Stop starting requests, e.g. during a fling, or start again.
      */
-    public Bitmap getImage(String uid, String url) {
-        Bitmap image = friendsImages.get(uid);
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        if (!paused) {
+            startNext();
+        }
+    }
+
+    /*
+     * Display the profile picture of the given size (in pixels) in the view.
+     * If it is in the memory cache it is set right away, else the view is
+     * cleared and a request is queued to load it from the disk cache or the
+     * network. Any request the view was previously bound to is cancelled.
+     */
+    public void loadImage(ImageView view, String uid, String url, int size) {
+        String key = ImageCache.key(uid, size);
+        Request previous = bound.remove(view);
+        if (previous != null && !previous.key.equals(key)) {
+            previous.view = null;
+            cancel(previous);
+        }
+
+        bindCount++;
+        Bitmap image = friendsImages.getBitmap(key);
         if (image != null) {
-            return image;
-        }
-        if (!positionRequested.containsKey(uid)) {
-            positionRequested.put(uid, "");
-            if (runningCount >= MAX_ALLOWED_TASKS) {
-                queue.push(new ItemPair(uid, url));
-            } else {
-                runningCount++;
-                new GetProfilePicAsyncTask().execute(uid, url);
+            hitCount++;
+            if (prefetched.remove(key)) {
+                prefetchHitCount++;
+            }
+            show(view, image);
+            return;
+        }
+        show(view, null);
+
+        Request request = pending.get(key);
+        if (request != null && request.prefetch && request.view == null) {
+            prefetchLateCount++;
+        }
+        if (request == null || request.cancelled) {
+            // A cancelled request may skip the download: start over.
+            request = new Request(key, uid, url, size);
+            pending.put(key, request);
+        } else if (request.view != null && request.view != view) {
+            bound.remove(request.view);
+        }
+        request.view = view;
+        bound.put(view, request);
+        enqueue(request, PRIORITY_VISIBLE);
+        startNext();
+    }
+
+    /*
+     * Clear the view, e.g. for a row without a picture, and cancel any
+     * request it was bound to.
+     */
+    public void clearImage(ImageView view) {
+        Request previous = bound.remove(view);
+        if (previous != null) {
+            previous.view = null;
+            cancel(previous);
+        }
+        show(view, null);
+    }
+
+    /*
+     * Load the profile picture of the given size into the memory cache ahead
+     * of its row being displayed. Does nothing if it is already cached or
+     * requested.
+     */
+    public void prefetch(String uid, String url, int size) {
+        String key = ImageCache.key(uid, size);
+        Request request = pending.get(key);
+        if ((request != null && !request.cancelled) || friendsImages.getBitmap(key) != null) {
+            return;
+        }
+        request = new Request(key, uid, url, size);
+        request.prefetch = true;
+        pending.put(key, request);
+        enqueue(request, PRIORITY_OFFSCREEN);
+        prefetchCount++;
+        startNext();
+    }
+
+    /*
+     * Drop the prefetches that have not started yet, e.g. when the scroll
+     * direction changes.
+     */
+    public void cancelPrefetches() {
+        Iterator<Request> it = queue.iterator();
+        while (it.hasNext()) {
+            Request request = it.next();
+            if (request.view == null) {
+                it.remove();
+                pending.remove(request.key);
+            }
+        }
+    }
+
+    /*
+     * Cache hit rate of displayed pictures and how much prefetching
+     * contributed to it.
+     */
+    public String getStats() {
+        return "binds=" + bindCount
+                + " hits=" + hitCount
+                + " hitRate=" + (bindCount == 0 ? 0 : hitCount * 100 / bindCount) + "%"
+                + " prefetches=" + prefetchCount
+                + " prefetchHits=" + prefetchHitCount
+                + " prefetchLate=" + prefetchLateCount;
+    }
+
+    /*
+     * Queue, or re-queue with a new priority, a request that is not running.
+     */
+    void enqueue(Request request, int priority) {
+        if (request.task != null) {
+            return;
+        }
+        queue.remove(request);
+        request.priority = priority;
+        request.sequence = sequence++;
+        queue.add(request);
+    }
+
+    /*
+     * Forget a request that no view wants anymore. A running request is
+     * left to finish into the cache unless it has not reached the network
+     * yet.
+     */
+    void cancel(Request request) {
+        if (request.task == null) {
+            queue.remove(request);
+            pending.remove(request.key);
+        } else {
+            request.cancelled = true;
+        }
+    }
+
+    void startNext() {
+        if (paused) {
+            return;
+        }
+        int max = getMaxRunning();
+        setExecutorSize(max);
+        while (runningCount < max && !queue.isEmpty()) {
+            Request request = queue.poll();
+            runningCount++;
+            request.task = new GetProfilePicAsyncTask(request);
+            execute(request.task);
+        }
+    }
+
+    /*
+     * Size the executor to the number of requests allowed to run. Growing
+     * raises the max before the core size, shrinking lowers the core size
+     * first, as the executor requires core <= max.
+     */
+    void setExecutorSize(int size) {
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else if (size < executor.getCorePoolSize()) {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    void execute(GetProfilePicAsyncTask task) {
+        if (EXECUTE_ON_EXECUTOR != null) {
+            try {
+                EXECUTE_ON_EXECUTOR.invoke(task, executor, new Void[0]);
+                return;
+            } catch (IllegalAccessException e) {
+                // public method: can't happen, fall back to execute()
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        task.execute();
+    }
+
+    int getMaxRunning() {
+        long now = SystemClock.elapsedRealtime();
+        if (networkCheckedAt == 0 || now - networkCheckedAt > NETWORK_CHECK_INTERVAL) {
+            networkCheckedAt = now;
+            NetworkInfo network = connectivity != null ? connectivity.getActiveNetworkInfo()
+                    : null;
+            currentMaxRunning = network != null
+                    ? maxRunning.get(network.getType(), DEFAULT_MAX_RUNNING)
+                    : DEFAULT_MAX_RUNNING;
+        }
+        return currentMaxRunning;
+    }
+
+    /*
+     * Called on the UI thread when a request finished, successfully or not.
+     */
+    void onRequestFinished(Request request, Bitmap result) {
+        runningCount--;
+        if (pending.get(request.key) == request) {
+            pending.remove(request.key);
+        }
+        if (result != null) {
+            friendsImages.putBitmap(request.key, result);
+        } else if (request.downloadFailed && Utility.pictureUrls != null
+                && request.url.equals(Utility.pictureUrls.getCachedUrl(request.uid))) {
+            // the resolved URL may have gone stale: resolve it again next time
+            Utility.pictureUrls.invalidate(request.uid);
+        }
+        if (request.view != null && bound.get(request.view) == request) {
+            bound.remove(request.view);
+            if (result != null) {
+                show(request.view, result);
             }
+        } else if (request.prefetch && result != null) {
+            prefetched.add(request.key);
         }
-        return null;
+        startNext();
     }
 
-    public void getNextImage() {
-        if (!queue.isEmpty()) {
-            ItemPair item = queue.pop();
-            new GetProfilePicAsyncTask().execute(item.uid, item.url);
+    /*
+     * Display the bitmap, or nothing, in the view, releasing the picture it
+     * displayed before.
+     */
+    void show(ImageView view, Bitmap bitmap) {
+        Bitmap previous = bitmap != null ? shown.put(view, bitmap) : shown.remove(view);
+        if (bitmap != null && previous == bitmap) {
+            return;
+        }
+        if (bitmap != null) {
+            friendsImages.retain(bitmap);
+        }
+        view.setImageBitmap(bitmap);
+        if (previous != null) {
+            friendsImages.release(previous);
         }
     }
 
     /*
-     * Start a AsyncTask to fetch the request
+     * Load a picture from the disk cache or the network.
      */
-    private class GetProfilePicAsyncTask extends AsyncTask<Object, Void, Bitmap> {
-        String uid;
+    private class GetProfilePicAsyncTask extends AsyncTask<Void, Void, Bitmap> {
+        final Request request;
+
+        GetProfilePicAsyncTask(Request request) {
+            this.request = request;
+        }
 
+        /*
+         * Any failure, including running out of memory while decoding, is
+         * delivered as a null result: onPostExecute() must run for every
+         * task, or the request would keep counting as running.
+         */
         @Override
-        protected Bitmap doInBackground(Object... params) {
-            this.uid = (String) params[0];
-            String url = (String) params[1];
-            return Utility.getBitmap(url);
+        protected Bitmap doInBackground(Void... params) {
+            try {
+                return load();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "could not load " + request.key, e);
+                return null;
+            } catch (OutOfMemoryError e) {
+                Log.w(TAG, "out of memory loading " + request.key);
+                return null;
+            }
+        }
+
+        private Bitmap load() {
+            byte[] data = friendsImages.getEncoded(request.key);
+            if (data == null) {
+                if (request.cancelled) {
+                    return null;
+                }
+                data = Utility.getBytes(request.url);
+                if (data == null) {
+                    request.downloadFailed = true;
+                    return null;
+                }
+                friendsImages.putEncoded(request.key, data);
+            }
+            return ImageDecoder.decode(data, request.size, request.size, bitmapPool);
         }
 
         @Override
         protected void onPostExecute(Bitmap result) {
-            runningCount--;
-            if (result != null) {
-                friendsImages.put(uid, result);
-                listener.notifyDataSetChanged();
-                getNextImage();
-            }
+            onRequestFinished(request, result);
         }
     }
 
-    class ItemPair {
-        String uid;
-        String url;
+    static class Request {
+        final String key;
+        final String uid;
+        final String url;
+        final int size;
+        int priority;
+        long sequence;
+        ImageView view;
+        GetProfilePicAsyncTask task;
+        boolean prefetch;
+        volatile boolean cancelled;
+        volatile boolean downloadFailed;
 
-        public ItemPair(String uid, String url) {
+        Request(String key, String uid, String url, int size) {
+            this.key = key;
             this.uid = uid;
             this.url = url;
+            this.size = size;
         }
     }
 
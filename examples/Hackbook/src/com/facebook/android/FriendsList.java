@@ -1,5 +1,8 @@
 package com.facebook.topface;
 
+import java.util.ArrayList;
+import java.util.Map;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -21,6 +24,11 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 public class FriendsList extends Activity implements OnItemClickListener {
+    /*
+     * Size of the square profile pictures returned by the API.
+     */
+    private static final int PROFILE_PIC_SIZE_DIP = 50;
+
     private Handler mHandler;
 
     protected ListView friendsList;
@@ -52,7 +60,11 @@ public class FriendsList extends Activity implements OnItemClickListener {
         }
         friendsList = (ListView) findViewById(R.id.friends_list);
         friendsList.setOnItemClickListener(this);
-        friendsList.setAdapter(new FriendListAdapter(this));
+        FriendListAdapter adapter = new FriendListAdapter(this);
+        friendsList.setAdapter(adapter);
+        adapter.resolvePictureUrls();
+        friendsList.setOnScrollListener(new ProfilePicPrefetcher(Utility.model, adapter,
+                adapter.getPictureSize()));
 
         showToast(getString(R.string.can_post_on_wall));
     }
@@ -127,24 +139,108 @@ public class FriendsList extends Activity implements OnItemClickListener {
     /**
      * Definition of the list adapter
      */
-    public class FriendListAdapter extends BaseAdapter {
+    public class FriendListAdapter extends BaseAdapter implements
+            ProfilePicPrefetcher.PictureSource {
         private LayoutInflater mInflater;
+        private int mPictureSize;
         FriendsList friendsList;
 
         public FriendListAdapter(FriendsList friendsList) {
             this.friendsList = friendsList;
             if (Utility.model == null) {
-                Utility.model = new FriendsGetProfilePics();
+                Utility.model = new FriendsGetProfilePics(friendsList);
+            }
+            if (Utility.pictureUrls == null) {
+                Utility.pictureUrls = new PictureUrlResolver(Utility.mFacebook);
             }
-            Utility.model.setListener(this);
+            mPictureSize = (int) (PROFILE_PIC_SIZE_DIP
+                    * friendsList.getResources().getDisplayMetrics().density + 0.5f);
+            Utility.model.reset();
             mInflater = LayoutInflater.from(friendsList.getBaseContext());
         }
 
+        public int getPictureSize() {
+            return mPictureSize;
+        }
+
         @Override
         public int getCount() {
             return jsonArray.length();
         }
 
+        @Override
+        public String getUid(int position) {
+            JSONObject jsonObject = jsonArray.optJSONObject(position);
+            if (jsonObject == null) {
+                return null;
+            }
+            return jsonObject.optString(graph_or_fql.equals("graph") ? "id" : "uid", null);
+        }
+
+        /*
+         * The CDN URL of the picture if it has been resolved, else the URL
+         * returned with the friend, else the redirecting Graph API URL.
+         */
+        @Override
+        public String getPictureUrl(int position) {
+            String uid = getUid(position);
+            if (uid == null) {
+                return null;
+            }
+            String url = Utility.pictureUrls.getCachedUrl(uid);
+            if (url != null) {
+                return url;
+            }
+            url = getListedPictureUrl(position);
+            return url != null ? url : Utility.pictureUrls.getUrl(uid);
+        }
+
+        /*
+         * The picture URL returned with the friend, if any.
+         */
+        String getListedPictureUrl(int position) {
+            JSONObject jsonObject = jsonArray.optJSONObject(position);
+            return jsonObject != null ? PictureUrlResolver.parsePicture(jsonObject.opt(
+                    graph_or_fql.equals("graph") ? "picture" : "pic_square")) : null;
+        }
+
+        /*
+         * Resolve in bulk the picture URLs of the friends that were listed
+         * without one, and redisplay the list with them.
+         */
+        void resolvePictureUrls() {
+            ArrayList<String> uids = new ArrayList<String>(getCount());
+            for (int i = 0; i < getCount(); i++) {
+                String uid = getUid(i);
+                if (uid != null && getListedPictureUrl(i) == null
+                        && Utility.pictureUrls.getCachedUrl(uid) == null) {
+                    uids.add(uid);
+                }
+            }
+            if (uids.isEmpty()) {
+                return;
+            }
+            Utility.pictureUrls.resolveAsync(uids, new PictureUrlResolver.ResolveListener() {
+                @Override
+                public void onResolved(Map<String, String> urls) {
+                    if (urls.isEmpty()) {
+                        return;
+                    }
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            notifyDataSetChanged();
+                        }
+                    });
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    // the rows keep the redirecting Graph API URLs.
+                }
+            });
+        }
+
         @Override
         public Object getItem(int position) {
             return null;
@@ -175,16 +271,12 @@ public class FriendsList extends Activity implements OnItemClickListener {
             }
 
             ViewHolder holder = (ViewHolder) hView.getTag();
-            try {
-                if (graph_or_fql.equals("graph")) {
-                    holder.profile_pic.setImageBitmap(Utility.model.getImage(
-                            jsonObject.getString("id"), jsonObject.getString("picture")));
-                } else {
-                    holder.profile_pic.setImageBitmap(Utility.model.getImage(
-                            jsonObject.getString("uid"), jsonObject.getString("pic_square")));
-                }
-            } catch (JSONException e) {
-                holder.name.setText("");
+            String uid = getUid(position);
+            if (uid != null) {
+                Utility.model.loadImage(holder.profile_pic, uid, getPictureUrl(position),
+                        mPictureSize);
+            } else {
+                Utility.model.clearImage(holder.profile_pic);
             }
             try {
                 holder.name.setText(jsonObject.getString("name"));
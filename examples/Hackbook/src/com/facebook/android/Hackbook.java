@@ -16,7 +16,10 @@
 
 package com.facebook.topface;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -58,6 +61,7 @@ public class Hackbook extends Activity implements OnItemClickListener {
     private ImageView mUserPic;
     private Handler mHandler;
     ProgressDialog dialog;
+    private final UploadQueue.Listener mUploadListener = new QueuedPhotoUploadListener();
 
     final static int AUTHORIZE_ACTIVITY_RESULT_CODE = 0;
     final static int PICK_EXISTING_PHOTO_RESULT_CODE = 1;
@@ -91,6 +95,12 @@ public class Hackbook extends Activity implements OnItemClickListener {
         Utility.mFacebook = new Facebook(APP_ID);
         // Instantiate the asynrunner object for asynchronous api calls.
         Utility.mAsyncRunner = new AsyncFacebookRunner(Utility.mFacebook);
+        // Pick up the photo uploads left over by earlier runs.
+        if (Utility.uploadQueue == null) {
+            Utility.uploadQueue = new UploadQueue(Utility.mFacebook, getApplicationContext());
+            Utility.uploadQueue.start();
+        }
+        Utility.uploadQueue.addListener(mUploadListener);
 
         mLoginButton = (LoginButton) findViewById(R.id.login);
 
@@ -114,6 +124,14 @@ public class Hackbook extends Activity implements OnItemClickListener {
         list.setAdapter(new ArrayAdapter<String>(this, R.layout.main_list_item, main_items));
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (Utility.uploadQueue != null) {
+            Utility.uploadQueue.removeListener(mUploadListener);
+        }
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -139,24 +157,16 @@ public class Hackbook extends Activity implements OnItemClickListener {
                 break;
             }
             /*
-             * if this is the result for a photo picker from the gallery, upload
-             * the image after scaling it. You can use the Utility.scaleImage()
-             * function for scaling
+             * if this is the result for a photo picker from the gallery, scale
+             * the image into a temporary file and queue it for upload. The
+             * upload queue sends it in the background and retries it until it
+             * gets through, even if the app is closed meanwhile.
              */
             case PICK_EXISTING_PHOTO_RESULT_CODE: {
                 if (resultCode == Activity.RESULT_OK) {
                     Uri photoUri = data.getData();
                     if (photoUri != null) {
-                        Bundle params = new Bundle();
-                        try {
-                            params.putByteArray("photo",
-                                    Utility.scaleImage(getApplicationContext(), photoUri));
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        params.putString("caption", "FbAPIs Sample App photo upload");
-                        Utility.mAsyncRunner.request("me/photos", params, "POST",
-                                new PhotoUploadListener(), null);
+                        queuePhotoUpload(photoUri);
                     } else {
                         Toast.makeText(getApplicationContext(),
                                 "Error selecting image from the gallery.", Toast.LENGTH_SHORT)
@@ -456,6 +466,79 @@ public class Hackbook extends Activity implements OnItemClickListener {
         }
     }
 
+    /*
+     * Encode the photo into a file in the cache directory, off the UI thread,
+     * and hand it to the upload queue, which deletes the file once done.
+     */
+    private void queuePhotoUpload(final Uri photoUri) {
+        final PhotoUploadPart photo = new PhotoUploadPart(getApplicationContext(), photoUri);
+        new Thread() {
+            @Override
+            public void run() {
+                File file = null;
+                try {
+                    file = File.createTempFile("upload", ".tmp", getCacheDir());
+                    OutputStream out = new FileOutputStream(file);
+                    try {
+                        photo.writeTo(out);
+                    } finally {
+                        out.close();
+                    }
+                    Bundle params = new Bundle();
+                    params.putString("caption", "FbAPIs Sample App photo upload");
+                    Utility.uploadQueue.enqueue(file, photo.getContentType(), "photo",
+                            "me/photos", params, true);
+                    showToast("Photo queued for upload.");
+                } catch (IOException e) {
+                    /* the queue deletes the file only once it has it. */
+                    if (file != null) {
+                        file.delete();
+                    }
+                    showToast("Error reading image from the gallery.");
+                } finally {
+                    dialog.dismiss();
+                }
+            }
+        }.start();
+    }
+
+    private void showToast(final String msg) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /*
+     * callback for the queued photo uploads
+     */
+    private class QueuedPhotoUploadListener implements UploadQueue.Listener {
+
+        @Override
+        public void onProgress(QueuedUpload upload, long bytesSent, long totalBytes) {
+        }
+
+        @Override
+        public void onComplete(QueuedUpload upload, final String response) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    new UploadPhotoResultDialog(Hackbook.this, "Upload Photo executed", response)
+                            .show();
+                }
+            });
+        }
+
+        @Override
+        public void onError(QueuedUpload upload, Throwable error, boolean willRetry) {
+            if (!willRetry) {
+                showToast("Photo upload failed: " + error.getMessage());
+            }
+        }
+    }
+
     /*
      * callback for the photo upload
      */
@@ -0,0 +1,321 @@
+package com.facebook.topface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+/*
+ * Two-tier image cache: decoded bitmaps in a memory LRU bounded by their size
+ * in bytes, backed by a disk LRU of the encoded images as downloaded.
+ *
+ * Bitmaps evicted from the memory tier are offered to the BitmapPool, if
+ * any, for reuse by the next decode, but only once no view displays them:
+ * callers retain() a bitmap when they set it on a view and release() it
+ * when the view shows something else.
+ *
+ * The memory tier may be used from any thread. The disk tier does file I/O
+ * and must not be used from the UI thread.
+ */
+public class ImageCache {
+
+    private static final String DISK_CACHE_DIR = "images";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final LinkedHashMap<String, Bitmap> mMemory;
+    private final int mMaxMemoryBytes;
+    private int mMemoryBytes = 0;
+    private final BitmapPool mPool;
+    // bitmap -> number of views displaying it
+    private final HashMap<Bitmap, Integer> mDisplayed = new HashMap<Bitmap, Integer>();
+    // Evicted while displayed: pooled when released by the last view.
+    private final HashSet<Bitmap> mEvictedDisplayed = new HashSet<Bitmap>();
+
+    private final File mDiskDir;
+    private final long mMaxDiskBytes;
+    // file name -> length, least recently used first. Loaded lazily.
+    private LinkedHashMap<String, Long> mDiskIndex;
+    private long mDiskBytes = 0;
+
+    /*
+     * maxMemoryBytes bounds the decoded bitmaps kept in memory, maxDiskBytes
+     * the encoded images kept in the application's cache directory.
+     */
+    public ImageCache(Context context, int maxMemoryBytes, long maxDiskBytes) {
+        this(context, maxMemoryBytes, maxDiskBytes, null);
+    }
+
+    public ImageCache(Context context, int maxMemoryBytes, long maxDiskBytes,
+            BitmapPool pool) {
+        mPool = pool;
+        mMemory = new LinkedHashMap<String, Bitmap>(32, 0.75f, true);
+        mMaxMemoryBytes = maxMemoryBytes;
+        mDiskDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+        mMaxDiskBytes = maxDiskBytes;
+    }
+
+    /*
+     * Cache key for the picture of the given user scaled to the given size
+     * (in pixels), so that different sizes of one picture do not collide.
+     */
+    public static String key(String uid, int size) {
+        return uid + "_" + size;
+    }
+
+    /*
+     * Memory budget suited for thumbnails: an eighth of the heap.
+     */
+    public static int defaultMemoryBytes() {
+        return (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+    }
+
+    public static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    public synchronized Bitmap getBitmap(String key) {
+        return mMemory.get(key);
+    }
+
+    public synchronized void putBitmap(String key, Bitmap bitmap) {
+        int size = sizeOf(bitmap);
+        if (size > mMaxMemoryBytes) {
+            return;
+        }
+        Bitmap previous = mMemory.put(key, bitmap);
+        if (previous != null) {
+            mMemoryBytes -= sizeOf(previous);
+        }
+        mMemoryBytes += size;
+        Iterator<Bitmap> it = mMemory.values().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && it.hasNext()) {
+            Bitmap eldest = it.next();
+            mMemoryBytes -= sizeOf(eldest);
+            it.remove();
+            if (mPool == null) {
+                continue;
+            }
+            if (mDisplayed.containsKey(eldest)) {
+                mEvictedDisplayed.add(eldest);
+            } else {
+                mPool.put(eldest);
+            }
+        }
+    }
+
+    /*
+     * Record that a view displays the bitmap, so that it is not reused by
+     * the pool until released.
+     */
+    public synchronized void retain(Bitmap bitmap) {
+        Integer count = mDisplayed.get(bitmap);
+        mDisplayed.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /*
+     * Record that a view no longer displays the bitmap. A bitmap evicted
+     * while displayed goes to the pool when its last view releases it.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = mDisplayed.get(bitmap);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            mDisplayed.put(bitmap, count - 1);
+            return;
+        }
+        mDisplayed.remove(bitmap);
+        if (mEvictedDisplayed.remove(bitmap) && mPool != null) {
+            mPool.put(bitmap);
+        }
+    }
+
+    public synchronized void clearMemory() {
+        mMemory.clear();
+        mMemoryBytes = 0;
+        mEvictedDisplayed.clear();
+    }
+
+    public synchronized int getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    /*
+     * Return the encoded image stored for the key, or null. Not for the UI
+     * thread.
+     */
+    public byte[] getEncoded(String key) {
+        String name = fileName(key);
+        File file = new File(mDiskDir, name);
+        synchronized (mDiskDir) {
+            loadDiskIndex();
+            if (mDiskIndex.get(name) == null) {
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+        }
+        try {
+            return readFully(file);
+        } catch (IOException e) {
+            synchronized (mDiskDir) {
+                removeFile(name);
+            }
+            return null;
+        }
+    }
+
+    /*
+     * Store the encoded image for the key, evicting the least recently used
+     * images if the disk budget is exceeded. Not for the UI thread.
+     */
+    public void putEncoded(String key, byte[] data) {
+        if (data.length > mMaxDiskBytes) {
+            return;
+        }
+        String name = fileName(key);
+        File temp = new File(mDiskDir, name + TEMP_SUFFIX);
+        synchronized (mDiskDir) {
+            loadDiskIndex();
+            if (!mDiskDir.isDirectory() && !mDiskDir.mkdirs()) {
+                return;
+            }
+        }
+        try {
+            OutputStream os = new FileOutputStream(temp);
+            try {
+                os.write(data);
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        synchronized (mDiskDir) {
+            removeFile(name);
+            if (!temp.renameTo(new File(mDiskDir, name))) {
+                temp.delete();
+                return;
+            }
+            mDiskIndex.put(name, (long) data.length);
+            mDiskBytes += data.length;
+            Iterator<String> it = mDiskIndex.keySet().iterator();
+            while (mDiskBytes > mMaxDiskBytes && it.hasNext()) {
+                String eldest = it.next();
+                mDiskBytes -= mDiskIndex.get(eldest);
+                it.remove();
+                new File(mDiskDir, eldest).delete();
+            }
+        }
+    }
+
+    /*
+     * Empty both tiers. Not for the UI thread.
+     */
+    public void clear() {
+        clearMemory();
+        synchronized (mDiskDir) {
+            File[] files = mDiskDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            mDiskIndex = new LinkedHashMap<String, Long>(32, 0.75f, true);
+            mDiskBytes = 0;
+        }
+    }
+
+    private void removeFile(String name) {
+        Long length = mDiskIndex.remove(name);
+        if (length != null) {
+            mDiskBytes -= length;
+        }
+        new File(mDiskDir, name).delete();
+    }
+
+    /*
+     * Rebuild the index from the cache directory, oldest file first, the
+     * first time the disk tier is used.
+     */
+    private void loadDiskIndex() {
+        if (mDiskIndex != null) {
+            return;
+        }
+        mDiskIndex = new LinkedHashMap<String, Long>(32, 0.75f, true);
+        File[] files = mDiskDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // Left over from an interrupted write.
+                file.delete();
+                continue;
+            }
+            mDiskIndex.put(file.getName(), file.length());
+            mDiskBytes += file.length();
+        }
+        Iterator<Map.Entry<String, Long>> it = mDiskIndex.entrySet().iterator();
+        while (mDiskBytes > mMaxDiskBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            mDiskBytes -= eldest.getValue();
+            it.remove();
+            new File(mDiskDir, eldest.getKey()).delete();
+        }
+    }
+
+    /*
+     * Keys are uids and sizes, but keep file names safe regardless.
+     */
+    private static String fileName(String key) {
+        StringBuilder sb = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append('%').append(Integer.toHexString(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, n);
+            }
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
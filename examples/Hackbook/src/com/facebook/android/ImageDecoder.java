@@ -0,0 +1,104 @@
+package com.facebook.topface;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/*
+ * Decode downloaded images at the size they are displayed at, and keep
+ * track of how long decoding takes and how much memory it costs.
+ */
+public class ImageDecoder {
+
+    private static final String TAG = "Hackbook-images";
+
+    private static int sDecodeCount = 0;
+    private static long sDecodeMillis = 0;
+    private static long sEncodedBytes = 0;
+    private static long sDecodedBytes = 0;
+    private static int sReusedCount = 0;
+
+    /*
+     * Decode the encoded image, subsampled by the largest power of two that
+     * keeps it at least reqWidth x reqHeight (0 for full size). JPEGs, which
+     * have no alpha channel, are decoded to RGB_565 at half the memory of
+     * ARGB_8888. Full-size decodes reuse a bitmap from the pool if it holds
+     * one of the same dimensions. Returns null if the data is not an image.
+     */
+    public static Bitmap decode(byte[] data, int reqWidth, int reqHeight, BitmapPool pool) {
+        long start = System.nanoTime();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = calculateSampleSize(options.outWidth, options.outHeight,
+                reqWidth, reqHeight);
+        Bitmap.Config config = "image/jpeg".equals(options.outMimeType)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        Bitmap reuse = null;
+        if (pool != null && sampleSize == 1) {
+            reuse = pool.get(options.outWidth, options.outHeight, config);
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = config;
+        BitmapPool.setMutable(options);
+        BitmapPool.setInBitmap(options, reuse);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap was rejected: decode into a new one.
+            reuse = null;
+            BitmapPool.setInBitmap(options, null);
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        long millis = (System.nanoTime() - start) / 1000000L;
+        int decodedBytes = ImageCache.sizeOf(bitmap);
+        boolean reused = reuse != null && bitmap == reuse;
+        synchronized (ImageDecoder.class) {
+            sDecodeCount++;
+            sDecodeMillis += millis;
+            sEncodedBytes += data.length;
+            sDecodedBytes += decodedBytes;
+            if (reused) {
+                sReusedCount++;
+            }
+        }
+        if (Logger.isLoggable(Logger.DEBUG)) {
+            Logger.d(TAG, "decoded {}x{} {} (sample {}) from {} bytes to {} bytes in {}ms{}",
+                    bitmap.getWidth(), bitmap.getHeight(), config, sampleSize, data.length,
+                    decodedBytes, millis, reused ? ", reused" : "");
+        }
+        return bitmap;
+    }
+
+    static int calculateSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /*
+     * Summary of all decodes so far.
+     */
+    public static synchronized String getStats() {
+        return "decodes=" + sDecodeCount
+                + " avgMillis=" + (sDecodeCount == 0 ? 0 : sDecodeMillis / sDecodeCount)
+                + " encodedBytes=" + sEncodedBytes
+                + " decodedBytes=" + sDecodedBytes
+                + " reused=" + sReusedCount;
+    }
+}
@@ -0,0 +1,201 @@
+package com.facebook.topface;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+
+/*
+ * Photo from the gallery prepared for upload while the request body is being
+ * written, instead of as a byte array up front.
+ *
+ * Photos are uploaded as PNG if they are PNGs, else as JPEG. A JPEG that is
+ * small enough is sent as is: no pixels are decoded and its
+ * EXIF orientation stays with it. Any other photo is decoded subsampled by
+ * the largest power of two that keeps it at least maxDimension, then scaled
+ * and rotated with a single transform, and encoded straight into the upload
+ * stream at the given quality.
+ *
+ * Usage: params.putSerializable("photo", new PhotoUploadPart(context, uri));
+ *
+ * The Context is not serialized: a part that went through a Parcel, e.g.
+ * because its Bundle was put in an Intent, has none and can no longer be
+ * written. Upload it from the process that created it.
+ */
+public class PhotoUploadPart implements UploadPart {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String TAG = "Hackbook-upload";
+
+    public static final int DEFAULT_MAX_DIMENSION = 720;
+    public static final int DEFAULT_QUALITY = 85;
+
+    private final transient Context mContext;
+    private final String mUri;
+    private final int mMaxDimension;
+    private final int mQuality;
+    private final String mContentType;
+    private long mPeakBytes = 0;
+
+    public PhotoUploadPart(Context context, Uri photoUri) {
+        this(context, photoUri, DEFAULT_MAX_DIMENSION, DEFAULT_QUALITY);
+    }
+
+    /*
+     * maxDimension bounds the longest side of the uploaded photo, quality
+     * (0-100) is the JPEG compression quality.
+     */
+    public PhotoUploadPart(Context context, Uri photoUri, int maxDimension, int quality) {
+        mContext = context.getApplicationContext();
+        mUri = photoUri.toString();
+        mMaxDimension = maxDimension;
+        mQuality = quality;
+        mContentType = context.getContentResolver().getType(photoUri);
+    }
+
+    @Override
+    public String getContentType() {
+        return isPng() ? "image/png" : "image/jpeg";
+    }
+
+    /*
+     * Unknown: the photo is encoded while it is written.
+     */
+    @Override
+    public long getLength() {
+        return -1;
+    }
+
+    /*
+     * Bytes of bitmap memory held at once while preparing the photo, once
+     * it has been written.
+     */
+    public long getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (mContext == null) {
+            throw new IOException("No context to read " + mUri + " after being parceled");
+        }
+        Uri uri = Uri.parse(mUri);
+        long start = System.currentTimeMillis();
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        InputStream is = open(uri);
+        try {
+            BitmapFactory.decodeStream(is, null, bounds);
+        } finally {
+            is.close();
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Not an image: " + mUri);
+        }
+        int longest = Math.max(bounds.outWidth, bounds.outHeight);
+        if (longest <= mMaxDimension && isJpeg()) {
+            /*
+             * Small enough: upload the original file, which keeps its EXIF
+             * orientation, instead of rotating the pixels.
+             */
+            copy(open(uri), out);
+            Logger.d(TAG, "uploaded {} as is in {}ms", mUri, System.currentTimeMillis() - start);
+            return;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = calculateSampleSize(longest, mMaxDimension);
+        options.inPreferredConfig = isPng() ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        Bitmap bitmap;
+        is = open(uri);
+        try {
+            bitmap = BitmapFactory.decodeStream(is, null, options);
+        } finally {
+            is.close();
+        }
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + mUri);
+        }
+        mPeakBytes = ImageCache.sizeOf(bitmap);
+
+        float scale = Math.min(1f,
+                (float) mMaxDimension / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        int orientation = Utility.getOrientation(mContext, uri);
+        if (scale < 1f || orientation > 0) {
+            Matrix matrix = new Matrix();
+            matrix.postScale(scale, scale);
+            if (orientation > 0) {
+                matrix.postRotate(orientation);
+            }
+            Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
+                    bitmap.getHeight(), matrix, true);
+            if (transformed != bitmap) {
+                mPeakBytes += ImageCache.sizeOf(transformed);
+                bitmap.recycle();
+                bitmap = transformed;
+            }
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        try {
+            bitmap.compress(isPng() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                    mQuality, out);
+        } finally {
+            bitmap.recycle();
+        }
+        if (Logger.isLoggable(Logger.DEBUG)) {
+            Logger.d(TAG, "encoded {} at {}x{} (sample {}) in {}ms, peak {} bytes", mUri,
+                    width, height, options.inSampleSize,
+                    System.currentTimeMillis() - start, mPeakBytes);
+        }
+    }
+
+    /*
+     * Largest power of two that keeps the longest side at least maxDimension,
+     * so that the final scaling step only ever shrinks by less than half.
+     */
+    static int calculateSampleSize(int longest, int maxDimension) {
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private boolean isJpeg() {
+        return "image/jpeg".equals(mContentType) || "image/jpg".equals(mContentType);
+    }
+
+    private boolean isPng() {
+        return "image/png".equals(mContentType);
+    }
+
+    private InputStream open(Uri uri) throws FileNotFoundException {
+        InputStream is = mContext.getContentResolver().openInputStream(uri);
+        if (is == null) {
+            throw new FileNotFoundException(mUri);
+        }
+        return is;
+    }
+
+    private static void copy(InputStream is, OutputStream out) throws IOException {
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.facebook.topface;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+/*
+ * Scroll listener that warms the picture cache for the rows about to scroll
+ * into view, in the direction the list is moving. The faster the list
+ * scrolls, the further ahead it prefetches. Loading is paused while the list
+ * flings, since the rows flung past would never be seen, and resumes when
+ * it settles.
+ */
+public class ProfilePicPrefetcher implements OnScrollListener {
+
+    /*
+     * Rows ahead of the viewport prefetched when scrolling slowly.
+     */
+    final static int DEFAULT_ROWS_AHEAD = 10;
+
+    /*
+     * Prefetch the rows the list would scroll past in this time at its
+     * current speed, up to MAX_ROWS_AHEAD.
+     */
+    final static long LOOKAHEAD_MILLIS = 1000;
+    final static int MAX_ROWS_AHEAD = 30;
+
+    /*
+     * The rows of the list, in adapter positions.
+     */
+    public interface PictureSource {
+        public int getCount();
+
+        public String getUid(int position);
+
+        public String getPictureUrl(int position);
+    }
+
+    private final FriendsGetProfilePics mLoader;
+    private final PictureSource mSource;
+    private final int mPictureSize;
+    private final int mRowsAhead;
+
+    private int mScrollState = SCROLL_STATE_IDLE;
+    private int mLastFirstVisible = -1;
+    private long mLastScrollTime;
+    private int mDirection = 1;
+    // Rows per second, smoothed.
+    private float mVelocity = 0;
+
+    public ProfilePicPrefetcher(FriendsGetProfilePics loader, PictureSource source,
+            int pictureSize) {
+        this(loader, source, pictureSize, DEFAULT_ROWS_AHEAD);
+    }
+
+    public ProfilePicPrefetcher(FriendsGetProfilePics loader, PictureSource source,
+            int pictureSize, int rowsAhead) {
+        mLoader = loader;
+        mSource = source;
+        mPictureSize = pictureSize;
+        mRowsAhead = rowsAhead;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        mScrollState = scrollState;
+        if (scrollState == SCROLL_STATE_FLING) {
+            mLoader.setPaused(true);
+            return;
+        }
+        mLoader.setPaused(false);
+        if (scrollState == SCROLL_STATE_IDLE) {
+            mVelocity = 0;
+            int first = view.getFirstVisiblePosition();
+            prefetch(first, view.getLastVisiblePosition() - first + 1);
+            if (Logger.isLoggable(Logger.DEBUG)) {
+                Logger.d("Hackbook-prefetch", mLoader.getStats());
+            }
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (firstVisibleItem == mLastFirstVisible || visibleItemCount == 0) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mLastFirstVisible >= 0) {
+            int rows = firstVisibleItem - mLastFirstVisible;
+            long elapsed = Math.max(1, now - mLastScrollTime);
+            mDirection = rows > 0 ? 1 : -1;
+            float velocity = Math.abs(rows) * 1000f / elapsed;
+            mVelocity = (mVelocity + velocity) / 2;
+        }
+        mLastFirstVisible = firstVisibleItem;
+        mLastScrollTime = now;
+        if (mScrollState != SCROLL_STATE_FLING) {
+            prefetch(firstVisibleItem, visibleItemCount);
+        }
+    }
+
+    private void prefetch(int firstVisible, int visibleCount) {
+        int rowsAhead = Math.max(mRowsAhead,
+                Math.min(MAX_ROWS_AHEAD, (int) (mVelocity * LOOKAHEAD_MILLIS / 1000)));
+        int count = mSource.getCount();
+        mLoader.cancelPrefetches();
+        // Farthest first: the loader starts the most recent request first.
+        for (int i = rowsAhead; i > 0; i--) {
+            int position = mDirection > 0 ? firstVisible + visibleCount - 1 + i
+                    : firstVisible - i;
+            if (position < 0 || position >= count) {
+                continue;
+            }
+            String uid = mSource.getUid(position);
+            String url = mSource.getPictureUrl(position);
+            if (uid != null && url != null) {
+                mLoader.prefetch(uid, url, mPictureSize);
+            }
+        }
+    }
+}
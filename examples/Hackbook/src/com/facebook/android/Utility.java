@@ -1,8 +1,6 @@
 package com.facebook.topface;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -15,8 +13,6 @@ import android.app.Application;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
 import android.net.Uri;
 import android.net.http.AndroidHttpClient;
 import android.provider.MediaStore;
@@ -29,125 +25,74 @@ public class Utility extends Application {
     public static String userUID = null;
     public static String objectID = null;
     public static FriendsGetProfilePics model;
+    public static PictureUrlResolver pictureUrls;
+    public static UploadQueue uploadQueue;
     public static AndroidHttpClient httpclient = null;
     public static Hashtable<String, String> currentPermissions = new Hashtable<String, String>();
 
-    private static int MAX_IMAGE_DIMENSION = 720;
     public static final String HACK_ICON_URL = "http://www.facebookmobileweb.com/hackbook/img/facebook_icon_large.png";
 
     public static Bitmap getBitmap(String url) {
-        Bitmap bm = null;
+        return getBitmap(url, 0, 0);
+    }
+
+    /*
+     * Download the image at the given url and decode it at the smallest size
+     * that still covers width x height (0 for full size).
+     */
+    public static Bitmap getBitmap(String url, int width, int height) {
         try {
-            URL aURL = new URL(url);
-            URLConnection conn = aURL.openConnection();
-            conn.connect();
-            InputStream is = conn.getInputStream();
-            BufferedInputStream bis = new BufferedInputStream(is);
-            bm = BitmapFactory.decodeStream(new FlushedInputStream(is));
-            bis.close();
-            is.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+            byte[] data = getBytes(url);
+            return data != null ? ImageDecoder.decode(data, width, height, null) : null;
         } finally {
             if (httpclient != null) {
                 httpclient.close();
             }
         }
-        return bm;
     }
 
-    static class FlushedInputStream extends FilterInputStream {
-        public FlushedInputStream(InputStream inputStream) {
-            super(inputStream);
-        }
-
-        @Override
-        public long skip(long n) throws IOException {
-            long totalBytesSkipped = 0L;
-            while (totalBytesSkipped < n) {
-                long bytesSkipped = in.skip(n - totalBytesSkipped);
-                if (bytesSkipped == 0L) {
-                    int b = read();
-                    if (b < 0) {
-                        break; // we reached EOF
-                    } else {
-                        bytesSkipped = 1; // we read one byte
-                    }
+    /*
+     * Download the encoded image at the given url, or return null on error.
+     */
+    public static byte[] getBytes(String url) {
+        try {
+            URLConnection conn = new URL(url).openConnection();
+            InputStream is = conn.getInputStream();
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(
+                        conn.getContentLength(), 8192));
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    baos.write(buffer, 0, n);
                 }
-                totalBytesSkipped += bytesSkipped;
+                return baos.toByteArray();
+            } finally {
+                is.close();
             }
-            return totalBytesSkipped;
-        }
-    }
-
-    public static byte[] scaleImage(Context context, Uri photoUri) throws IOException {
-        InputStream is = context.getContentResolver().openInputStream(photoUri);
-        BitmapFactory.Options dbo = new BitmapFactory.Options();
-        dbo.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(is, null, dbo);
-        is.close();
-
-        int rotatedWidth, rotatedHeight;
-        int orientation = getOrientation(context, photoUri);
-
-        if (orientation == 90 || orientation == 270) {
-            rotatedWidth = dbo.outHeight;
-            rotatedHeight = dbo.outWidth;
-        } else {
-            rotatedWidth = dbo.outWidth;
-            rotatedHeight = dbo.outHeight;
-        }
-
-        Bitmap srcBitmap;
-        is = context.getContentResolver().openInputStream(photoUri);
-        if (rotatedWidth > MAX_IMAGE_DIMENSION || rotatedHeight > MAX_IMAGE_DIMENSION) {
-            float widthRatio = ((float) rotatedWidth) / ((float) MAX_IMAGE_DIMENSION);
-            float heightRatio = ((float) rotatedHeight) / ((float) MAX_IMAGE_DIMENSION);
-            float maxRatio = Math.max(widthRatio, heightRatio);
-
-            // Create the bitmap from file
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inSampleSize = (int) maxRatio;
-            srcBitmap = BitmapFactory.decodeStream(is, null, options);
-        } else {
-            srcBitmap = BitmapFactory.decodeStream(is);
-        }
-        is.close();
-
-        /*
-         * if the orientation is not 0 (or -1, which means we don't know), we
-         * have to do a rotation.
-         */
-        if (orientation > 0) {
-            Matrix matrix = new Matrix();
-            matrix.postRotate(orientation);
-
-            srcBitmap = Bitmap.createBitmap(srcBitmap, 0, 0, srcBitmap.getWidth(),
-                    srcBitmap.getHeight(), matrix, true);
-        }
-
-        String type = context.getContentResolver().getType(photoUri);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        if (type.equals("image/png")) {
-            srcBitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
-        } else if (type.equals("image/jpg") || type.equals("image/jpeg")) {
-            srcBitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
-        byte[] bMapArray = baos.toByteArray();
-        baos.close();
-        return bMapArray;
     }
 
     public static int getOrientation(Context context, Uri photoUri) {
         /* it's on the external media. */
         Cursor cursor = context.getContentResolver().query(photoUri,
                 new String[] { MediaStore.Images.ImageColumns.ORIENTATION }, null, null, null);
-
-        if (cursor.getCount() != 1) {
+        if (cursor == null) {
             return -1;
         }
 
-        cursor.moveToFirst();
-        return cursor.getInt(0);
+        try {
+            if (cursor.getCount() != 1) {
+                return -1;
+            }
+
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
     }
 }
@@ -10,6 +10,21 @@ function hide(id) {
   $(id).style.display = "none";
 }
 
+// runs the calls queued by the app (see JsBridge), in order
+function applyUpdates() {
+  var start = new Date().getTime();
+  var json = bridge.takeUpdates();
+  var calls = window.JSON ? JSON.parse(json) : eval('(' + json + ')');
+  for (var i = 0; i < calls.length; i++) {
+    try {
+      window[calls[i][0]].apply(window, calls[i][1]);
+    } catch (e) {
+      // the element the call was for may be gone; run the others
+    }
+  }
+  bridge.onApplied(calls.length, new Date().getTime() - start);
+}
+
 function onStatusBoxFocus(elt) {
   elt.value = '';
   elt.style.color = "#000";
@@ -32,6 +47,65 @@ function onStatusUpdated(html) {
   $('posts').innerHTML = html + $('posts').innerHTML;
 }
 
+// called with the html of posts rendered after the page was loaded
+function appendPosts(html) {
+  var div = document.createElement('div');
+  div.innerHTML = html;
+  var posts = $('posts');
+  while (div.firstChild) {
+    posts.appendChild(div.firstChild);
+  }
+}
+
+// called with the html of posts newer than those on the page
+function prependPosts(html) {
+  var div = document.createElement('div');
+  div.innerHTML = html;
+  var posts = $('posts');
+  while (div.lastChild) {
+    posts.insertBefore(div.lastChild, posts.firstChild);
+  }
+}
+
+// called with the html of posts already on the page that have changed,
+// e.g. with new likes or comments. A post the user is commenting on is
+// left as it is.
+function replacePosts(html) {
+  var div = document.createElement('div');
+  div.innerHTML = html;
+  while (div.firstChild) {
+    var post = div.removeChild(div.firstChild);
+    var old = $(post.id);
+    if (!old) {
+      continue;
+    }
+    var input = $("comment_box_input" + post.id.substring(4));
+    if ((input && input.value != "") ||
+        old.innerHTML.indexOf("pending_comment") != -1) {
+      continue;
+    }
+    old.parentNode.replaceChild(post, old);
+  }
+}
+
+// ask for older posts when the user gets near the bottom of the page;
+// the app calls onMoreLoaded() once it is done, whatever the outcome
+var moreRequested = false;
+window.onscroll = function() {
+  if (moreRequested) {
+    return;
+  }
+  var bottom = window.pageYOffset + window.innerHeight;
+  if (bottom >= document.body.scrollHeight - window.innerHeight) {
+    moreRequested = true;
+    app.loadMore();
+  }
+};
+
+function onMoreLoaded() {
+  moreRequested = false;
+}
+
 function like(post_id) {
   doLike(post_id, true);
  
@@ -41,16 +115,19 @@ function unlike(post_id) {
   doLike(post_id, false);
 }
 
+// the page is updated right away; the app sends the request later
 function doLike(post_id, val) {
-  var ids = getLikeLinkIds(post_id, val);
-  $(ids[0]).disabled = true;
+  onLike(post_id, val);
   app.like(post_id, val);
 }
 
-// called when the api request has succeeded
+// shows the post as liked (val true) or not; also called by the app
+// to roll back a like that failed
 function onLike(post_id, val) {
   var ids = getLikeLinkIds(post_id, val);
-  $(ids[0]).disabled = false;
+  if (!$(ids[0])) {
+    return;
+  }
   hide(ids[0]);
   show(ids[1]);
 }
@@ -77,12 +154,23 @@ function postComment(post_id) {
   if (message == "") {
     return;
   }
-  $("comment_box" + post_id).disabled = true;
+  $("comment_box_input" + post_id).value = "";
   app.postComment(post_id, message);
 }
 
+// called with the comment right away, before it is posted
 function onComment(post_id, html) {
   $("comments" + post_id).innerHTML += html;
-  $("comment_box" + post_id).disabled = false;
-  $("comment_box_input" + post_id).value = "";
+}
+
+// called when a comment could not be posted
+function onCommentFailed(post_id, comment_id, message) {
+  var comment = $(comment_id);
+  if (comment) {
+    comment.parentNode.removeChild(comment);
+  }
+  var input = $("comment_box_input" + post_id);
+  if (input && input.value == "") {
+    input.value = message;
+  }
 }
\ No newline at end of file
@@ -48,18 +48,52 @@ public class App extends Activity {
         
         // Initialize the dispatcher
         Dispatcher dispatcher = new Dispatcher(this);
-        dispatcher.addHandler("login", LoginHandler.class);
-        dispatcher.addHandler("stream", StreamHandler.class);
-        dispatcher.addHandler("logout", LogoutHandler.class);
+        dispatcher.addHandler("login", new Handler.Factory() {
+            public Handler create() {
+                return new LoginHandler();
+            }
+        });
+        dispatcher.addHandler("stream", new Handler.Factory() {
+            public Handler create() {
+                return new StreamHandler();
+            }
+        });
+        dispatcher.addHandler("stream_list", new Handler.Factory() {
+            public Handler create() {
+                return new ListStreamHandler();
+            }
+        });
+        dispatcher.addHandler("logout", new Handler.Factory() {
+            public Handler create() {
+                return new LogoutHandler();
+            }
+        });
+        dispatcher.addHandler("benchmark", new Handler.Factory() {
+            public Handler create() {
+                return new BenchmarkHandler();
+            }
+        });
 
         // If a session already exists, render the stream page
-        // immediately. Otherwise, render the login page.
-        Session session = Session.restore(this);
-        if (session != null) {
-            dispatcher.runHandler("stream");
-        } else {
-            dispatcher.runHandler("login");
+        // once it's loaded (in a ListView if asked for). Otherwise,
+        // render the login page. The benchmark runs without a session.
+        if (getIntent().getBooleanExtra("benchmark", false)) {
+            dispatcher.runHandler("benchmark");
+            return;
         }
+        final Dispatcher appDispatcher = dispatcher;
+        final String streamHandler = getIntent().getBooleanExtra("list", false)
+                ? "stream_list" : "stream";
+        Session.load(this, new Session.Listener() {
+            public void onSessionChanged(final Session session) {
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        appDispatcher.runHandler(
+                                (session != null) ? streamHandler : "login");
+                    }
+                });
+            }
+        });
     }
 
     protected void onActivityResult(int requestCode, int resultCode,
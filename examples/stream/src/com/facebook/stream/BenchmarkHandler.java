@@ -0,0 +1,42 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+/**
+ * A handler for the benchmark page. Runs StreamBenchmark in a
+ * background thread and shows its results.
+ */
+public class BenchmarkHandler extends Handler {
+
+    /**
+     * Called by the dispatcher to render the benchmark page.
+     */
+    public void go() {
+        dispatcher.loadData("<html><body>Running...</body></html>");
+        new Thread() {
+            public void run() {
+                final String results = StreamBenchmark.run(getActivity());
+                getActivity().runOnUiThread(new Runnable() {
+                    public void run() {
+                        dispatcher.loadData("<html><body><pre>" + results +
+                                "</pre></body></html>");
+                    }
+                });
+            }
+        }.start();
+    }
+}
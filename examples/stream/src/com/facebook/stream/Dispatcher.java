@@ -19,6 +19,8 @@ package com.facebook.stream;
 import java.util.HashMap;
 
 import android.app.Activity;
+import android.os.SystemClock;
+import android.util.Log;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import android.widget.LinearLayout;
@@ -35,6 +37,9 @@ public class Dispatcher {
     // The WebView instance
     private WebView webView;
 
+    // Calls Javascript functions in the WebView's pages
+    private JsBridge bridge;
+
     // The app's main Activity
     private Activity activity;
 
@@ -44,13 +49,27 @@ public class Dispatcher {
     // Has the webView been rendered?
     boolean isWebViewShown;
 
-    // Holds mappings between handler names to their classes
-    // (e.g. "login" -> LoginHandler.class)
-    HashMap<String, Class> handlers;
+    // Holds mappings between handler names to the factories of their
+    // handlers (e.g. "login" -> a factory of LoginHandlers)
+    HashMap<String, Handler.Factory> factories;
+
+    // The handlers created so far, reused by later navigations
+    HashMap<String, Handler> handlers;
+
+    // The handler that rendered the current page, and its name
+    private Handler currentHandler;
+    private String currentName;
+
+    // The objects exported to the WebView's Javascript, by name
+    private HashMap<String, Object> jsInterfaces;
+
+    // When the current navigation started, until its page is loaded
+    private long navigationStart;
 
     public Dispatcher(Activity activity) {
         this.activity = activity;
-        handlers = new HashMap<String, Class>();
+        factories = new HashMap<String, Handler.Factory>();
+        handlers = new HashMap<String, Handler>();
         layout = new LinearLayout(activity);
         activity.addContentView(
                 layout, new LayoutParams(
@@ -60,14 +79,14 @@ public class Dispatcher {
     }
 
     /**
-     * Adds a handler name to handler class mapping. This should be called
-     * for each handler when the application starts up.
+     * Adds a handler name to handler factory mapping. This should be
+     * called for each handler when the application starts up.
      * 
      * @param name
-     * @param clazz
+     * @param factory
      */
-    public void addHandler(String name, Class clazz) {
-        this.handlers.put(name, clazz);
+    public void addHandler(String name, Handler.Factory factory) {
+        this.factories.put(name, factory);
     }
 
     /**
@@ -75,20 +94,52 @@ public class Dispatcher {
      * dispatcher.runHandler("login") would render the Login page in the
      * WebView instance.
      * 
+     * The handler is created the first time it runs, and reused after
+     * that.
+     * 
      * @param name
      */
-    public void runHandler(String name) {
-        Class clazz = handlers.get(name);
-        if (clazz != null) {
-            try {
-                Handler handler = (Handler)clazz.newInstance();
-                handler.setDispatcher(this);
-                handler.go();
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            } catch (InstantiationException e) {
-                e.printStackTrace();
+    public synchronized void runHandler(String name) {
+        long start = SystemClock.uptimeMillis();
+        Handler handler = handlers.get(name);
+        boolean created = false;
+        if (handler == null) {
+            Handler.Factory factory = factories.get(name);
+            if (factory == null) {
+                Log.w("Dispatcher", "No handler for " + name);
+                return;
             }
+            handler = factory.create();
+            handler.setDispatcher(this);
+            handler.onCreate();
+            handlers.put(name, handler);
+            created = true;
+        }
+        if (currentHandler != null && currentHandler != handler) {
+            currentHandler.onLeave();
+        }
+        currentHandler = handler;
+        currentName = name;
+        navigationStart = start;
+        handler.go();
+        Log.d("Dispatcher", name + ": " +
+                (SystemClock.uptimeMillis() - start) + " ms to run" +
+                (created ? ", created" : ""));
+    }
+
+    /**
+     * Exports an object to the Javascript of the WebView's pages,
+     * unless it already is under that name. Takes effect on the next
+     * page loaded.
+     * 
+     * @param object
+     * @param name
+     */
+    public synchronized void addJavascriptInterface(Object object,
+            String name) {
+        if (jsInterfaces.get(name) != object) {
+            webView.addJavascriptInterface(object, name);
+            jsInterfaces.put(name, object);
         }
     }
 
@@ -102,6 +153,9 @@ public class Dispatcher {
         webView = new WebView(activity);
         webView.setWebViewClient(new AppWebViewClient());
         webView.getSettings().setJavaScriptEnabled(true);
+        bridge = new JsBridge(webView);
+        // a new WebView has none of the old one's objects
+        jsInterfaces = new HashMap<String, Object>();
         layout.addView(webView,
                 new LayoutParams(
                         LayoutParams.FILL_PARENT, LayoutParams.FILL_PARENT));
@@ -133,6 +187,7 @@ public class Dispatcher {
      * @param html
      */
     public void loadData(String html) {
+        bridge.clear();
         webView.loadDataWithBaseURL(
                 "http://nada", html, "text/html", "utf8", "");
     }
@@ -144,6 +199,7 @@ public class Dispatcher {
      * @param file
      */
     public void loadFile(String file) {
+        bridge.clear();
         webView.loadUrl(getAbsoluteUrl(file));
     }
 
@@ -163,6 +219,14 @@ public class Dispatcher {
         return webView;
     }
 
+    /**
+     * Returns the bridge that calls Javascript functions in the
+     * WebView's pages.
+     */
+    public JsBridge getBridge() {
+        return bridge;
+    }
+
     /**
      * Returns the Dispatcher's Activity
      */
@@ -178,6 +242,18 @@ public class Dispatcher {
      */
     private class AppWebViewClient extends WebViewClient {
 
+        @Override
+        public void onPageFinished(WebView view, String url) {
+            synchronized (Dispatcher.this) {
+                if (navigationStart != 0) {
+                    Log.d("Dispatcher", currentName + ": " +
+                            (SystemClock.uptimeMillis() - navigationStart) +
+                            " ms to load the page");
+                    navigationStart = 0;
+                }
+            }
+        }
+
         @Override
         public boolean shouldOverrideUrlLoading(WebView view, String url) {
             if (url.startsWith("app://")) {
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+/**
+ * Shows the posts of me/home in a ListView, as an alternative to
+ * rendering the whole stream as HTML (see StreamRenderer).
+ *
+ * The ListView only keeps the rows on the screen, and recycles them
+ * as the user scrolls: there is one kind of row, with its view
+ * holder, for each type of post (a status, a link or a photo), so a
+ * recycled row only needs its text set. What a row shows is worked
+ * out once per post, when the post is added.
+ *
+ * The photo rows' pictures are loaded by a PictureLoader, if the
+ * adapter has one; otherwise their ImageView is left empty, as in the
+ * benchmark.
+ */
+class FeedAdapter extends BaseAdapter {
+
+    static final int TYPE_STATUS = 0;
+    static final int TYPE_LINK = 1;
+    static final int TYPE_PHOTO = 2;
+    private static final int TYPE_COUNT = 3;
+
+    private final Context context;
+
+    // Loads the photo rows' pictures, or null.
+    private final PictureLoader pictures;
+
+    // The posts, in the order they are shown.
+    private final ArrayList<Item> items = new ArrayList<Item>();
+
+    // The ids of the posts, to skip the ones already shown.
+    private final HashSet<String> postIds = new HashSet<String>();
+
+    // The number of row views created, e.g. for the benchmark.
+    private int viewsCreated;
+
+    FeedAdapter(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param context
+     * @param pictures loads the photo rows' pictures, or null to leave
+     *                 them empty
+     */
+    FeedAdapter(Context context, PictureLoader pictures) {
+        this.context = context;
+        this.pictures = pictures;
+    }
+
+    /**
+     * Replaces the posts with the given ones. Call it in the UI
+     * thread.
+     *
+     * @param posts the posts of a me/home response
+     */
+    public void replace(JSONArray posts) {
+        items.clear();
+        postIds.clear();
+        append(posts);
+    }
+
+    /**
+     * Adds a later page of posts after the others. Posts already
+     * shown are skipped. Call it in the UI thread.
+     *
+     * @param posts the posts of a me/home response
+     */
+    public void append(JSONArray posts) {
+        if (posts == null) {
+            return;
+        }
+        for (int i = 0; i < posts.length(); i++) {
+            JSONObject post = posts.optJSONObject(i);
+            if (post != null && postIds.add(post.optString("id"))) {
+                items.add(new Item(post));
+            }
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Returns the created_time of the last post, in milliseconds, or
+     * Long.MAX_VALUE if there are no posts.
+     */
+    public long getOldestTime() {
+        return items.isEmpty()
+                ? Long.MAX_VALUE : items.get(items.size() - 1).createdTime;
+    }
+
+    /**
+     * Returns the number of row views created so far.
+     */
+    int getViewsCreated() {
+        return viewsCreated;
+    }
+
+    public int getCount() {
+        return items.size();
+    }
+
+    public Object getItem(int position) {
+        return items.get(position).post;
+    }
+
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public int getViewTypeCount() {
+        return TYPE_COUNT;
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return items.get(position).type;
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        Item item = items.get(position);
+        ViewHolder holder;
+        if (convertView == null) {
+            holder = new ViewHolder(context, item.type);
+            holder.row.setTag(holder);
+            viewsCreated++;
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+        holder.bind(item, System.currentTimeMillis(), pictures);
+        return holder.row;
+    }
+
+    /**
+     * A post, with what its row shows.
+     */
+    private static class Item {
+        final JSONObject post;
+        final int type;
+        final long createdTime;
+        final String author;
+        final String message;
+        final String title;
+        final String caption;
+        final String description;
+        final String picture;
+        final String counts;
+
+        Item(JSONObject post) {
+            this.post = post;
+            this.createdTime =
+                FeedStore.parseTime(post.optString("created_time"));
+
+            JSONObject from = post.optJSONObject("from");
+            String author = (from != null) ? from.optString("name") : "";
+            JSONObject to = post.optJSONObject("to");
+            JSONArray toData = (to != null) ? to.optJSONArray("data") : null;
+            JSONObject recipient =
+                (toData != null) ? toData.optJSONObject(0) : null;
+            if (recipient != null) {
+                author += " > " + recipient.optString("name");
+            }
+            this.author = author;
+            this.message = post.optString("message");
+
+            this.title = post.optString("name");
+            this.caption = post.optString("caption");
+            this.description = post.optString("description");
+            this.picture = post.optString("picture");
+            if (picture.length() != 0) {
+                this.type = TYPE_PHOTO;
+            } else if (title.length() != 0 || caption.length() != 0
+                    || description.length() != 0
+                    || post.optString("link").length() != 0) {
+                this.type = TYPE_LINK;
+            } else {
+                this.type = TYPE_STATUS;
+            }
+
+            // 'likes' is a count in the old API, an object with a
+            // count in the current one.
+            JSONObject likes = post.optJSONObject("likes");
+            int numLikes = (likes != null) ?
+                likes.optInt("count", 0) : post.optInt("likes", 0);
+            JSONObject comments = post.optJSONObject("comments");
+            JSONArray commentData =
+                (comments != null) ? comments.optJSONArray("data") : null;
+            int numComments = (commentData != null) ? commentData.length() : 0;
+            String counts = "";
+            if (numLikes > 0) {
+                counts += " \u00b7 " + numLikes +
+                        (numLikes == 1 ? " like" : " likes");
+            }
+            if (numComments > 0) {
+                counts += " \u00b7 " + numComments +
+                        (numComments == 1 ? " comment" : " comments");
+            }
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * The views of a row, for one type of post.
+     */
+    private static class ViewHolder {
+        final LinearLayout row;
+        final TextView author;
+        final TextView message;
+        final TextView title;
+        final TextView caption;
+        final TextView description;
+        final ImageView picture;
+        final TextView meta;
+
+        // The age and counts, built again at each bind.
+        final StringBuilder metaText = new StringBuilder();
+
+        ViewHolder(Context context, int type) {
+            row = new LinearLayout(context);
+            row.setOrientation(LinearLayout.VERTICAL);
+            row.setPadding(8, 8, 8, 8);
+            row.setBackgroundColor(0xffffffff);
+
+            author = addText(context, 0xff3b5998, 14);
+            message = addText(context, 0xff000000, 14);
+            if (type == TYPE_STATUS) {
+                title = null;
+                caption = null;
+                description = null;
+                picture = null;
+            } else {
+                title = addText(context, 0xff3b5998, 13);
+                caption = addText(context, 0xff808080, 12);
+                if (type == TYPE_PHOTO) {
+                    picture = new ImageView(context);
+                    row.addView(picture);
+                } else {
+                    picture = null;
+                }
+                description = addText(context, 0xff333333, 12);
+                description.setMaxLines(3);
+            }
+            meta = addText(context, 0xff808080, 12);
+        }
+
+        private TextView addText(Context context, int color, float size) {
+            TextView text = new TextView(context);
+            text.setTextColor(color);
+            text.setTextSize(size);
+            row.addView(text);
+            return text;
+        }
+
+        void bind(Item item, long now, PictureLoader pictures) {
+            author.setText(item.author);
+            setText(message, item.message);
+            if (title != null) {
+                setText(title, item.title);
+                setText(caption, item.caption);
+                setText(description, item.description);
+            }
+            if (picture != null) {
+                if (pictures != null) {
+                    pictures.load(picture, item.picture);
+                } else {
+                    picture.setImageDrawable(null);
+                }
+            }
+            metaText.setLength(0);
+            if (item.createdTime > 0) {
+                StreamRenderer.appendAge(metaText, item.createdTime, now);
+            }
+            metaText.append(item.counts);
+            meta.setText(metaText.toString());
+        }
+
+        private static void setText(TextView view, String text) {
+            view.setText(text);
+            view.setVisibility(
+                    (text.length() != 0) ? View.VISIBLE : View.GONE);
+        }
+    }
+}
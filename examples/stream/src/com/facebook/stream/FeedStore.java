@@ -0,0 +1,472 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.ParsePosition;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Local store of the stream, replacing the single cache.txt copy of
+ * the last me/home response.
+ *
+ * Each post is kept in its own file, so that merging a page or
+ * updating a post only writes the posts that changed. An index of
+ * the posts (id, created_time and size), newest first, is kept in
+ * memory and in its own file. The oldest posts are dropped once the
+ * store holds more than MAX_POSTS posts or MAX_BYTES bytes.
+ *
+ * All file access happens in FileIO's background thread; listeners
+ * are called in that thread too.
+ */
+class FeedStore {
+
+    static final int MAX_POSTS = 300;
+    static final int MAX_BYTES = 1024 * 1024;
+
+    private static final String INDEX_FILE = "feed_index.json";
+    private static final String POST_FILE_PREFIX = "feed_post_";
+    private static final String LEGACY_CACHE_FILE = "cache.txt";
+
+    private static FeedStore instance;
+
+    private final Context context;
+
+    // The stored posts, newest first, and the same by id. Loaded
+    // from the index file on first use. Only used in FileIO's
+    // thread.
+    private ArrayList<Entry> index;
+    private HashMap<String, Entry> entries;
+
+    /**
+     * Called with posts read from the store.
+     */
+    interface LoadListener {
+
+        /**
+         * @param data a me/home like object: the posts are in 'data',
+         *             newest first
+         */
+        public void onLoaded(JSONObject data);
+    }
+
+    /**
+     * Changes a stored post, see update().
+     */
+    interface Updater {
+
+        /**
+         * @param post the stored post, to change in place
+         * @throws JSONException
+         */
+        public void update(JSONObject post) throws JSONException;
+    }
+
+    /**
+     * Use getInstance() rather than a store of your own, except in
+     * tests: two stores must not share the same files.
+     *
+     * @param context where the posts are stored
+     */
+    FeedStore(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Returns the process' store.
+     *
+     * @param context
+     * @return
+     */
+    public static synchronized FeedStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new FeedStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the newest posts in the background.
+     *
+     * @param count the maximum number of posts to read
+     * @param listener
+     */
+    public void loadNewest(int count, LoadListener listener) {
+        loadOlder(Long.MAX_VALUE, count, listener);
+    }
+
+    /**
+     * Reads the newest posts created before the given time in the
+     * background, e.g. to show older posts without a request.
+     *
+     * @param before the time, in milliseconds
+     * @param count the maximum number of posts to read
+     * @param listener
+     */
+    public void loadOlder(final long before, final int count,
+            final LoadListener listener) {
+        FileIO.execute(new Runnable() {
+            public void run() {
+                loadIndex();
+                JSONArray posts = new JSONArray();
+                ArrayList<Entry> missing = new ArrayList<Entry>();
+                for (int i = 0; i < index.size() && posts.length() < count;
+                        i++) {
+                    Entry entry = index.get(i);
+                    if (entry.createdTime >= before) {
+                        continue;
+                    }
+                    try {
+                        posts.put(new JSONObject(
+                                FileIO.read(context, getFileName(entry.id))));
+                    } catch (IOException e) {
+                        missing.add(entry);
+                    } catch (JSONException e) {
+                        missing.add(entry);
+                    }
+                }
+                if (!missing.isEmpty()) {
+                    Log.w("FeedStore", "Dropping " + missing.size() +
+                            " unreadable posts");
+                    for (Entry entry : missing) {
+                        remove(entry);
+                    }
+                    writeIndex();
+                }
+                JSONObject data = new JSONObject();
+                try {
+                    data.put("data", posts);
+                } catch (JSONException e) {
+                    // can't happen: the key isn't null.
+                }
+                listener.onLoaded(data);
+            }
+        });
+    }
+
+    /**
+     * Adds new posts and updates the stored copy of known posts
+     * (e.g. their likes and comments), in the background.
+     *
+     * @param posts the posts of a me/home response
+     */
+    public void merge(final JSONArray posts) {
+        if (posts == null) {
+            return;
+        }
+        FileIO.execute(new Runnable() {
+            public void run() {
+                loadIndex();
+                boolean changed = false;
+                try {
+                    for (int i = 0; i < posts.length(); i++) {
+                        JSONObject post = posts.optJSONObject(i);
+                        if (post != null && store(post)) {
+                            changed = true;
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e("FeedStore", "Could not store post: " +
+                            e.getMessage());
+                }
+                if (changed) {
+                    Collections.sort(index, NEWEST_FIRST);
+                    trim();
+                    writeIndex();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stores a single new or updated post, in the background.
+     *
+     * @param post
+     */
+    public void put(JSONObject post) {
+        JSONArray posts = new JSONArray();
+        posts.put(post);
+        merge(posts);
+    }
+
+    /**
+     * Changes a stored post in the background, e.g. once a like or a
+     * comment on it has been posted. Posts that aren't stored are
+     * left alone.
+     *
+     * @param postId
+     * @param updater called in the background thread with the post
+     */
+    public void update(final String postId, final Updater updater) {
+        FileIO.execute(new Runnable() {
+            public void run() {
+                loadIndex();
+                if (!entries.containsKey(postId)) {
+                    return;
+                }
+                try {
+                    JSONObject post = new JSONObject(
+                            FileIO.read(context, getFileName(postId)));
+                    updater.update(post);
+                    put(post);
+                } catch (IOException e) {
+                    Log.e("FeedStore", "Could not update post: " +
+                            e.getMessage());
+                } catch (JSONException e) {
+                    Log.e("FeedStore", "Could not update post: " +
+                            e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes all the stored posts, e.g. on logout.
+     */
+    public void clear() {
+        FileIO.execute(new Runnable() {
+            public void run() {
+                loadIndex();
+                for (Entry entry : new ArrayList<Entry>(index)) {
+                    remove(entry);
+                }
+                context.deleteFile(INDEX_FILE);
+            }
+        });
+    }
+
+    /**
+     * Writes a post if it is new or has changed.
+     *
+     * @param post
+     * @return true if the post was written
+     * @throws IOException
+     */
+    private boolean store(JSONObject post) throws IOException {
+        String id = post.optString("id");
+        if (id.length() == 0) {
+            return false;
+        }
+        String json = post.toString();
+        Entry entry = entries.get(id);
+        if (entry != null && entry.size == json.length()
+                && entry.hash == json.hashCode()) {
+            return false;
+        }
+        // only the index is synced: a post lost in a crash is
+        // dropped as unreadable, or fetched again.
+        FileIO.write(context, json, getFileName(id), false);
+        if (entry == null) {
+            entry = new Entry(id, parseTime(post.optString("created_time")));
+            entries.put(id, entry);
+            index.add(entry);
+        }
+        entry.size = json.length();
+        entry.hash = json.hashCode();
+        return true;
+    }
+
+    /**
+     * Drops the oldest posts until the store is within its bounds.
+     */
+    private void trim() {
+        long bytes = 0;
+        for (Entry entry : index) {
+            bytes += entry.size;
+        }
+        while (!index.isEmpty()
+                && (index.size() > MAX_POSTS || bytes > MAX_BYTES)) {
+            Entry oldest = index.get(index.size() - 1);
+            bytes -= oldest.size;
+            remove(oldest);
+        }
+    }
+
+    private void remove(Entry entry) {
+        index.remove(entry);
+        entries.remove(entry.id);
+        context.deleteFile(getFileName(entry.id));
+    }
+
+    /**
+     * Reads the index file the first time the store is used. Also
+     * deletes the files of posts that aren't in the index, the
+     * temporary files of writes that were interrupted, and the
+     * cache.txt file of older versions. If the index file can't be
+     * read or parsed, it is rebuilt from the post files instead, so
+     * that a read error doesn't lose the posts.
+     */
+    private void loadIndex() {
+        if (index != null) {
+            return;
+        }
+        index = new ArrayList<Entry>();
+        entries = new HashMap<String, Entry>();
+        try {
+            JSONArray json = new JSONArray(FileIO.read(context, INDEX_FILE));
+            for (int i = 0; i < json.length(); i++) {
+                Entry entry = Entry.fromJson(json.getJSONObject(i));
+                if (!entries.containsKey(entry.id)) {
+                    entries.put(entry.id, entry);
+                    index.add(entry);
+                }
+            }
+            Collections.sort(index, NEWEST_FIRST);
+        } catch (FileNotFoundException e) {
+            // nothing stored yet.
+        } catch (IOException e) {
+            Log.e("FeedStore", "Could not read index: " + e.getMessage());
+            rebuildIndex();
+        } catch (JSONException e) {
+            Log.e("FeedStore", "Invalid index: " + e.getMessage());
+            rebuildIndex();
+        }
+
+        String[] files = context.fileList();
+        if (files != null) {
+            for (String file : files) {
+                // a post's temporary file isn't one of its ids either.
+                if (file.startsWith(POST_FILE_PREFIX) && !entries.containsKey(
+                        file.substring(POST_FILE_PREFIX.length()))) {
+                    context.deleteFile(file);
+                }
+            }
+        }
+        context.deleteFile(INDEX_FILE + FileIO.TEMP_SUFFIX);
+        context.deleteFile(LEGACY_CACHE_FILE);
+    }
+
+    /**
+     * Indexes the post files that can be read, newest first. The
+     * temporary files of interrupted writes are skipped.
+     */
+    private void rebuildIndex() {
+        index.clear();
+        entries.clear();
+        String[] files = context.fileList();
+        if (files == null) {
+            return;
+        }
+        for (String file : files) {
+            if (!file.startsWith(POST_FILE_PREFIX)
+                    || file.endsWith(FileIO.TEMP_SUFFIX)) {
+                continue;
+            }
+            try {
+                String json = FileIO.read(context, file);
+                JSONObject post = new JSONObject(json);
+                Entry entry = new Entry(
+                        file.substring(POST_FILE_PREFIX.length()),
+                        parseTime(post.optString("created_time")));
+                entry.size = json.length();
+                entry.hash = json.hashCode();
+                entries.put(entry.id, entry);
+                index.add(entry);
+            } catch (IOException e) {
+                Log.w("FeedStore", "Could not read " + file);
+            } catch (JSONException e) {
+                Log.w("FeedStore", "Invalid post in " + file);
+            }
+        }
+        Collections.sort(index, NEWEST_FIRST);
+    }
+
+    private void writeIndex() {
+        JSONArray json = new JSONArray();
+        try {
+            for (Entry entry : index) {
+                json.put(entry.toJson());
+            }
+            FileIO.write(context, json.toString(), INDEX_FILE);
+        } catch (JSONException e) {
+            Log.e("FeedStore", "Could not write index: " + e.getMessage());
+        } catch (IOException e) {
+            Log.e("FeedStore", "Could not write index: " + e.getMessage());
+        }
+    }
+
+    private static String getFileName(String postId) {
+        return POST_FILE_PREFIX + postId;
+    }
+
+    /**
+     * Parses a created_time value.
+     *
+     * @param time
+     * @return the time in milliseconds, or 0 if invalid
+     */
+    static long parseTime(String time) {
+        Date date = StreamRenderer.getDateFormat().parse(
+                time, new ParsePosition(0));
+        return (date != null) ? date.getTime() : 0;
+    }
+
+    private static final Comparator<Entry> NEWEST_FIRST =
+        new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return (a.createdTime < b.createdTime) ? 1
+                        : (a.createdTime > b.createdTime) ? -1 : 0;
+            }
+        };
+
+    /**
+     * An index entry: what the store knows about a post without
+     * reading it.
+     */
+    private static class Entry {
+        final String id;
+        final long createdTime;
+        // The length and hash of the stored json, to tell if a post
+        // has changed.
+        int size;
+        int hash;
+
+        Entry(String id, long createdTime) {
+            this.id = id;
+            this.createdTime = createdTime;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("created_time", createdTime);
+            json.put("size", size);
+            json.put("hash", hash);
+            return json;
+        }
+
+        static Entry fromJson(JSONObject json) throws JSONException {
+            Entry entry = new Entry(json.getString("id"),
+                    json.getLong("created_time"));
+            entry.size = json.optInt("size");
+            entry.hash = json.optInt("hash");
+            return entry;
+        }
+    }
+}
@@ -16,61 +16,136 @@
 
 package com.facebook.stream;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import android.app.Activity;
+import android.content.Context;
 
 /**
- * Helpers for doing basic file IO.
+ * Helpers for doing basic file IO in the app's files directory.
+ * 
+ * Files are written as UTF-8, to a temporary file that is then
+ * renamed over the old one, so that a crash never leaves a partly
+ * written file. Only writes that ask for it are synced to the disk
+ * before the rename: a sync costs a disk flush, so a series of
+ * writes should only sync the one that makes the others visible,
+ * e.g. an index. execute() runs work in a single background thread,
+ * in the order it is queued, e.g. a series of reads and writes.
  * 
  * @author yariv
  *
  */
 public class FileIO {
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Files at least this large are memory mapped instead of read.
+    private static final int MAP_THRESHOLD = 256 * 1024;
+
+    // The suffix of the file a write goes to before it is renamed.
+    static final String TEMP_SUFFIX = ".tmp";
+
+    // Runs all the async file IO, in order.
+    private static final ExecutorService executor =
+        Executors.newSingleThreadExecutor();
+
+    /**
+     * Write the data to the file indicate by fileName, and sync it to
+     * the disk. The file is created if it doesn't exist, and replaced
+     * at once if it does.
+     * 
+     * @param context
+     * @param data
+     * @param fileName
+     * @throws IOException
+     */
+    public static void write(
+            Context context, String data, String fileName)
+            throws IOException {
+        write(context, data, fileName, true);
+    }
+
     /**
-     * Write the data to the file indicate by fileName. The file is created
-     * if it doesn't exist.
+     * Write the data to the file indicate by fileName, as above.
      * 
-     * @param activity
+     * @param context
      * @param data
      * @param fileName
+     * @param sync whether to sync the data to the disk before the file
+     *             replaces the old one
      * @throws IOException
      */
     public static void write(
-            Activity activity, String data, String fileName)
+            Context context, String data, String fileName, boolean sync)
             throws IOException {
-        FileOutputStream fo = activity.openFileOutput(fileName, 0);
-        BufferedWriter bf = new BufferedWriter(new FileWriter(fo.getFD()));
-        bf.write(data);
-        bf.flush();
-        bf.close();
+        File file = context.getFileStreamPath(fileName);
+        File temp = context.getFileStreamPath(fileName + TEMP_SUFFIX);
+        FileOutputStream fo = new FileOutputStream(temp);
+        try {
+            fo.write(data.getBytes("UTF-8"));
+            if (sync) {
+                fo.getFD().sync();
+            }
+        } catch (IOException e) {
+            fo.close();
+            temp.delete();
+            throw e;
+        }
+        fo.close();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
     }
 
     /**
      * Read the contents of the file indicated by fileName
      * 
-     * @param activity
+     * @param context
      * @param fileName
      * @return the contents
      * @throws IOException
      */
-    public static String read(Activity activity, String fileName) 
+    public static String read(Context context, String fileName) 
             throws IOException {
-        FileInputStream is = activity.openFileInput(fileName);
-        BufferedReader br = new BufferedReader(new InputStreamReader(is));
-        StringBuilder sb = new StringBuilder();
-        while (br.ready()) {
-            String line = br.readLine();
-            sb.append(line);
+        File file = context.getFileStreamPath(fileName);
+        FileInputStream is = new FileInputStream(file);
+        try {
+            FileChannel channel = is.getChannel();
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                MappedByteBuffer buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, size);
+                return UTF_8.decode(buffer).toString();
+            }
+            byte[] bytes = new byte[(int) size];
+            int length = 0;
+            int n;
+            while (length < bytes.length
+                    && (n = is.read(bytes, length, bytes.length - length))
+                        != -1) {
+                length += n;
+            }
+            return new String(bytes, 0, length, "UTF-8");
+        } finally {
+            is.close();
         }
-        String data = sb.toString();
-        return data;
+    }
+
+    /**
+     * Runs a task in the file IO thread, after the reads and writes
+     * already queued.
+     * 
+     * @param task
+     */
+    public static void execute(Runnable task) {
+        executor.execute(task);
     }
 }
@@ -31,12 +31,35 @@ public abstract class Handler {
     // The app's dispatcher.
     protected Dispatcher dispatcher;
 
+    /**
+     * Creates the handler for a page; registered with the dispatcher
+     * under the page's name.
+     */
+    public interface Factory {
+        public Handler create();
+    }
+
+    /**
+     * The dispatcher calls this method once, when the Handler
+     * is created. Handlers are reused for later visits of their
+     * page, so one-time setup goes here.
+     */
+    public void onCreate() {
+    }
+
     /**
      * The dispatcher calls this method when the Handler
      * is expected to render its page.
      */
     public abstract void go();
 
+    /**
+     * The dispatcher calls this method when another Handler
+     * is about to render its page in place of this one.
+     */
+    public void onLeave() {
+    }
+
     /**
      * A setter for the dispatcher.
      * 
@@ -61,6 +84,13 @@ public abstract class Handler {
         return dispatcher.getWebView();
     }
 
+    /**
+     * Returns the dispatcher's Javascript bridge
+     */
+    public JsBridge getBridge() {
+        return dispatcher.getBridge();
+    }
+
     /**
      * Returns the dispatcher's Activity
      */
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+import org.json.JSONArray;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.WebView;
+
+/**
+ * Calls Javascript functions in the WebView's page.
+ *
+ * Calls are queued, with their arguments encoded as JSON, and sent
+ * at most once per frame: the WebView is only asked to run the
+ * page's applyUpdates() function, which takes all the queued calls
+ * through the "bridge" Javascript interface and runs them in order.
+ * The payload thus never goes through a javascript: url, and many
+ * updates cost one evaluation.
+ *
+ * The time calls wait in the queue and the time the page takes to
+ * run them are logged every REPORT_INTERVAL batches.
+ */
+class JsBridge {
+
+    // The minimum time between two batches.
+    private static final long FRAME_MILLIS = 16;
+
+    // How long to wait for the page to take a batch before asking
+    // again, e.g. if it was still loading.
+    private static final long RESEND_MILLIS = 500;
+
+    // The number of batches between two latency reports.
+    private static final int REPORT_INTERVAL = 100;
+
+    private final WebView webView;
+
+    // Runs the flushes in the UI thread.
+    private final android.os.Handler uiHandler =
+        new android.os.Handler(Looper.getMainLooper());
+
+    // The queued calls, as [function, [arguments]] arrays, and the
+    // time the oldest was queued.
+    private JSONArray calls = new JSONArray();
+    private long oldestCallTime;
+
+    // Is a flush scheduled, and has the page been asked to take the
+    // calls since it last took them?
+    private boolean scheduled;
+    private boolean flushed;
+    private long lastFlushTime;
+
+    // Latency stats since the last report.
+    private int batches;
+    private int totalCalls;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+    private long totalApplyMillis;
+
+    JsBridge(WebView webView) {
+        this.webView = webView;
+        webView.addJavascriptInterface(this, "bridge");
+    }
+
+    /**
+     * Queues a call of a Javascript function. May be called from any
+     * thread.
+     *
+     * @param function the name of a global function of the page
+     * @param args the arguments: strings, numbers, booleans or
+     *             org.json objects
+     */
+    public synchronized void call(String function, Object... args) {
+        JSONArray arguments = new JSONArray();
+        for (Object arg : args) {
+            arguments.put(arg);
+        }
+        JSONArray call = new JSONArray();
+        call.put(function);
+        call.put(arguments);
+        if (calls.length() == 0) {
+            oldestCallTime = SystemClock.uptimeMillis();
+        }
+        calls.put(call);
+        schedule();
+    }
+
+    /**
+     * Drops the queued calls, e.g. when a new page is loaded.
+     */
+    public synchronized void clear() {
+        calls = new JSONArray();
+        flushed = false;
+    }
+
+    /**
+     * Called by the page to take the queued calls.
+     *
+     * @return the calls, as a JSON array of [function, [arguments]]
+     */
+    public synchronized String takeUpdates() {
+        String json = calls.toString();
+        if (calls.length() > 0) {
+            long wait = SystemClock.uptimeMillis() - oldestCallTime;
+            totalWaitMillis += wait;
+            maxWaitMillis = Math.max(maxWaitMillis, wait);
+            totalCalls += calls.length();
+            calls = new JSONArray();
+        }
+        // calls queued from now on go out in the next frame, not
+        // with the resend.
+        flushed = false;
+        scheduled = false;
+        uiHandler.removeCallbacks(flushRunnable);
+        return json;
+    }
+
+    /**
+     * Called by the page once it has run a batch of calls.
+     *
+     * @param numCalls
+     * @param applyMillis the time it took, in milliseconds
+     */
+    public synchronized void onApplied(int numCalls, long applyMillis) {
+        if (numCalls == 0) {
+            return;
+        }
+        batches++;
+        totalApplyMillis += applyMillis;
+        if (batches == REPORT_INTERVAL) {
+            Log.i("JsBridge", batches + " batches, " + totalCalls +
+                    " calls: " + (totalWaitMillis / batches) +
+                    " ms average wait, " + maxWaitMillis + " ms max wait, " +
+                    (totalApplyMillis / batches) + " ms average apply");
+            batches = 0;
+            totalCalls = 0;
+            totalWaitMillis = 0;
+            maxWaitMillis = 0;
+            totalApplyMillis = 0;
+        }
+    }
+
+    /**
+     * Schedules a flush for the next frame, unless one is scheduled.
+     */
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        long now = SystemClock.uptimeMillis();
+        long wait = flushed
+                ? lastFlushTime + RESEND_MILLIS - now
+                : lastFlushTime + FRAME_MILLIS - now;
+        uiHandler.postDelayed(flushRunnable, Math.max(0, wait));
+    }
+
+    private final Runnable flushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Asks the page to take the queued calls. Called in the UI thread.
+     */
+    private void flush() {
+        synchronized (this) {
+            scheduled = false;
+            if (calls.length() == 0) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            if (flushed && now < lastFlushTime + RESEND_MILLIS) {
+                // the page hasn't taken the last batch yet
+                schedule();
+                return;
+            }
+            flushed = true;
+            lastFlushTime = now;
+            // ask again if the page doesn't take them
+            schedule();
+        }
+        webView.loadUrl("javascript:applyUpdates()");
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.AbsListView;
+import android.widget.ListView;
+import android.widget.LinearLayout.LayoutParams;
+
+import com.facebook.topface.FacebookError;
+import com.facebook.topface.Util;
+import com.facebook.topface.AsyncFacebookRunner.RequestListener;
+
+/**
+ * A handler for the stream shown in a native ListView (see
+ * FeedAdapter) instead of the WebView. The stored posts are shown
+ * first, then replaced by the fetched stream; older pages are
+ * appended as the user scrolls near the end of the list.
+ *
+ * Run it with:
+ * adb shell am start -n com.facebook.stream/.App --ez list true
+ */
+public class ListStreamHandler extends Handler {
+
+    // The number of posts requested or read from the store at a time
+    private static final int PAGE_LIMIT = 25;
+
+    // How close to the end of the list the next page is loaded
+    private static final int PRELOAD_POSTS = 5;
+
+    // The local copy of the stream
+    private FeedStore store;
+
+    private ListView listView;
+    private FeedAdapter adapter;
+
+    // Is a page of older posts being loaded?
+    private boolean loadingMore;
+
+    // Has the end of the stream been reached?
+    private boolean noMorePosts;
+
+    public void onCreate() {
+        store = FeedStore.getInstance(getActivity());
+        adapter = new FeedAdapter(getActivity(), new PictureLoader());
+        listView = new ListView(getActivity());
+        listView.setAdapter(adapter);
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            public void onScroll(AbsListView view, int firstVisibleItem,
+                    int visibleItemCount, int totalItemCount) {
+                if (totalItemCount > 0 && firstVisibleItem + visibleItemCount
+                        >= totalItemCount - PRELOAD_POSTS) {
+                    loadMore();
+                }
+            }
+
+            public void onScrollStateChanged(AbsListView view,
+                    int scrollState) {
+            }
+        });
+    }
+
+    /**
+     * Called by the dispatcher to show the stream.
+     */
+    public void go() {
+        synchronized (this) {
+            loadingMore = false;
+            noMorePosts = false;
+        }
+        dispatcher.hideWebView();
+        dispatcher.layout.addView(listView, new LayoutParams(
+                LayoutParams.FILL_PARENT, LayoutParams.FILL_PARENT));
+
+        store.loadNewest(PAGE_LIMIT, new FeedStore.LoadListener() {
+            public void onLoaded(JSONObject data) {
+                replace(data.optJSONArray("data"));
+                request(new Bundle(), new FetchRequestListener());
+            }
+        });
+    }
+
+    /**
+     * Called by the dispatcher when another page replaces the stream.
+     */
+    public void onLeave() {
+        dispatcher.layout.removeView(listView);
+        dispatcher.showWebView();
+    }
+
+    /**
+     * Requests a page of me/home.
+     *
+     * @param params the paging parameters, if any
+     * @param listener
+     */
+    private void request(Bundle params, RequestListener listener) {
+        params.putString("limit", String.valueOf(PAGE_LIMIT));
+        Session session = Session.get();
+        if (session == null) {
+            listener.onFacebookError(new FacebookError("Not logged in"),
+                    null);
+            return;
+        }
+        session.getRunner().request("me/home", params, listener, null);
+    }
+
+    /**
+     * Appends the next page of older posts, from the store if it has
+     * them, otherwise from the API.
+     */
+    private void loadMore() {
+        synchronized (this) {
+            if (loadingMore || noMorePosts) {
+                return;
+            }
+            loadingMore = true;
+        }
+        final long oldest = adapter.getOldestTime();
+        store.loadOlder(oldest, PAGE_LIMIT, new FeedStore.LoadListener() {
+            public void onLoaded(JSONObject data) {
+                JSONArray posts = data.optJSONArray("data");
+                if (posts != null && posts.length() > 0) {
+                    append(posts);
+                    return;
+                }
+                Bundle params = new Bundle();
+                params.putString("until", String.valueOf(oldest / 1000));
+                request(params, new MoreRequestListener());
+            }
+        });
+    }
+
+    private synchronized void finishLoadingMore() {
+        loadingMore = false;
+    }
+
+    private synchronized void setNoMorePosts() {
+        noMorePosts = true;
+    }
+
+    private void replace(final JSONArray posts) {
+        getActivity().runOnUiThread(new Runnable() {
+            public void run() {
+                adapter.replace(posts);
+            }
+        });
+    }
+
+    private void append(final JSONArray posts) {
+        getActivity().runOnUiThread(new Runnable() {
+            public void run() {
+                adapter.append(posts);
+                finishLoadingMore();
+            }
+        });
+    }
+
+    /**
+     * Shows the fetched stream in place of the stored posts.
+     */
+    private class FetchRequestListener implements RequestListener {
+
+        public void onComplete(String response, final Object state) {
+            try {
+                JSONObject obj = Util.parseJson(response);
+                JSONArray posts = obj.optJSONArray("data");
+                store.merge(posts);
+                replace(posts);
+            } catch (JSONException e) {
+                Log.e("stream", "JSON Error:" + e.getMessage());
+            } catch (FacebookError e) {
+                Log.e("stream", "Facebook Error:" + e.getMessage());
+            }
+        }
+
+        public void onFacebookError(FacebookError e, final Object state) {
+            Log.e("stream", "Facebook Error:" + e.getMessage());
+        }
+
+        public void onFileNotFoundException(FileNotFoundException e,
+                                            final Object state) {
+            Log.e("stream", "Resource not found:" + e.getMessage());
+        }
+
+        public void onIOException(IOException e, final Object state) {
+            Log.e("stream", "Network Error:" + e.getMessage());
+        }
+
+        public void onMalformedURLException(MalformedURLException e,
+                                            final Object state) {
+            Log.e("stream", "Invalid URL:" + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends a page of older posts.
+     */
+    private class MoreRequestListener extends FetchRequestListener {
+
+        public void onComplete(String response, final Object state) {
+            try {
+                JSONObject obj = Util.parseJson(response);
+                JSONArray posts = obj.optJSONArray("data");
+                if (posts == null || posts.length() == 0) {
+                    setNoMorePosts();
+                    finishLoadingMore();
+                    return;
+                }
+                store.merge(posts);
+                append(posts);
+            } catch (JSONException e) {
+                Log.e("stream", "JSON Error:" + e.getMessage());
+                finishLoadingMore();
+            } catch (FacebookError e) {
+                Log.e("stream", "Facebook Error:" + e.getMessage());
+                finishLoadingMore();
+            }
+        }
+
+        public void onFacebookError(FacebookError e, final Object state) {
+            super.onFacebookError(e, state);
+            finishLoadingMore();
+        }
+
+        public void onFileNotFoundException(FileNotFoundException e,
+                                            final Object state) {
+            super.onFileNotFoundException(e, state);
+            finishLoadingMore();
+        }
+
+        public void onIOException(IOException e, final Object state) {
+            super.onIOException(e, state);
+            finishLoadingMore();
+        }
+
+        public void onMalformedURLException(MalformedURLException e,
+                                            final Object state) {
+            super.onMalformedURLException(e, state);
+            finishLoadingMore();
+        }
+    }
+}
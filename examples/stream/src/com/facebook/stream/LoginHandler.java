@@ -40,12 +40,18 @@ public class LoginHandler extends Handler {
     private static String[] PERMISSIONS = 
         new String[] { "offline_access", "read_stream", "publish_stream" };
 
+    // The functions exported to the page
+    private JsHandler jsHandler;
+
+    public void onCreate() {
+        jsHandler = new JsHandler();
+    }
+
     /**
      * Render the Login page.
      */
     public void go() {
-        dispatcher.getWebView().addJavascriptInterface(
-                new JsHandler(), "app");
+        dispatcher.addJavascriptInterface(jsHandler, "app");
         dispatcher.loadFile("login.html");
     }
 
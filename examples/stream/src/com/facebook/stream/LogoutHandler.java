@@ -22,8 +22,6 @@ import java.net.MalformedURLException;
 
 import android.util.Log;
 
-import com.facebook.topface.AsyncFacebookRunner;
-import com.facebook.topface.Facebook;
 import com.facebook.topface.FacebookError;
 import com.facebook.topface.AsyncFacebookRunner.RequestListener;
 
@@ -40,11 +38,16 @@ public class LogoutHandler extends Handler {
      * Called by the dispatcher when the user clicks 'logout'.
      */
     public void go() {
-        Facebook fb = Session.restore(getActivity()).getFb();
+        Session session = Session.get();
 
-        // clear the local session data
+        // clear the local session data and the stored stream
         Session.clearSavedSession(getActivity());
-        new AsyncFacebookRunner(fb).logout(getActivity(), 
+        FeedStore.getInstance(getActivity()).clear();
+        if (session == null) {
+            dispatcher.runHandler("login");
+            return;
+        }
+        session.getRunner().logout(getActivity(), 
                 new RequestListener() {
 
             public void onComplete(String response, final Object state) {
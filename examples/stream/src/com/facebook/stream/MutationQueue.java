@@ -0,0 +1,575 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.facebook.topface.FacebookError;
+import com.facebook.topface.Util;
+import com.facebook.topface.AsyncFacebookRunner.RequestListener;
+
+/**
+ * Sends the user's likes and comments in the background, after the
+ * page has already been updated.
+ *
+ * Mutations wait BATCH_DELAY_MILLIS before being sent, and all the
+ * pending ones are then sent as a single Graph API batch request.
+ * Likes are kept as the state wanted for each post, so liking and
+ * unliking a post before the batch is sent sends nothing, and only
+ * one batch is sent at a time. When a mutation succeeds, the stored
+ * copy of the post is updated; when it fails, the listener is told so
+ * that the page can be rolled back.
+ *
+ * There is one queue per process, so that it doesn't keep the
+ * Activity of the page it was used by: the page sets itself as the
+ * listener while it is shown.
+ */
+class MutationQueue {
+
+    // How long mutations wait for others to be batched with them.
+    private static final long BATCH_DELAY_MILLIS = 500;
+
+    // The most requests the API accepts in one batch.
+    private static final int MAX_BATCH = 50;
+
+    // Schedules the batches, for all the queues.
+    private static final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor();
+
+    // The process' queue.
+    private static MutationQueue instance;
+
+    private final FeedStore store;
+
+    // The page shown, or null if there is none.
+    private Listener listener;
+
+    // The like state of each post the user has liked or unliked, in
+    // the order they were first changed.
+    private final LinkedHashMap<String, LikeState> likes =
+        new LinkedHashMap<String, LikeState>();
+
+    // Comments waiting to be sent.
+    private ArrayList<Comment> comments = new ArrayList<Comment>();
+
+    // Is a batch scheduled, or being sent?
+    private boolean scheduled;
+    private boolean sending;
+
+    // Used to give each comment a unique id on the page.
+    private int nextCommentId;
+
+    /**
+     * Told of the outcome of the mutations. Called in a background
+     * thread.
+     */
+    interface Listener {
+
+        /**
+         * Called when a like or unlike has failed: the post should be
+         * shown as liked or not again.
+         *
+         * @param postId
+         * @param liked the post's actual state
+         */
+        public void onLikeFailed(String postId, boolean liked);
+
+        /**
+         * Called when a comment has been posted.
+         *
+         * @param postId
+         * @param localId the id given by postComment
+         * @param commentId the comment's id in the API
+         */
+        public void onCommentPosted(String postId, String localId,
+                String commentId);
+
+        /**
+         * Called when a comment could not be posted: it should be
+         * removed from the page.
+         *
+         * @param postId
+         * @param localId the id given by postComment
+         * @param message
+         */
+        public void onCommentFailed(String postId, String localId,
+                String message);
+    }
+
+    MutationQueue(FeedStore store) {
+        this.store = store;
+        // the mutations are the user's: drop them when the user
+        // logs out.
+        Session.addListener(new Session.Listener() {
+            public void onSessionChanged(Session session) {
+                if (session == null) {
+                    clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the process' queue.
+     *
+     * @param context
+     * @return
+     */
+    public static synchronized MutationQueue getInstance(Context context) {
+        if (instance == null) {
+            instance = new MutationQueue(FeedStore.getInstance(context));
+        }
+        return instance;
+    }
+
+    /**
+     * Sets the listener told of the outcome of the mutations, in
+     * place of the previous one.
+     *
+     * @param listener
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Removes the listener, if it is still the one set, e.g. when its
+     * page is no longer shown. The outcome of the mutations is then
+     * only stored.
+     *
+     * @param listener
+     */
+    public synchronized void removeListener(Listener listener) {
+        if (this.listener == listener) {
+            this.listener = null;
+        }
+    }
+
+    private synchronized Listener getListener() {
+        return listener;
+    }
+
+    /**
+     * Drops the mutations that haven't been sent.
+     */
+    private synchronized void clear() {
+        likes.clear();
+        comments.clear();
+    }
+
+    /**
+     * Likes or unlikes a post. The page is expected to show the new
+     * state already.
+     *
+     * @param postId
+     * @param liked
+     */
+    public synchronized void like(String postId, boolean liked) {
+        LikeState state = likes.get(postId);
+        if (state == null) {
+            // the post was shown in the other state
+            state = new LikeState(!liked);
+            likes.put(postId, state);
+        }
+        state.wanted = liked;
+        schedule();
+    }
+
+    /**
+     * Posts a comment. The page is expected to show it already, with
+     * the returned id.
+     *
+     * @param postId
+     * @param message
+     * @return an id for the comment on the page
+     */
+    public synchronized String postComment(String postId, String message) {
+        String localId = "pending_comment" + (nextCommentId++);
+        comments.add(new Comment(postId, localId, message, Session.get()));
+        schedule();
+        return localId;
+    }
+
+    /**
+     * Schedules a batch, unless one is already on its way.
+     */
+    private void schedule() {
+        if (scheduled || sending) {
+            return;
+        }
+        scheduled = true;
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                send();
+            }
+        }, BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the pending mutations as one batch request.
+     */
+    private synchronized void send() {
+        scheduled = false;
+        final ArrayList<Object> mutations = new ArrayList<Object>();
+        JSONArray batch = new JSONArray();
+        try {
+            for (String postId : likes.keySet()) {
+                LikeState state = likes.get(postId);
+                if (state.wanted == state.actual
+                        || mutations.size() >= MAX_BATCH) {
+                    continue;
+                }
+                JSONObject request = new JSONObject();
+                request.put("method", state.wanted ? "POST" : "DELETE");
+                request.put("relative_url", postId + "/likes");
+                batch.put(request);
+                mutations.add(new Like(postId, state.wanted));
+            }
+            while (!comments.isEmpty() && mutations.size() < MAX_BATCH) {
+                Comment comment = comments.remove(0);
+                Bundle body = new Bundle();
+                body.putString("message", comment.message);
+                JSONObject request = new JSONObject();
+                request.put("method", "POST");
+                request.put("relative_url", comment.postId + "/comments");
+                request.put("body", Util.encodeUrl(body));
+                batch.put(request);
+                mutations.add(comment);
+            }
+        } catch (JSONException e) {
+            // can't happen: the keys aren't null.
+        }
+        if (mutations.isEmpty()) {
+            return;
+        }
+        sending = true;
+
+        Bundle params = new Bundle();
+        params.putString("batch", batch.toString());
+        BatchRequestListener batchListener =
+            new BatchRequestListener(mutations);
+        Session session = Session.get();
+        if (session == null) {
+            batchListener.onFacebookError(
+                    new FacebookError("Not logged in"), null);
+            return;
+        }
+        session.getRunner().request("", params, "POST", batchListener, null);
+    }
+
+    /**
+     * Records the outcome of a batch, and sends the mutations that
+     * were queued meanwhile.
+     *
+     * @param mutations the mutations that were sent
+     * @param results the response to each mutation, or null if the
+     *                batch failed
+     */
+    private void complete(ArrayList<Object> mutations, JSONArray results) {
+        Listener listener = getListener();
+        for (int i = 0; i < mutations.size(); i++) {
+            JSONObject result = (results != null)
+                    ? results.optJSONObject(i) : null;
+            boolean succeeded = (result != null)
+                    && result.optInt("code") == 200;
+            Object mutation = mutations.get(i);
+            if (mutation instanceof Like) {
+                completeLike((Like) mutation, succeeded);
+            } else {
+                Comment comment = (Comment) mutation;
+                String commentId = null;
+                if (succeeded) {
+                    try {
+                        commentId = new JSONObject(
+                                result.optString("body")).optString("id");
+                    } catch (JSONException e) {
+                        // posted, but the id is unknown.
+                    }
+                    store.update(comment.postId,
+                            new CommentUpdater(comment, commentId));
+                    if (listener != null) {
+                        listener.onCommentPosted(comment.postId,
+                                comment.localId, commentId);
+                    }
+                } else {
+                    Log.w("stream", "Could not post comment on " +
+                            comment.postId);
+                    if (listener != null) {
+                        listener.onCommentFailed(comment.postId,
+                                comment.localId, comment.message);
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            sending = false;
+            if (!comments.isEmpty() || hasPendingLikes()) {
+                schedule();
+            }
+        }
+    }
+
+    private void completeLike(Like like, boolean succeeded) {
+        boolean rollBack = false;
+        synchronized (this) {
+            LikeState state = likes.get(like.postId);
+            if (state == null) {
+                // dropped on logout
+                return;
+            }
+            if (succeeded) {
+                state.actual = like.liked;
+                store.update(like.postId, new LikeUpdater(like.liked));
+            } else if (state.wanted != state.actual) {
+                // the page shows the state that failed; if the user
+                // has toggled back since, it's already right.
+                state.wanted = state.actual;
+                rollBack = true;
+            }
+            if (state.wanted == state.actual) {
+                likes.remove(like.postId);
+            }
+        }
+        if (!succeeded) {
+            Log.w("stream", "Could not like " + like.postId);
+        }
+        Listener listener = getListener();
+        if (rollBack && listener != null) {
+            listener.onLikeFailed(like.postId, !like.liked);
+        }
+    }
+
+    private boolean hasPendingLikes() {
+        for (LikeState state : likes.values()) {
+            if (state.wanted != state.actual) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class LikeState {
+        // The state known to the API, and the one shown on the page.
+        boolean actual;
+        boolean wanted;
+
+        LikeState(boolean actual) {
+            this.actual = actual;
+            this.wanted = actual;
+        }
+    }
+
+    private static class Like {
+        final String postId;
+        final boolean liked;
+
+        Like(String postId, boolean liked) {
+            this.postId = postId;
+            this.liked = liked;
+        }
+    }
+
+    private static class Comment {
+        final String postId;
+        final String localId;
+        final String message;
+        // The author, or null if unknown.
+        final String uid;
+        final String name;
+
+        Comment(String postId, String localId, String message,
+                Session session) {
+            this.postId = postId;
+            this.localId = localId;
+            this.message = message;
+            this.uid = (session != null) ? session.getUid() : null;
+            this.name = (session != null) ? session.getName() : null;
+        }
+    }
+
+    /**
+     * Shows a stored post as liked or not, with its like count
+     * changed accordingly. The page offers to like the posts that
+     * have a 'Like' action.
+     */
+    private static class LikeUpdater implements FeedStore.Updater {
+        private final boolean liked;
+
+        LikeUpdater(boolean liked) {
+            this.liked = liked;
+        }
+
+        public void update(JSONObject post) throws JSONException {
+            JSONArray actions = post.optJSONArray("actions");
+            JSONArray updated = new JSONArray();
+            boolean canLike = false;
+            if (actions != null) {
+                for (int i = 0; i < actions.length(); i++) {
+                    JSONObject action = actions.optJSONObject(i);
+                    if (action == null) {
+                        continue;
+                    }
+                    if (action.optString("name").equals("Like")) {
+                        canLike = true;
+                    } else {
+                        updated.put(action);
+                    }
+                }
+            }
+            if (canLike != liked) {
+                // already stored in that state, e.g. by a refresh
+                return;
+            }
+            if (!liked) {
+                JSONObject like = new JSONObject();
+                like.put("name", "Like");
+                updated.put(like);
+            }
+            post.put("actions", updated);
+
+            // 'likes' is a count in the old API, an object with a
+            // count in the current one.
+            int delta = liked ? 1 : -1;
+            JSONObject likes = post.optJSONObject("likes");
+            if (likes != null) {
+                likes.put("count",
+                        Math.max(0, likes.optInt("count", 0) + delta));
+            } else {
+                post.put("likes",
+                        Math.max(0, post.optInt("likes", 0) + delta));
+            }
+        }
+    }
+
+    /**
+     * Adds a posted comment to a stored post, unless it is already
+     * there.
+     */
+    private static class CommentUpdater implements FeedStore.Updater {
+        private final Comment comment;
+        private final String commentId;
+
+        CommentUpdater(Comment comment, String commentId) {
+            this.comment = comment;
+            this.commentId = commentId;
+        }
+
+        public void update(JSONObject post) throws JSONException {
+            JSONObject comments = post.optJSONObject("comments");
+            if (comments == null) {
+                comments = new JSONObject();
+                post.put("comments", comments);
+            }
+            JSONArray data = comments.optJSONArray("data");
+            if (data == null) {
+                data = new JSONArray();
+                comments.put("data", data);
+            }
+            if (commentId != null) {
+                for (int i = 0; i < data.length(); i++) {
+                    JSONObject stored = data.optJSONObject(i);
+                    if (stored != null
+                            && commentId.equals(stored.optString("id"))) {
+                        return;
+                    }
+                }
+            }
+            JSONObject json = new JSONObject();
+            if (commentId != null) {
+                json.put("id", commentId);
+            }
+            if (comment.uid != null) {
+                JSONObject from = new JSONObject();
+                from.put("id", comment.uid);
+                from.put("name", comment.name);
+                json.put("from", from);
+            }
+            json.put("message", comment.message);
+            data.put(json);
+            if (comments.has("count")) {
+                comments.put("count", comments.optInt("count") + 1);
+            }
+        }
+    }
+
+    /**
+     * Hands the response of each request in the batch to complete(),
+     * or fails the whole batch.
+     */
+    private class BatchRequestListener implements RequestListener {
+
+        private final ArrayList<Object> mutations;
+
+        BatchRequestListener(ArrayList<Object> mutations) {
+            this.mutations = mutations;
+        }
+
+        public void onComplete(String response, final Object state) {
+            JSONArray results = null;
+            try {
+                if (response.startsWith("[")) {
+                    results = new JSONArray(response);
+                } else {
+                    // an error for the whole batch
+                    Util.parseJson(response);
+                }
+            } catch (JSONException e) {
+                Log.e("stream", "JSON Error:" + e.getMessage());
+            } catch (FacebookError e) {
+                Log.e("stream", "Facebook Error:" + e.getMessage());
+            }
+            complete(mutations, results);
+        }
+
+        public void onFacebookError(FacebookError e, final Object state) {
+            Log.e("stream", "Facebook Error:" + e.getMessage());
+            complete(mutations, null);
+        }
+
+        public void onFileNotFoundException(FileNotFoundException e,
+                                            final Object state) {
+            Log.e("stream", "Resource not found:" + e.getMessage());
+            complete(mutations, null);
+        }
+
+        public void onIOException(IOException e, final Object state) {
+            Log.e("stream", "Network Error:" + e.getMessage());
+            complete(mutations, null);
+        }
+
+        public void onMalformedURLException(MalformedURLException e,
+                                            final Object state) {
+            Log.e("stream", "Invalid URL:" + e.getMessage());
+            complete(mutations, null);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * Loads the pictures of the posts shown by FeedAdapter, and keeps the
+ * MAX_CACHED most recently used ones in memory.
+ *
+ * An ImageView shows the last picture asked for it, so a row recycled
+ * for another post before its picture arrived doesn't show it. Call
+ * it in the UI thread.
+ */
+class PictureLoader {
+
+    // The number of pictures kept in memory.
+    private static final int MAX_CACHED = 32;
+
+    // The number of pictures downloaded at a time.
+    private static final int THREADS = 2;
+
+    // The pictures, least recently used first.
+    private final LinkedHashMap<String, Bitmap> cache =
+        new LinkedHashMap<String, Bitmap>(MAX_CACHED, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Bitmap> eldest) {
+                return size() > MAX_CACHED;
+            }
+        };
+
+    // The picture each view should show. Weak, so that the rows the
+    // ListView dropped are not kept.
+    private final WeakHashMap<ImageView, String> wanted =
+        new WeakHashMap<ImageView, String>();
+
+    // The pictures being downloaded.
+    private final HashSet<String> loading = new HashSet<String>();
+
+    private final ExecutorService executor =
+        Executors.newFixedThreadPool(THREADS);
+
+    // Delivers the pictures to the UI thread.
+    private final android.os.Handler handler = new android.os.Handler();
+
+    /**
+     * Shows the picture at the url in the view: right away if it is in
+     * memory, otherwise once it has been downloaded, the view being
+     * cleared meanwhile.
+     *
+     * @param view
+     * @param url
+     */
+    public void load(ImageView view, final String url) {
+        wanted.put(view, url);
+        Bitmap bitmap = cache.get(url);
+        view.setImageBitmap(bitmap);
+        if (bitmap != null || !loading.add(url)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                final Bitmap loaded = download(url);
+                handler.post(new Runnable() {
+                    public void run() {
+                        onLoaded(url, loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Caches a downloaded picture, and shows it in the views that
+     * still want it.
+     *
+     * @param url
+     * @param bitmap null if it could not be downloaded
+     */
+    private void onLoaded(String url, Bitmap bitmap) {
+        loading.remove(url);
+        if (bitmap == null) {
+            return;
+        }
+        cache.put(url, bitmap);
+        for (Map.Entry<ImageView, String> entry : wanted.entrySet()) {
+            if (url.equals(entry.getValue())) {
+                entry.getKey().setImageBitmap(bitmap);
+            }
+        }
+    }
+
+    private static Bitmap download(String url) {
+        try {
+            InputStream in = new URL(url).openStream();
+            try {
+                return BitmapFactory.decodeStream(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e("stream", "Picture Error:" + e.getMessage());
+            return null;
+        } catch (OutOfMemoryError e) {
+            Log.e("stream", "Picture Error: out of memory");
+            return null;
+        }
+    }
+}
@@ -16,15 +16,23 @@
 
 package com.facebook.stream;
 
+import java.util.ArrayList;
+
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 
+import com.facebook.topface.AsyncFacebookRunner;
 import com.facebook.topface.Facebook;
 
 /**
  * A utility class for storing and retrieving Facebook session data.
  * 
+ * The process' session is read from disk once, in a background
+ * thread (see load()), and then kept in memory, so that get() is
+ * cheap and safe to call from any thread. Each session has one
+ * AsyncFacebookRunner, shared by all its requests.
+ * 
  * @author yariv
  */
 public class Session {
@@ -36,12 +44,20 @@ public class Session {
     private static final String NAME = "name";
     private static final String APP_ID = "app_id";
 
+    // The current session, once loaded; guarded by Session.class
     private static Session singleton;
+    private static boolean loaded;
     private static Facebook fbLoggingIn;
 
+    // Told when the session changes; guarded by Session.class
+    private static ArrayList<Listener> listeners = new ArrayList<Listener>();
+
     // The Facebook object
     private Facebook fb;
 
+    // Runs the session's requests
+    private AsyncFacebookRunner runner;
+
     // The user id of the logged in user
     private String uid;
 
@@ -57,10 +73,22 @@ public class Session {
      */
     public Session(Facebook fb, String uid, String name) {
         this.fb = fb;
+        this.runner = new AsyncFacebookRunner(fb);
         this.uid = uid;
         this.name = name;
     }
 
+    /**
+     * Told when the user logs in or out.
+     */
+    public interface Listener {
+
+        /**
+         * @param session the new session, or null if there is none
+         */
+        public void onSessionChanged(Session session);
+    }
+
     /**
      * Returns the Facebook object
      */
@@ -68,6 +96,13 @@ public class Session {
         return fb;
     }
 
+    /**
+     * Returns the runner for the session's requests
+     */
+    public AsyncFacebookRunner getRunner() {
+        return runner;
+    }
+
     /**
      * Returns the session user's id
      */
@@ -98,26 +133,59 @@ public class Session {
         editor.putString(NAME, name);
         editor.putString(APP_ID, fb.getAppId());
         if (editor.commit()) {
-            singleton = this;
+            set(this);
             return true;
         }
         return false;
     }
 
     /**
-     * Loads the session data from disk.
+     * Returns the current session without reading the disk, or null
+     * if there is none or it hasn't been loaded yet.
+     */
+    public static synchronized Session get() {
+        if (singleton != null && !singleton.getFb().isSessionValid()) {
+            return null;
+        }
+        return singleton;
+    }
+
+    /**
+     * Loads the session data from disk in a background thread, the
+     * first time; then calls the listener in that thread with the
+     * session, or null if there is none. If the session is already
+     * loaded, the listener is called right away.
      * 
      * @param context
-     * @return
+     * @param listener
      */
-    public static Session restore(Context context) {
-        if (singleton != null) {
-            if (singleton.getFb().isSessionValid()) {
-                return singleton;
-            } else {
-                return null;
+    public static void load(final Context context, final Listener listener) {
+        synchronized (Session.class) {
+            if (!loaded) {
+                new Thread() {
+                    public void run() {
+                        listener.onSessionChanged(restore(context));
+                    }
+                }.start();
+                return;
             }
         }
+        listener.onSessionChanged(get());
+    }
+
+    /**
+     * Loads the session data from disk, unless it is already loaded.
+     * Prefer load() or get() in the UI thread and in Javascript
+     * calls.
+     * 
+     * @param context
+     * @return
+     */
+    public static synchronized Session restore(Context context) {
+        if (loaded) {
+            return get();
+        }
+        loaded = true;
 
         SharedPreferences prefs =
             context.getSharedPreferences(KEY, Context.MODE_PRIVATE);
@@ -142,6 +210,41 @@ public class Session {
         return session;
     }
 
+    /**
+     * Adds a listener told when the session changes.
+     * 
+     * @param listener
+     */
+    public static synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added by addListener().
+     * 
+     * @param listener
+     */
+    public static synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Replaces the current session and tells the listeners.
+     * 
+     * @param session
+     */
+    private static void set(Session session) {
+        ArrayList<Listener> toNotify;
+        synchronized (Session.class) {
+            singleton = session;
+            loaded = true;
+            toNotify = new ArrayList<Listener>(listeners);
+        }
+        for (Listener listener : toNotify) {
+            listener.onSessionChanged(session);
+        }
+    }
+
     /**
      * Clears the saved session data.
      * 
@@ -152,7 +255,7 @@ public class Session {
             context.getSharedPreferences(KEY, Context.MODE_PRIVATE).edit();
         editor.clear();
         editor.commit();
-        singleton = null;
+        set(null);
     }
 
     /**
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.app.Activity;
+import android.os.Debug;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Measures StreamRenderer on a generated me/home response of
+ * NUM_POSTS posts: the time and the allocations per post for
+ * rendering the whole page, and the time to the first page of
+ * the incremental path, and the heap the rendered page keeps. The
+ * posts are generated with a fixed seed,
+ * so that every run renders the same stream, with the mix of a
+ * recorded one: statuses, links, photos and videos, wall posts,
+ * likes and comments. Nothing is shipped in the app's assets.
+ *
+ * The same posts are then shown through FeedAdapter, the ListView
+ * alternative, scrolling through them as a ListView would: the time
+ * to fill the first screen, the time and allocations per row bound
+ * (a frame of scrolling binds one or two rows), and the number of
+ * row views and the heap kept, against the size of the HTML page.
+ * The heap kept is the difference of the Java and native heap in
+ * use, after a garbage collection, with and without the result.
+ *
+ * Run it with:
+ * adb shell am start -n com.facebook.stream/.App --ez benchmark true
+ */
+class StreamBenchmark {
+
+    private static final int NUM_POSTS = 500;
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 10;
+
+    // The number of rows on the screen, for the ListView.
+    private static final int SCREEN_ROWS = 8;
+
+    // What a measured path keeps, while the heap is measured.
+    private static Object kept;
+
+    // What the generated posts are made of.
+    private static final long SEED = 42;
+    private static final String[] FIRST_NAMES = {
+        "Alice", "Bob", "Carol", "Dave", "Erin", "Frank", "Grace", "Heidi",
+        "Ivan", "Judy", "Mallory", "Niaj", "Olivia", "Peggy", "Trent",
+        "Yara"
+    };
+    private static final String[] LAST_NAMES = {
+        "Garcia", "Jones", "Kumar", "Novak", "Silva", "Tanaka"
+    };
+    private static final String[] WORDS = {
+        "about", "all", "an", "as", "at", "been", "but", "by", "call",
+        "could", "day", "did", "do", "find", "first", "from", "had", "has",
+        "have", "her", "hot", "if", "it", "long", "make", "many", "most",
+        "now", "number", "other", "over", "people", "see", "side", "so",
+        "some", "that", "them", "thing", "up", "use", "way", "were", "who",
+        "will", "with", "would", "you"
+    };
+    private static final int[] LIKE_COUNTS = { 1, 2, 3, 5, 8, 13, 40 };
+    private static final String[] TYPES = {
+        "status", "status", "status", "photo", "photo", "photo", "video",
+        "video", "link", "link"
+    };
+
+    /**
+     * Generates a stream of numPosts posts, newest first.
+     *
+     * @param numPosts
+     * @return a me/home response
+     * @throws JSONException
+     */
+    static JSONObject generateStream(int numPosts) throws JSONException {
+        Random random = new Random(SEED);
+        SimpleDateFormat format = StreamRenderer.getDateFormat();
+        long time = 1275403212000L; // 2010-06-01T14:40:12+0000
+        JSONArray posts = new JSONArray();
+        for (int i = 0; i < numPosts; i++) {
+            time -= 60000 + random.nextInt(3600000);
+            JSONObject from = person(random);
+            String id = from.getString("id") + "_" + (100000000 + i);
+            String type = TYPES[random.nextInt(TYPES.length)];
+
+            JSONObject post = new JSONObject();
+            post.put("id", id);
+            post.put("from", from);
+            if (random.nextInt(100) < 15) {
+                JSONArray to = new JSONArray();
+                to.put(person(random));
+                post.put("to", new JSONObject().put("data", to));
+            }
+            post.put("message", sentence(random, 3 + random.nextInt(25)));
+            if (!type.equals("status")) {
+                post.put("picture", "http://photos-a.ak.fbcdn.net/" + id + "_s.jpg");
+                post.put("link", "http://www.example.com/" +
+                        WORDS[random.nextInt(WORDS.length)] + "/" + i);
+                post.put("name", sentence(random, 2 + random.nextInt(4)));
+                post.put("caption", "www.example.com");
+                post.put("description",
+                        sentence(random, 10 + random.nextInt(20)));
+                if (type.equals("video")) {
+                    post.put("source", "http://www.example.com/v/" + i);
+                }
+            }
+            JSONArray actions = new JSONArray();
+            String actionLink = "http://www.facebook.com/" + id;
+            actions.put(new JSONObject().put("name", "Comment")
+                    .put("link", actionLink));
+            actions.put(new JSONObject().put("name", "Like")
+                    .put("link", actionLink));
+            post.put("actions", actions);
+            post.put("type", type);
+            post.put("created_time", format.format(new Date(time)));
+            post.put("updated_time", format.format(new Date(time + 60000)));
+
+            if (random.nextInt(100) < 80) {
+                int count = LIKE_COUNTS[random.nextInt(LIKE_COUNTS.length)];
+                JSONArray likers = new JSONArray();
+                for (int j = 0; j < Math.min(count, 4); j++) {
+                    likers.put(person(random));
+                }
+                post.put("likes", new JSONObject().put("data", likers)
+                        .put("count", count));
+            }
+            if (random.nextInt(100) < 55) {
+                JSONArray comments = new JSONArray();
+                int count = 1 + random.nextInt(5);
+                for (int j = 0; j < count; j++) {
+                    comments.put(new JSONObject()
+                            .put("id", id + "_" + j)
+                            .put("from", person(random))
+                            .put("message",
+                                    sentence(random, 2 + random.nextInt(12)))
+                            .put("created_time",
+                                    format.format(new Date(time + j * 1000))));
+                }
+                post.put("comments", new JSONObject().put("data", comments)
+                        .put("count", count));
+            }
+            posts.put(post);
+        }
+        JSONObject data = new JSONObject();
+        data.put("data", posts);
+        return data;
+    }
+
+    private static JSONObject person(Random random) throws JSONException {
+        JSONObject person = new JSONObject();
+        person.put("name", FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] +
+                " " + LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+        person.put("id", String.valueOf(100000000 + random.nextInt(900000000)));
+        return person;
+    }
+
+    private static String sentence(Random random, int numWords) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < numWords; i++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            if (i == 0) {
+                sb.append(Character.toUpperCase(word.charAt(0)))
+                        .append(word, 1, word.length());
+            } else {
+                sb.append(' ').append(word);
+            }
+        }
+        return sb.append(random.nextBoolean() ? '.' : '!').toString();
+    }
+
+    /**
+     * Runs the benchmark and returns the results as text. The
+     * results are also logged.
+     *
+     * @param activity
+     * @return
+     */
+    static String run(Activity activity) {
+        JSONObject data;
+        try {
+            data = generateStream(NUM_POSTS);
+        } catch (JSONException e) {
+            return "Could not generate the stream: " + e.getMessage();
+        }
+        JSONArray posts = data.optJSONArray("data");
+        ArrayList<JSONObject> postList = new ArrayList<JSONObject>();
+        for (int i = 0; i < posts.length(); i++) {
+            postList.add(posts.optJSONObject(i));
+        }
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            StreamRenderer.render(data);
+        }
+
+        Debug.startAllocCounting();
+        long renderNanos = 0;
+        long allocCount = 0;
+        long allocBytes = 0;
+        int length = 0;
+        for (int i = 0; i < RUNS; i++) {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            length = StreamRenderer.render(data).length();
+            renderNanos += System.nanoTime() - start;
+            allocCount += Debug.getThreadAllocCount();
+            allocBytes += Debug.getThreadAllocSize();
+        }
+        Debug.stopAllocCounting();
+
+        long firstPageNanos = 0;
+        long chunkNanos = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            StreamRenderer.renderPage(posts, 5);
+            firstPageNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            try {
+                StreamRenderer.renderPosts(postList, 5, 15);
+            } catch (JSONException e) {
+                return "Could not render: " + e.getMessage();
+            }
+            chunkNanos += System.nanoTime() - start;
+        }
+
+        long[] heapBefore = getHeapUsed();
+        kept = StreamRenderer.render(data);
+        long[] heapAfter = getHeapUsed();
+        kept = null;
+        String heapKept = formatHeapKept(heapBefore, heapAfter);
+
+        long totalPosts = (long) RUNS * NUM_POSTS;
+        String results =
+            "StreamRenderer, " + NUM_POSTS + " posts, " + RUNS + " runs\n" +
+            "page: " + (renderNanos / RUNS / 1000000) + " ms, " +
+            length + " chars\n" +
+            "per post: " + (renderNanos / totalPosts / 1000) + " us, " +
+            (allocCount / totalPosts) + " allocations, " +
+            (allocBytes / totalPosts) + " bytes allocated\n" +
+            "first page (5 posts): " +
+            (firstPageNanos / RUNS / 1000) + " us\n" +
+            "chunk (10 posts): " + (chunkNanos / RUNS / 1000) + " us\n" +
+            "page size: " + (length * 2 / 1024) +
+            " KB as a string, before the WebView's DOM\n" +
+            heapKept +
+            runList(activity, posts);
+        Log.i("StreamBenchmark", results);
+        return results;
+    }
+
+    /**
+     * Runs the FeedAdapter part of the benchmark in the UI thread,
+     * where views are created, and waits for its results.
+     *
+     * @param activity
+     * @param posts
+     * @return
+     */
+    private static String runList(final Activity activity,
+            final JSONArray posts) {
+        final String[] results = new String[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        activity.runOnUiThread(new Runnable() {
+            public void run() {
+                try {
+                    results[0] = measureList(activity, posts);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            return "interrupted\n";
+        }
+        return results[0];
+    }
+
+    /**
+     * Binds every post to a row, reusing the last row of each type
+     * like a ListView's recycler does.
+     *
+     * @param activity
+     * @param posts
+     * @return
+     */
+    private static String measureList(Activity activity, JSONArray posts) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            scroll(new FeedAdapter(activity), posts);
+        }
+
+        long firstScreenNanos = 0;
+        long bindNanos = 0;
+        long maxBindNanos = 0;
+        long allocCount = 0;
+        long allocBytes = 0;
+        int viewsCreated = 0;
+        Debug.startAllocCounting();
+        for (int run = 0; run < RUNS; run++) {
+            FeedAdapter adapter = new FeedAdapter(activity);
+            adapter.append(posts);
+            View[] recycled = new View[adapter.getViewTypeCount()];
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            for (int i = 0; i < adapter.getCount(); i++) {
+                if (i == SCREEN_ROWS) {
+                    firstScreenNanos += System.nanoTime() - start;
+                }
+                long bindStart = System.nanoTime();
+                int type = adapter.getItemViewType(i);
+                // the first screen creates its rows; after that each
+                // row scrolled in reuses one scrolled out.
+                View convertView = (i < SCREEN_ROWS) ? null : recycled[type];
+                recycled[type] = adapter.getView(i, convertView, null);
+                long nanos = System.nanoTime() - bindStart;
+                if (i >= SCREEN_ROWS) {
+                    bindNanos += nanos;
+                    maxBindNanos = Math.max(maxBindNanos, nanos);
+                }
+            }
+            allocCount += Debug.getThreadAllocCount();
+            allocBytes += Debug.getThreadAllocSize();
+            viewsCreated = adapter.getViewsCreated();
+        }
+        Debug.stopAllocCounting();
+
+        long[] heapBefore = getHeapUsed();
+        FeedAdapter adapter = new FeedAdapter(activity);
+        kept = new Object[] { adapter, scroll(adapter, posts) };
+        long[] heapAfter = getHeapUsed();
+        kept = null;
+        String heapKept = formatHeapKept(heapBefore, heapAfter);
+
+        long totalRows = (long) RUNS * (posts.length() - SCREEN_ROWS);
+        long totalPosts = (long) RUNS * posts.length();
+        return "FeedAdapter, " + posts.length() + " posts, " + RUNS +
+            " runs\n" +
+            "first screen (" + SCREEN_ROWS + " rows): " +
+            (firstScreenNanos / RUNS / 1000) + " us\n" +
+            "per row scrolled in: " + (bindNanos / totalRows / 1000) +
+            " us, " + (maxBindNanos / 1000) + " us max\n" +
+            "per post: " + (allocCount / totalPosts) + " allocations, " +
+            (allocBytes / totalPosts) + " bytes allocated\n" +
+            "row views kept: " + viewsCreated + "\n" +
+            heapKept;
+    }
+
+    /**
+     * Binds every post, reusing one row of each type.
+     *
+     * @param adapter
+     * @param posts
+     * @return the rows, by type
+     */
+    private static View[] scroll(FeedAdapter adapter, JSONArray posts) {
+        adapter.append(posts);
+        View[] recycled = new View[adapter.getViewTypeCount()];
+        for (int i = 0; i < adapter.getCount(); i++) {
+            int type = adapter.getItemViewType(i);
+            recycled[type] = adapter.getView(i, recycled[type], null);
+        }
+        return recycled;
+    }
+
+    /**
+     * Returns the Java and the native heap in use, in bytes, after a
+     * garbage collection.
+     *
+     * @return
+     */
+    private static long[] getHeapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.gc();
+        return new long[] {
+            runtime.totalMemory() - runtime.freeMemory(),
+            Debug.getNativeHeapAllocatedSize()
+        };
+    }
+
+    private static String formatHeapKept(long[] before, long[] after) {
+        return "heap kept: " + ((after[0] - before[0]) / 1024) +
+            " KB Java, " + ((after[1] - before[1]) / 1024) +
+            " KB native\n";
+    }
+}
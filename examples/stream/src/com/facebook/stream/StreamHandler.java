@@ -19,14 +19,15 @@ package com.facebook.stream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.HashMap;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.os.Bundle;
 import android.util.Log;
 
-import com.facebook.topface.AsyncFacebookRunner;
-import com.facebook.topface.Facebook;
 import com.facebook.topface.FacebookError;
 import com.facebook.topface.Util;
 import com.facebook.topface.AsyncFacebookRunner.RequestListener;
@@ -34,38 +35,185 @@ import com.facebook.topface.AsyncFacebookRunner.RequestListener;
 /**
  * A handler for the stream page. It's responsible for
  * fetching the stream data from the API and storing it
- * in a local file based cache. It uses the helper class
- * StreamRenderer to render the stream.
+ * in the local FeedStore. It uses the helper class
+ * StreamPage to render the stream incrementally, and loads
+ * older posts when the user scrolls to the bottom.
  *  
  * @author yariv
  */
 public class StreamHandler extends Handler {
 
-    private static final String CACHE_FILE = "cache.txt";
+    // The number of posts requested or read from the store at a time
+    private static final int PAGE_LIMIT = 25;
+
+    // The local copy of the stream
+    private FeedStore store;
+
+    // The page in the WebView
+    private StreamPage page;
+
+    // The functions exported to the page
+    private StreamJsHandler jsHandler;
+
+    // Is a page of older posts being loaded?
+    private boolean loadingMore;
+
+    // Has the end of the stream been reached?
+    private boolean noMorePosts;
+
+    public void onCreate() {
+        store = FeedStore.getInstance(getActivity());
+        jsHandler = new StreamJsHandler(this);
+    }
 
     /**
      * Called by the dispatcher to render the stream page.
+     *
+     * The stored posts are shown first; only the posts newer than
+     * those are then requested, and inserted at the top of the page.
+     * The likes and comments of the stored posts are refreshed with
+     * a separate request for just those fields. The whole stream is
+     * only fetched when nothing is stored.
      */
     public void go() {
-        dispatcher.getWebView().addJavascriptInterface(
-                new StreamJsHandler(this), "app");
-
-        // first try to load the cached data
-        try {
-            String cached = FileIO.read(getActivity(), CACHE_FILE);
-            if (cached != null) {
-                JSONObject obj = new JSONObject(cached);
-                dispatcher.loadData(StreamRenderer.render(obj));
+        page = new StreamPage(this);
+        synchronized (this) {
+            loadingMore = false;
+            noMorePosts = false;
+        }
+        dispatcher.addJavascriptInterface(jsHandler, "app");
+        jsHandler.open();
+
+        store.loadNewest(PAGE_LIMIT, new FeedStore.LoadListener() {
+            public void onLoaded(JSONObject data) {
+                JSONArray posts = data.optJSONArray("data");
+                if (posts == null || posts.length() == 0) {
+                    request(new Bundle(), new StreamRequestListener());
+                    return;
+                }
+                page.show(data);
+                Bundle params = new Bundle();
+                params.putString("since",
+                        String.valueOf(page.getNewestTime() / 1000));
+                request(params, new RefreshRequestListener());
+                requestCounts(posts);
+            }
+        });
+    }
+
+    /**
+     * Called by the dispatcher when another page replaces the stream.
+     */
+    public void onLeave() {
+        page.close();
+        jsHandler.close();
+    }
+
+    /**
+     * Requests a page of me/home.
+     *
+     * @param params the paging parameters, if any
+     * @param listener
+     */
+    private void request(Bundle params, RequestListener listener) {
+        params.putString("limit", String.valueOf(PAGE_LIMIT));
+        Session session = Session.get();
+        if (session == null) {
+            listener.onFacebookError(new FacebookError("Not logged in"),
+                    null);
+            return;
+        }
+        session.getRunner().request("me/home", params, listener, null);
+    }
+
+    /**
+     * Requests the current likes and comments of the given posts, in
+     * one request for all of them.
+     *
+     * @param posts the stored posts shown on the page
+     */
+    private void requestCounts(JSONArray posts) {
+        Session session = Session.get();
+        if (session == null) {
+            return;
+        }
+        HashMap<String, JSONObject> byId = new HashMap<String, JSONObject>();
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < posts.length(); i++) {
+            JSONObject post = posts.optJSONObject(i);
+            String id = (post != null) ? post.optString("id") : "";
+            if (id.length() == 0) {
+                continue;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (JSONException e) {
-            e.printStackTrace();
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(id);
+            byId.put(id, post);
+        }
+        if (byId.isEmpty()) {
+            return;
         }
+        Bundle params = new Bundle();
+        params.putString("ids", ids.toString());
+        params.putString("fields",
+                "likes.summary(true),comments.summary(true)");
+        session.getRunner().request("", params,
+                new CountsRequestListener(byId), null);
+    }
 
-        Facebook fb = Session.restore(getActivity()).getFb();
-        new AsyncFacebookRunner(fb).request("me/home", 
-                new StreamRequestListener());
+    /**
+     * Returns the page in the WebView.
+     */
+    StreamPage getPage() {
+        return page;
+    }
+
+    /**
+     * Appends the next page of older posts to the page, from the
+     * store if it has them, otherwise from the API. Called from
+     * Javascript when the user scrolls near the bottom of the page.
+     */
+    public void loadMore() {
+        synchronized (this) {
+            if (loadingMore || noMorePosts) {
+                return;
+            }
+            loadingMore = true;
+        }
+        final long oldest = page.getOldestTime();
+        if (oldest == Long.MAX_VALUE) {
+            finishLoadingMore();
+            return;
+        }
+        store.loadOlder(oldest, PAGE_LIMIT, new FeedStore.LoadListener() {
+            public void onLoaded(JSONObject data) {
+                JSONArray posts = data.optJSONArray("data");
+                if (posts != null && posts.length() > 0) {
+                    page.append(data);
+                    finishLoadingMore();
+                    return;
+                }
+                Bundle params = new Bundle();
+                params.putString("until", String.valueOf(oldest / 1000));
+                request(params, new MoreRequestListener());
+            }
+        });
+    }
+
+    /**
+     * Lets the page ask for older posts again, whether the last page
+     * was loaded or not.
+     */
+    private void finishLoadingMore() {
+        synchronized (this) {
+            loadingMore = false;
+        }
+        getBridge().call("onMoreLoaded");
+    }
+
+    private synchronized void setNoMorePosts() {
+        noMorePosts = true;
     }
 
     public class StreamRequestListener implements RequestListener {
@@ -73,21 +221,12 @@ public class StreamHandler extends Handler {
         public void onComplete(String response, final Object state) {
             try {
                 JSONObject obj = Util.parseJson(response);
-                // try to cache the result
-                try {
-                    FileIO.write(getActivity(), response, CACHE_FILE);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                // store the new posts and the updates to known posts
+                store.merge(obj.optJSONArray("data"));
 
-                // Convert the result into an HTML string and then load it
-                // into the WebView in the UI thread.
-                final String html = StreamRenderer.render(obj);
-                getActivity().runOnUiThread(new Runnable() {
-                    public void run() {
-                        dispatcher.loadData(html);
-                    }
-                });
+                // Render the result into the WebView, starting with the
+                // first posts.
+                page.show(obj);
 
             } catch (JSONException e) {
                 Log.e("stream", "JSON Error:" + e.getMessage());
@@ -115,4 +254,143 @@ public class StreamHandler extends Handler {
         }
 
     }
+
+    /**
+     * Inserts the posts newer than the stored ones at the top of the
+     * page. If there are as many as were asked for, there may be more
+     * posts between them and the stored ones, so the stored posts are
+     * dropped and the page is replaced instead.
+     */
+    private class RefreshRequestListener extends StreamRequestListener {
+
+        public void onComplete(String response, final Object state) {
+            try {
+                JSONObject obj = Util.parseJson(response);
+                JSONArray posts = obj.optJSONArray("data");
+                if (posts == null || posts.length() == 0) {
+                    return;
+                }
+                if (posts.length() >= PAGE_LIMIT) {
+                    store.clear();
+                    store.merge(posts);
+                    page.show(obj);
+                } else {
+                    store.merge(posts);
+                    page.prepend(posts);
+                }
+            } catch (JSONException e) {
+                Log.e("stream", "JSON Error:" + e.getMessage());
+            } catch (FacebookError e) {
+                Log.e("stream", "Facebook Error:" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Applies the current likes and comments of the stored posts to
+     * the store and to the page, for the posts where they changed.
+     */
+    private class CountsRequestListener extends StreamRequestListener {
+
+        // The stored posts that were asked about, by id.
+        private final HashMap<String, JSONObject> posts;
+
+        CountsRequestListener(HashMap<String, JSONObject> posts) {
+            this.posts = posts;
+        }
+
+        public void onComplete(String response, final Object state) {
+            try {
+                JSONObject obj = Util.parseJson(response);
+                JSONArray changed = new JSONArray();
+                for (String id : posts.keySet()) {
+                    JSONObject counts = obj.optJSONObject(id);
+                    if (counts == null) {
+                        continue;
+                    }
+                    JSONObject post =
+                        new JSONObject(posts.get(id).toString());
+                    putCounted(post, "likes", counts.optJSONObject("likes"));
+                    putCounted(post, "comments",
+                            counts.optJSONObject("comments"));
+                    if (!post.toString().equals(posts.get(id).toString())) {
+                        changed.put(post);
+                    }
+                }
+                if (changed.length() > 0) {
+                    store.merge(changed);
+                    page.update(changed);
+                }
+            } catch (JSONException e) {
+                Log.e("stream", "JSON Error:" + e.getMessage());
+            } catch (FacebookError e) {
+                Log.e("stream", "Facebook Error:" + e.getMessage());
+            }
+        }
+
+        /**
+         * Sets a likes or comments field of a post from its summary
+         * form, with the total in 'count' as the stream has it.
+         */
+        private void putCounted(JSONObject post, String name,
+                JSONObject field) throws JSONException {
+            if (field == null) {
+                post.remove(name);
+                return;
+            }
+            JSONObject counted = new JSONObject();
+            counted.put("data", field.optJSONArray("data"));
+            JSONObject summary = field.optJSONObject("summary");
+            counted.put("count", (summary != null)
+                    ? summary.optInt("total_count") : 0);
+            post.put(name, counted);
+        }
+    }
+
+    /**
+     * Appends a page of older posts.
+     */
+    private class MoreRequestListener extends StreamRequestListener {
+
+        public void onComplete(String response, final Object state) {
+            try {
+                JSONObject obj = Util.parseJson(response);
+                JSONArray posts = obj.optJSONArray("data");
+                if (posts == null || posts.length() == 0) {
+                    setNoMorePosts();
+                    return;
+                }
+                store.merge(posts);
+                page.append(obj);
+            } catch (JSONException e) {
+                Log.e("stream", "JSON Error:" + e.getMessage());
+            } catch (FacebookError e) {
+                Log.e("stream", "Facebook Error:" + e.getMessage());
+            } finally {
+                finishLoadingMore();
+            }
+        }
+
+        public void onFacebookError(FacebookError e, final Object state) {
+            super.onFacebookError(e, state);
+            finishLoadingMore();
+        }
+
+        public void onFileNotFoundException(FileNotFoundException e,
+                                            final Object state) {
+            super.onFileNotFoundException(e, state);
+            finishLoadingMore();
+        }
+
+        public void onIOException(IOException e, final Object state) {
+            super.onIOException(e, state);
+            finishLoadingMore();
+        }
+
+        public void onMalformedURLException(MalformedURLException e,
+                                            final Object state) {
+            super.onMalformedURLException(e, state);
+            finishLoadingMore();
+        }
+    }
 }
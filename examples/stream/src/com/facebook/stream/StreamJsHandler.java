@@ -24,8 +24,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.os.Bundle;
+import android.util.Log;
+
 import com.facebook.topface.AsyncFacebookRunner;
-import com.facebook.topface.Facebook;
 
 /**
  * Implements functions that can be called from Javascript in the
@@ -33,24 +34,52 @@ import com.facebook.topface.Facebook;
  * 
  * @author yariv
  */
-class StreamJsHandler {
+class StreamJsHandler implements MutationQueue.Listener {
 
     // The handler for the Stream page
     private final StreamHandler streamHandler;
 
+    // Sends the likes and comments
+    private final MutationQueue mutations;
+
     /**
      * @param streamHandler
      */
     StreamJsHandler(StreamHandler streamHandler) {
         this.streamHandler = streamHandler;
+        this.mutations = MutationQueue.getInstance(
+                streamHandler.getActivity());
+    }
+
+    /**
+     * Called when the page is shown, to be told of the outcome of
+     * the user's likes and comments.
+     */
+    void open() {
+        mutations.setListener(this);
     }
 
     /**
-     * Returns the Facebook object.
+     * Called when the page is no longer shown.
      */
-    private AsyncFacebookRunner getFb() {
-        Facebook fb = Session.restore(streamHandler.getActivity()).getFb();
-        return new AsyncFacebookRunner(fb);
+    void close() {
+        mutations.removeListener(this);
+    }
+
+    /**
+     * Called by the page once it has loaded, so that the rest of the
+     * posts can be appended to it.
+     */
+    public void onPageLoaded() {
+        streamHandler.getPage().onPageLoaded();
+    }
+
+    /**
+     * Called when the user scrolls near the bottom of the page, to
+     * append older posts.
+     */
+    public void loadMore() {
+        streamHandler.loadMore();
     }
 
     /**
@@ -60,7 +89,12 @@ class StreamJsHandler {
      * @param message
      */
     public void updateStatus(final String message) {
-        AsyncFacebookRunner fb = getFb();
+        Session session = Session.get();
+        if (session == null) {
+            Log.w("stream", "Not logged in");
+            return;
+        }
+        AsyncFacebookRunner fb = session.getRunner();
         Bundle params = new Bundle();
         params.putString("message", message);
         fb.request("me/feed", params, "POST", new AsyncRequestListener() {
@@ -69,11 +103,9 @@ class StreamJsHandler {
                 String html;
                 try {
                     html = renderStatus(obj, message);
-                    html = html.replace("'", "\\\'");
-                    callJs("onStatusUpdated('" + html + "');");
+                    callJs("onStatusUpdated", html);
                 } catch (JSONException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
+                    Log.e("stream", "JSON Error:" + e.getMessage());
                 }
             }
         }, null);
@@ -118,75 +150,79 @@ class StreamJsHandler {
     }
 
     /**
-     * Like or unlike a post
+     * Like or unlike a post. The page has already been updated; it is
+     * rolled back if the request fails.
      * 
      * @param post_id
      * @param val if the action should be a like (true) or an unlike (false)
      */
     public void like(final String post_id, final boolean val) {
-        Bundle params = new Bundle();
-        if (!val) {
-            params.putString("method", "delete");
-        }
-        getFb().request(post_id + "/likes", new Bundle(), "POST",
-                new AsyncRequestListener() {
-
-            public void onComplete(JSONObject response, final Object state) {
-                callJs("javascript:onLike('" + post_id + "'," + val + ")");
-            }
-        }, null);
+        mutations.like(post_id, val);
     }
 
-
+    /**
+     * Adds a comment to the page right away, and posts it in the
+     * background.
+     * 
+     * @param post_id
+     * @param message
+     */
     public void postComment(final String post_id, final String message) {
-        Bundle params = new Bundle();
-        params.putString("message", message);
-
-        getFb().request(post_id + "/comments", params, "POST",
-                new AsyncRequestListener() {
+        if (Session.get() == null) {
+            Log.w("stream", "Not logged in");
+            return;
+        }
+        String localId = mutations.postComment(post_id, message);
+        try {
+            String html = renderComment(localId, message);
+            callJs("onComment", post_id, html);
+        } catch (JSONException e) {
+            Log.e("stream", "JSON Error:" + e.getMessage());
+        }
+    }
 
-            public void onComplete(JSONObject response, final Object state) {
+    public void onLikeFailed(String postId, boolean liked) {
+        callJs("onLike", postId, liked);
+    }
 
-                try {
-                    String html = renderComment(response, message);
-                    html = html.replace("'", "\\'");
-                    callJs("onComment('" + post_id + "','" + html + "');");
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
+    public void onCommentPosted(String postId, String localId,
+            String commentId) {
+        // the comment is already on the page.
+    }
 
-            }
-        }, null);
+    public void onCommentFailed(String postId, String localId,
+            String message) {
+        callJs("onCommentFailed", postId, localId, message);
     }
 
     /**
-     * Renders the html string for a new comment.
+     * Renders the html string for a new comment, wrapped in an element
+     * with the given id so that it can be removed.
      * 
-     * @param response
+     * @param localId
      * @param message
      * @return
      * @throws JSONException
      */
-    private String renderComment(JSONObject response, String message)
+    private String renderComment(String localId, String message)
             throws JSONException {
 
         JSONObject comment = new JSONObject();
-        String commentId = response.getString("id");
-        comment.put("id", commentId);
         comment.put("from", createAuthorObj());
         comment.put("message", message);
 
         String html = StreamRenderer.renderSingleComment(comment);
-        return html;
+        return "<div id=\"" + localId + "\">" + html + "</div>";
     }
 
     /**
-     * Executes javascript code inside WebKit.
+     * Calls a Javascript function of the page, in the next frame.
      * 
-     * @param js
+     * @param function
+     * @param args
      */
-    private void callJs(String js) {
-        streamHandler.getWebView().loadUrl("javascript:" + js);
+    private void callJs(String function, Object... args) {
+        streamHandler.getBridge().call(function, args);
     }
 
     /**
@@ -196,7 +232,7 @@ class StreamJsHandler {
      * @throws JSONException
      */
     private JSONObject createAuthorObj() throws JSONException {
-        Session session = Session.restore(streamHandler.getActivity());
+        Session session = Session.get();
         JSONObject from = new JSONObject();
         from.put("id", session.getUid());
         from.put("name", session.getName());
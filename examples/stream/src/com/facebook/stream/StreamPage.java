@@ -0,0 +1,324 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Renders the stream page into the WebView incrementally. The page is
+ * loaded with the status box and the first few posts, so that something
+ * shows up right away; the other posts are then rendered in a background
+ * thread and appended to the page a chunk at a time, each chunk waiting for
+ * the previous one to be added so that the UI thread is never flooded.
+ *
+ * Later pages of the stream are appended the same way, and newer
+ * posts are inserted at the top, without re-rendering the posts
+ * already on the page. Posts already on the page that come again
+ * with changes, e.g. new likes or comments, are re-rendered and
+ * replace their old version.
+ */
+class StreamPage {
+
+    // The number of posts rendered into the page itself.
+    private static final int FIRST_POSTS = 5;
+
+    // The number of posts appended at a time.
+    private static final int CHUNK_POSTS = 10;
+
+    // Renders the chunks, one at a time for all pages.
+    private static final ExecutorService renderer =
+        Executors.newSingleThreadExecutor();
+
+    // The handler for the Stream page
+    private final StreamHandler streamHandler;
+
+    // Incremented each time the page is replaced, so that chunks rendered
+    // for a previous page are dropped.
+    private int generation;
+
+    // Posts waiting to be appended, and the index of the next one.
+    private ArrayList<JSONObject> pending = new ArrayList<JSONObject>();
+    private int next;
+
+    // Newer posts waiting to be inserted at the top, newest first.
+    private ArrayList<JSONObject> pendingTop = new ArrayList<JSONObject>();
+
+    // Posts on the page that changed, waiting to be replaced, by id.
+    private LinkedHashMap<String, JSONObject> pendingUpdates =
+        new LinkedHashMap<String, JSONObject>();
+
+    // The hash of each post on the page or pending, by id, to tell
+    // whether a post that comes again has changed.
+    private HashMap<String, Integer> postHashes =
+        new HashMap<String, Integer>();
+
+    // The created_time of the newest and oldest posts on the page or
+    // pending, in milliseconds.
+    private long newestTime;
+    private long oldestTime;
+
+    // Has the page loaded, so that posts can be appended?
+    private boolean pageLoaded;
+
+    // Is a chunk being rendered or appended?
+    private boolean appending;
+
+    StreamPage(StreamHandler streamHandler) {
+        this.streamHandler = streamHandler;
+    }
+
+    /**
+     * Replaces the page with the given stream. May be called from any
+     * thread.
+     *
+     * @param data the me/home response
+     */
+    public void show(JSONObject data) {
+        JSONArray posts = data.optJSONArray("data");
+        if (posts == null) {
+            Log.e("stream", "Stream data missing: " + data.toString());
+            return;
+        }
+        final String html;
+        synchronized (this) {
+            generation++;
+            pending = new ArrayList<JSONObject>();
+            pendingTop = new ArrayList<JSONObject>();
+            pendingUpdates = new LinkedHashMap<String, JSONObject>();
+            next = 0;
+            postHashes.clear();
+            newestTime = 0;
+            oldestTime = Long.MAX_VALUE;
+            pageLoaded = false;
+            appending = false;
+            int first = Math.min(FIRST_POSTS, posts.length());
+            for (int i = 0; i < posts.length(); i++) {
+                JSONObject post = posts.optJSONObject(i);
+                if (post != null && add(post) && i >= first) {
+                    pending.add(post);
+                }
+            }
+            html = StreamRenderer.renderPage(posts, first);
+        }
+        streamHandler.getActivity().runOnUiThread(new Runnable() {
+            public void run() {
+                streamHandler.getDispatcher().loadData(html);
+            }
+        });
+    }
+
+    /**
+     * Appends a later page of the stream to the page. Posts already on the
+     * page are updated instead. May be called from any thread.
+     *
+     * @param data the me/home response
+     */
+    public synchronized void append(JSONObject data) {
+        JSONArray posts = data.optJSONArray("data");
+        if (posts == null) {
+            return;
+        }
+        for (int i = 0; i < posts.length(); i++) {
+            JSONObject post = posts.optJSONObject(i);
+            if (post != null && add(post)) {
+                pending.add(post);
+            }
+        }
+        appendNextChunk();
+    }
+
+    /**
+     * Inserts posts newer than those on the page at its top. Posts
+     * already on the page are updated instead. May be called from any
+     * thread.
+     *
+     * @param posts the posts, newest first
+     */
+    public synchronized void prepend(JSONArray posts) {
+        ArrayList<JSONObject> added = new ArrayList<JSONObject>();
+        for (int i = 0; i < posts.length(); i++) {
+            JSONObject post = posts.optJSONObject(i);
+            if (post != null && add(post)) {
+                added.add(post);
+            }
+        }
+        pendingTop.addAll(0, added);
+        appendNextChunk();
+    }
+
+    /**
+     * Updates posts already on the page, e.g. with their current
+     * likes and comments. Posts that aren't on the page are ignored.
+     * May be called from any thread.
+     *
+     * @param posts
+     */
+    public synchronized void update(JSONArray posts) {
+        for (int i = 0; i < posts.length(); i++) {
+            JSONObject post = posts.optJSONObject(i);
+            if (post != null && postHashes.containsKey(post.optString("id"))) {
+                add(post);
+            }
+        }
+        appendNextChunk();
+    }
+
+    /**
+     * Returns the created_time of the newest post on the page, in
+     * milliseconds, or 0 if the page has no posts.
+     */
+    public synchronized long getNewestTime() {
+        return newestTime;
+    }
+
+    /**
+     * Returns the created_time of the oldest post on the page, in
+     * milliseconds, or Long.MAX_VALUE if the page has no posts.
+     */
+    public synchronized long getOldestTime() {
+        return oldestTime;
+    }
+
+    /**
+     * Records a post that is on the page or pending. If it already is,
+     * and has changed, it is updated instead.
+     *
+     * @param post
+     * @return false if the post is already on the page
+     */
+    private boolean add(JSONObject post) {
+        String id = post.optString("id");
+        Integer hash = post.toString().hashCode();
+        Integer previous = postHashes.put(id, hash);
+        if (previous != null) {
+            if (!previous.equals(hash)) {
+                update(id, post);
+            }
+            return false;
+        }
+        long time = FeedStore.parseTime(post.optString("created_time"));
+        if (time > 0) {
+            newestTime = Math.max(newestTime, time);
+            oldestTime = Math.min(oldestTime, time);
+        }
+        return true;
+    }
+
+    /**
+     * Replaces a changed post: in place if it is still pending,
+     * otherwise on the page.
+     *
+     * @param id
+     * @param post
+     */
+    private void update(String id, JSONObject post) {
+        for (int i = next; i < pending.size(); i++) {
+            if (id.equals(pending.get(i).optString("id"))) {
+                pending.set(i, post);
+                return;
+            }
+        }
+        for (int i = 0; i < pendingTop.size(); i++) {
+            if (id.equals(pendingTop.get(i).optString("id"))) {
+                pendingTop.set(i, post);
+                return;
+            }
+        }
+        pendingUpdates.put(id, post);
+    }
+
+    /**
+     * Stops adding posts to the page, e.g. when another page replaces
+     * it.
+     */
+    public synchronized void close() {
+        generation++;
+        pageLoaded = false;
+    }
+
+    /**
+     * Called from Javascript once the page has loaded.
+     */
+    public synchronized void onPageLoaded() {
+        pageLoaded = true;
+        appendNextChunk();
+    }
+
+    /**
+     * Renders the next chunk of pending posts in the background and
+     * adds it to the page, unless a chunk is already on its way.
+     * Newer posts go first, then the updated ones.
+     */
+    private synchronized void appendNextChunk() {
+        if (!pageLoaded || appending || (pendingTop.isEmpty()
+                && pendingUpdates.isEmpty() && next >= pending.size())) {
+            return;
+        }
+        appending = true;
+        final int gen = generation;
+        final ArrayList<JSONObject> posts;
+        final String function;
+        if (!pendingTop.isEmpty()) {
+            posts = pendingTop;
+            pendingTop = new ArrayList<JSONObject>();
+            function = "prependPosts";
+        } else if (!pendingUpdates.isEmpty()) {
+            posts = new ArrayList<JSONObject>(pendingUpdates.values());
+            pendingUpdates = new LinkedHashMap<String, JSONObject>();
+            function = "replacePosts";
+        } else {
+            int end = Math.min(next + CHUNK_POSTS, pending.size());
+            posts = new ArrayList<JSONObject>(pending.subList(next, end));
+            next = end;
+            function = "appendPosts";
+        }
+        renderer.execute(new Runnable() {
+            public void run() {
+                String html;
+                try {
+                    html = StreamRenderer.renderPosts(posts, 0, posts.size());
+                } catch (JSONException e) {
+                    Log.e("stream", "JSON Error:" + e.getMessage());
+                    html = "";
+                }
+                final String posts = html;
+                streamHandler.getActivity().runOnUiThread(new Runnable() {
+                    public void run() {
+                        synchronized (StreamPage.this) {
+                            if (gen != generation) {
+                                return;
+                            }
+                            appending = false;
+                        }
+                        streamHandler.getBridge().call(function, posts);
+                        appendNextChunk();
+                    }
+                });
+            }
+        });
+    }
+}
@@ -19,7 +19,7 @@ package com.facebook.stream;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -32,12 +32,121 @@ import android.util.Log;
  * querying /me/home to a HTML string that can be rendered
  * in WebKit.
  * 
+ * The markup is made of Templates compiled once, rendered into
+ * a StringBuilder that is reused by the next render on the same
+ * thread.
+ * 
  * @author yariv
  */
 class StreamRenderer {
 
+    // The start of the page, up to the posts.
+    private static final String PAGE_HEADER =
+        "<html><head>" +
+        "<link rel=\"stylesheet\" " +
+        "href=\"file:///android_asset/stream.css\" type=\"text/css\">" +
+        "<script src=\"file:///android_asset/stream.js\"></script>" +
+        "</head>" +
+        "<body onload=\"app.onPageLoaded();\">" +
+        "<div id=\"header\">" +
+        "<a href=\"app://logout\">logout</a>" +
+        // the "what's on your mind?" box and the Share button
+        "</div><div class=\"clear\"></div>" +
+        "<div id=\"status_box\">" +
+        "<input id=\"status_input\" value=\" What's on your mind?\"" +
+        " onfocus=\"onStatusBoxFocus(this);\"/>" +
+        "<button id=\"status_submit\" class=\"hidden\" " +
+        "onclick=\"updateStatus();\">Share</button>" +
+        "<div class=\"clear\"></div>" +
+        "</div>" +
+        "<div id=\"posts\">";
+
+    private static final String PAGE_FOOTER = "</div></body></html>";
+
+    private static final Template POST_START =
+        Template.compile("<div class=\"post\" id=\"post{id}\">");
+
+    private static final Template LINK =
+        Template.compile("<a href=\"{href}\">{text}</a>");
+
+    private static final Template PROFILE_LINK = Template.compile(
+        "<a href=\"http://touch.facebook.com/#/profile.php?id={id}\">" +
+        "{name}</a>");
+
+    private static final Template AUTHOR = Template.compile(
+        "<div class=\"profile_pic_container\">" +
+        "<a href=\"http://touch.facebook.com/#/profile.php?id={id}\">" +
+        "<img class=\"profile_pic\" src=\"http://graph.facebook.com/" +
+        "{id}/picture\"/></a>" +
+        "</div>" +
+        "<a href=\"http://touch.facebook.com/#/profile.php?id={id}\">" +
+        "{name}</a>");
+
+    private static final Template MESSAGE = Template.compile(
+        "&nbsp;<span class=\"msg\">{message}</span>" +
+        "<div class=\"clear\"></div>");
+
+    private static final Template CAPTION =
+        Template.compile("<div class=\"caption\">{caption}</div>");
+
+    private static final Template PICTURE =
+        Template.compile("<div class=\"picture\"><img src=\"{src}\"/></div>");
+
+    private static final Template LINKED_PICTURE = Template.compile(
+        "<div class=\"picture\"><a href=\"{href}\"><img src=\"{src}\"/></a>" +
+        "</div>");
+
+    private static final Template DESCRIPTION =
+        Template.compile("<div class=\"description\">{description}</div>");
+
+    private static final Template ACTION_LINK = Template.compile(
+        "<div id=\"{func}{id}\" class=\"action_link {class}\">" +
+        "<a href=\"#\" onclick=\"{func}('{id}'); return false;\">{title}" +
+        "</a></div>");
+
+
+    private static final Template LIKES = Template.compile(
+        "<div class=\"like_icon\">" +
+        "<img src=\"file:///android_asset/like_icon.png\"/>" +
+        "</div>" +
+        "<div class=\"num_likes\">{count} {desc}</div>");
+
+    private static final Template COMMENTS_START =
+        Template.compile("<div class=\"comments\" id=\"comments{id}\">");
+
+    private static final Template COMMENT =
+        Template.compile("<div class=\"comment\">&nbsp;{message}</div>");
+
+    private static final Template COMMENT_BOX = Template.compile(
+        "<div class=\"comment_box\" id=\"comment_box{id}\">" +
+        "<input id=\"comment_box_input{id}\"/>" +
+        "<button onclick=\"postComment('{id}');\">Post</button>" +
+        "<div class=\"clear\"></div>" +
+        "</div>");
+
+    // The estimated length of the html of a post, for sizing the buffer.
+    private static final int POST_LENGTH = 2048;
+
+    // Buffers that grew larger than this are not kept for the next render.
+    private static final int MAX_POOLED_LENGTH = 256 * 1024;
+
+    // The buffer of the last render made on each thread.
+    private static final ThreadLocal<StringBuilder> buffers =
+        new ThreadLocal<StringBuilder>();
+
+    private static final ThreadLocal<SimpleDateFormat> dateFormats =
+        new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+            }
+        };
+
     private StringBuilder sb;
 
+    // The time timestamps are relative to.
+    private final long now;
+
     /**
      * The main function for rendering the stream JSONObject.
      * 
@@ -45,8 +154,47 @@ class StreamRenderer {
      * @return
      */
     public static String render(JSONObject data) {
-        StreamRenderer renderer = new StreamRenderer();
-        return renderer.doRender(data);
+        JSONArray posts = data.optJSONArray("data");
+        if (posts == null) {
+            Log.e("StreamRenderer", "Stream data missing: " + data.toString());
+            return "";
+        }
+        return renderPage(posts, posts.length());
+    }
+
+    /**
+     * Renders the page with only the first posts of the stream, so that it
+     * can be shown before the other posts are rendered. The rest are
+     * rendered with renderPosts() and appended with the appendPosts()
+     * Javascript function. The page calls app.onPageLoaded() once it has
+     * loaded.
+     * 
+     * @param posts
+     * @param count the number of posts to render into the page
+     * @return
+     */
+    public static String renderPage(JSONArray posts, int count) {
+        StreamRenderer renderer = new StreamRenderer(count);
+        return renderer.doRenderPage(posts, count);
+    }
+
+    /**
+     * Renders the HTML for the posts from start (inclusive) to end
+     * (exclusive).
+     * 
+     * @param posts
+     * @param start
+     * @param end
+     * @return
+     * @throws JSONException
+     */
+    public static String renderPosts(List<JSONObject> posts, int start, int end)
+            throws JSONException {
+        StreamRenderer renderer = new StreamRenderer(end - start);
+        for (int i = start; i < end; i++) {
+            renderer.renderPost(posts.get(i));
+        }
+        return renderer.getResult();
     }
 
     /**
@@ -59,7 +207,7 @@ class StreamRenderer {
     public static String renderSinglePost(JSONObject post)
             throws JSONException {
 
-        StreamRenderer renderer = new StreamRenderer();
+        StreamRenderer renderer = new StreamRenderer(1);
         renderer.renderPost(post);
         return renderer.getResult();
     }
@@ -71,83 +219,73 @@ class StreamRenderer {
      * @return
      */
     public static String renderSingleComment(JSONObject comment) {
-        StreamRenderer renderer = new StreamRenderer();
+        StreamRenderer renderer = new StreamRenderer(1);
         renderer.renderComment(comment);
         return renderer.getResult();
     }
 
 
-    private StreamRenderer() {
-        this.sb = new StringBuilder();
+    /**
+     * Takes the thread's buffer, sized for the given number of posts.
+     * 
+     * @param numPosts
+     */
+    private StreamRenderer(int numPosts) {
+        int capacity = PAGE_HEADER.length() + numPosts * POST_LENGTH;
+        StringBuilder buffer = buffers.get();
+        if (buffer == null) {
+            buffer = new StringBuilder(capacity);
+        } else {
+            // nested renders get their own buffer.
+            buffers.set(null);
+            buffer.ensureCapacity(capacity);
+        }
+        this.sb = buffer;
+        this.now = System.currentTimeMillis();
     }
 
     /**
-     * Returns a SimpleDateFormat object we use for
-     * parsing and rendering timestamps.
+     * Returns the SimpleDateFormat object we use for parsing
+     * and rendering timestamps. It is cached for the calling
+     * thread: use it on that thread only and don't modify it.
      * 
      * @return
      */
     public static SimpleDateFormat getDateFormat() {
-        return new SimpleDateFormat("yyyy-MM-dd'T'hh:mm:ssZ");
+        return dateFormats.get();
     }
 
     /**
-     * Returns the result html.
+     * Returns the result html, and gives the buffer back to
+     * the thread for the next render.
      * 
      * @return
      */
     private String getResult() {
-        return sb.toString();
+        String result = sb.toString();
+        if (sb.capacity() <= MAX_POOLED_LENGTH) {
+            sb.setLength(0);
+            buffers.set(sb);
+        }
+        sb = null;
+        return result;
     }
 
-    private String doRender(JSONObject data) {
+    private String doRenderPage(JSONArray posts, int count) {
 
         try {
-            JSONArray posts = data.getJSONArray("data");
-            String[] chunks = {
-                "<html><head>",
-                "<link rel=\"stylesheet\" " +
-                "href=\"file:///android_asset/stream.css\" type=\"text/css\">",
-                "<script src=\"file:///android_asset/stream.js\"></script>",
-                "</head>",
-                "<body>",
-                "<div id=\"header\">"
-            };
-            append(chunks);
-            renderLink("app://logout", "logout");
-
-            renderStatusBox();
-
-            append("<div id=\"posts\">");
-            for (int i = 0; i < posts.length(); i++) {
+            append(PAGE_HEADER);
+            for (int i = 0; i < count; i++) {
                 renderPost(posts.getJSONObject(i));
             }
-            append("</div></body></html>");
+            append(PAGE_FOOTER);
             return getResult();
         } catch (JSONException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            Log.e("stream", "JSON Error:" + e.getMessage());
             return "";
         }
     }
 
-    /**
-     * Renders the "what's on your mind?" box and the Share button.
-     */
-    private void renderStatusBox() {
-        String[] chunks = new String[] {
-            "</div><div class=\"clear\"></div>",
-            "<div id=\"status_box\">",
-            "<input id=\"status_input\" value=\" What's on your mind?\"",
-            " onfocus=\"onStatusBoxFocus(this);\"/>",
-            "<button id=\"status_submit\" class=\"hidden\" " +
-            "onclick=\"updateStatus();\">Share</button>",
-            "<div class=\"clear\"></div>",
-            "</div>"
-        };
-        append(chunks);
-    }
-
     /**
      * Renders a single post
      * 
@@ -155,7 +293,7 @@ class StreamRenderer {
      * @throws JSONException
      */
     private void renderPost(JSONObject post) throws JSONException {
-        append("<div class=\"post\">");
+        POST_START.render(sb, post.optString("id"));
         renderFrom(post);
         renderTo(post);
         renderMessage(post);
@@ -195,24 +333,10 @@ class StreamRenderer {
             String toName = toData.getString("name");
             String toId = toData.getString("id");
             append(" > ");
-            renderProfileLink(toId, toName);
+            PROFILE_LINK.render(sb, toId, toName);
         }
     }
 
-    /**
-     * Renders a link to a user.
-     * 
-     * @param id
-     * @param name
-     */
-    private void renderProfileLink(String id, String name) {
-        renderLink(getProfileUrl(id), name);
-    }
-
-    private String getProfileUrl(String id) {
-        return "http://touch.facebook.com/#/profile.php?id=" + id;
-    }
-
     /**
      * Renders the author pic and name.
      * 
@@ -220,15 +344,7 @@ class StreamRenderer {
      * @param name
      */
     private void renderAuthor(String id, String name) {
-        String[] chunks = {
-            "<div class=\"profile_pic_container\">",
-            "<a href=\"", getProfileUrl(id),
-            "\"><img class=\"profile_pic\" src=\"http://graph.facebook.com/",
-            id, "/picture\"/></a>",
-            "</div>"
-        };
-        append(chunks);
-        renderProfileLink(id, name);
+        AUTHOR.render(sb, id, name);
     }
 
     /**
@@ -237,12 +353,7 @@ class StreamRenderer {
      * @param post
      */
     private void renderMessage(JSONObject post) {
-        String message = post.optString("message");
-        String[] chunks = {
-            "&nbsp;<span class=\"msg\">", message, "</span>",
-            "<div class=\"clear\"></div>"
-        };
-        append(chunks);
+        MESSAGE.render(sb, post.optString("message"));
     }
 
     /**
@@ -258,101 +369,76 @@ class StreamRenderer {
         String caption = post.optString("caption");
         String description = post.optString("description");
 
-        String[] fields = new String[] {
-                name, link, picture, source, caption, description
-        };
-        boolean hasAttachment = false;
-        for (String field : fields) {
-            if (field.length() != 0) {
-                hasAttachment = true;
-                break;
-            }
-        }
-
-        if (!hasAttachment) {
+        if (name.length() == 0 && link.length() == 0
+                && picture.length() == 0 && source.length() == 0
+                && caption.length() == 0 && description.length() == 0) {
             return;
         }
 
         append("<div class=\"attachment\">");
-        if (name != "") {
+        if (name.length() != 0) {
             append("<div class=\"title\">");
-            if (link != null) {
-                renderLink(link, name);
+            if (link.length() != 0) {
+                LINK.render(sb, link, name);
             } else {
                 append(name);
             }
             append("</div>");
         }
-        if (caption != "") {
-            append("<div class=\"caption\">" + caption + "</div>");
+        if (caption.length() != 0) {
+            CAPTION.render(sb, caption);
         }
 
-        if (picture != "") {
-            append("<div class=\"picture\">");
-            String img = "<img src=\"" + picture + "\"/>";
-            if (link != "") {
-                renderLink(link, img);
+        if (picture.length() != 0) {
+            if (link.length() != 0) {
+                LINKED_PICTURE.render(sb, link, picture);
             } else {
-                append(img);
+                PICTURE.render(sb, picture);
             }
-            append("</div>");
         }
 
-        if (description != "") {
-            append("<div class=\"description\">" + description + "</div>");
+        if (description.length() != 0) {
+            DESCRIPTION.render(sb, description);
         }
         append("<div class=\"clear\"></div></div>");
     }
 
-    /**
-     * Renders an anchor tag
-     *  
-     * @param href
-     * @param text
-     */
-    private void renderLink(String href, String text) {
-        append(new String[] {
-            "<a href=\"",
-            href,
-            "\">",
-            text,
-            "</a>"
-        });
-    }
-
     /**
      * Renders the posts' action links.
      * 
      * @param post
      */
     private void renderActionLinks(JSONObject post) {
-        HashSet<String> actions = getActions(post);
+        boolean canComment = false;
+        boolean canLike = false;
+        JSONArray actions = post.optJSONArray("actions");
+        if (actions != null) {
+            for (int j = 0; j < actions.length(); j++) {
+                JSONObject action = actions.optJSONObject(j);
+                String actionName = (action != null) ?
+                    action.optString("name") : "";
+                if (actionName.equals("Comment")) {
+                    canComment = true;
+                } else if (actionName.equals("Like")) {
+                    canLike = true;
+                }
+            }
+        }
+
         append("<div class=\"action_links\">");
         append("<div class=\"action_link\">");
         renderTimeStamp(post);
         append("</div>");
         String post_id = post.optString("id");
-        if (actions.contains("Comment")) {
-            renderActionLink(post_id, "Comment", "comment");
+        if (canComment) {
+            renderActionLink(post_id, "Comment", "comment", true);
         }
-        boolean canLike = actions.contains("Like");
         renderActionLink(post_id, "Like", "like", canLike);
         renderActionLink(post_id, "Unlike", "unlike", !canLike);
 
         append("<div class=\"clear\"></div></div>");
     }
 
-    /**
-     * Renders a single visible action link.
-     *  
-     * @param post_id
-     * @param title
-     * @param func
-     */
-    private void renderActionLink(String post_id, String title, String func) { 
-        renderActionLink(post_id, title, func, true);
-    }
-
     /**
      * Renders an action link with optional visibility.
      * 
@@ -361,15 +447,9 @@ class StreamRenderer {
      * @param func
      * @param visible
      */
-    private void renderActionLink(String post_id, String title, String func, 
+    private void renderActionLink(String post_id, String title, String func,
             boolean visible) {
-        String extraClass = visible ? "" : "hidden";
-        String[] chunks = new String[] {
-            "<div id=\"", func, post_id, "\" class=\"action_link ", 
-            extraClass, "\">", "<a href=\"#\" onclick=\"",func, "('",
-            post_id, "'); return false;\">", title, "</a></div>"
-        };
-        append(chunks);
+        ACTION_LINK.render(sb, func, post_id, visible ? "" : "hidden", title);
     }
 
     /**
@@ -379,60 +459,47 @@ class StreamRenderer {
      */
     private void renderTimeStamp(JSONObject post) {
         String dateStr = post.optString("created_time");
-        SimpleDateFormat formatter = getDateFormat();
-        ParsePosition pos = new ParsePosition(0);
-        long then  = formatter.parse(dateStr, pos).getTime();
-        long now = new Date().getTime();
+        Date date = getDateFormat().parse(dateStr, new ParsePosition(0));
+        if (date == null) {
+            Log.w("StreamRenderer", "Invalid created_time: " + dateStr);
+            return;
+        }
+        append("<div class=\"timestamp\">");
+        appendAge(sb, date.getTime(), now);
+        append("</div>");
+    }
 
+    /**
+     * Appends the age of a post as shown in the stream, e.g.
+     * "3 hours ago". Also used by FeedAdapter.
+     *
+     * @param sb
+     * @param then the post's created_time, in milliseconds
+     * @param now
+     */
+    static void appendAge(StringBuilder sb, long then, long now) {
         long seconds = (now - then)/1000;
         long minutes = seconds/60;
         long hours = minutes/60;
         long days = hours/24;
 
-        String friendly = null;
-        long num = 0;
+        long num;
+        String unit;
         if (days > 0) {
             num = days;
-            friendly = days + " day";
+            unit = "day";
         } else if (hours > 0) {
             num = hours;
-            friendly = hours + " hour";
+            unit = "hour";
         } else if (minutes > 0) {
             num = minutes;
-            friendly = minutes + " minute";
+            unit = "minute";
         } else {
             num = seconds;
-            friendly = seconds + " second";
-        }
-        if (num > 1) {
-            friendly += "s";
+            unit = "second";
         }
-        String[] chunks = new String[] {
-            "<div class=\"timestamp\">",
-            friendly,
-            " ago",
-            "</div>"
-        };
-        append(chunks);
-    }
-
-    /**
-     * Returns the available actions for the post.
-     * 
-     * @param post
-     * @return
-     */
-    private HashSet<String> getActions(JSONObject post) {
-        HashSet<String> actionsSet = new HashSet<String>();
-        JSONArray actions = post.optJSONArray("actions");
-        if (actions != null) {
-            for (int j = 0; j < actions.length(); j++) {
-                JSONObject action = actions.optJSONObject(j);
-                String actionName = action.optString("name");
-                actionsSet.add(actionName);
-            }
-        }
-        return actionsSet;
+        sb.append(num).append(' ').append(unit)
+                .append((num > 1) ? "s ago" : " ago");
     }
 
     /**
@@ -441,22 +508,16 @@ class StreamRenderer {
      * @param post
      */
     private void renderLikes(JSONObject post) {
-        int numLikes = post.optInt("likes", 0);
+        // 'likes' is a count in the old API, an object with a
+        // count in the current one.
+        JSONObject likes = post.optJSONObject("likes");
+        int numLikes = (likes != null) ?
+            likes.optInt("count", 0) : post.optInt("likes", 0);
         if (numLikes > 0) {
             String desc = numLikes == 1 ?
                 "person likes this" :
                 "people like this";
-            String[] chunks = new String[] {
-                "<div class=\"like_icon\">",
-                "<img src=\"file:///android_asset/like_icon.png\"/>",
-                "</div>",
-                "<div class=\"num_likes\">",
-                new Integer(numLikes).toString(),
-                " ",
-                desc,
-                "</div>"
-            };
-            append(chunks);
+            LIKES.render(sb, numLikes, desc);
         }
     }
 
@@ -467,8 +528,7 @@ class StreamRenderer {
      * @throws JSONException
      */
     private void renderComments(JSONObject post) throws JSONException {
-        append("<div class=\"comments\" id=\"comments" + post.optString("id")
-                + "\">");
+        COMMENTS_START.render(sb, post.optString("id"));
         JSONObject comments = post.optJSONObject("comments");
         if (comments != null) {
             JSONArray data = comments.optJSONArray("data");
@@ -497,14 +557,7 @@ class StreamRenderer {
             String authorName = from.optString("name");
             renderAuthor(authorId, authorName);
         }
-        String message = comment.optString("message");
-        append("<div class=\"comment\">");
-        String[] chunks = {
-            "&nbsp;",
-            message,
-            "</div>"
-        };	
-        append(chunks);
+        COMMENT.render(sb, comment.optString("message"));
     }
 
 
@@ -514,25 +567,11 @@ class StreamRenderer {
      * @param post
      */
     private void renderCommentBox(JSONObject post) {
-        String id = post.optString("id");
-        String[] chunks = new String[] {
-            "<div class=\"comment_box\" id=\"comment_box", id, "\">",
-            "<input id=\"comment_box_input", id, "\"/>",
-            "<button onclick=\"postComment('", id , "');\">Post</button>",
-            "<div class=\"clear\"></div>",
-            "</div>"
-        };
-        append(chunks);
+        COMMENT_BOX.render(sb, post.optString("id"));
     }
 
 
     private void append(String str) {
         sb.append(str);
     }
-
-    private void append(String[] chunks) {
-        for (String chunk : chunks) {
-            sb.append(chunk);
-        }
-    }
-}
\ No newline at end of file
+}
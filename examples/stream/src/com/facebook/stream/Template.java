@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+import java.util.ArrayList;
+
+/**
+ * An HTML snippet with {name} placeholders, split once into its literal
+ * parts so that rendering it is a series of appends to a StringBuilder,
+ * with no intermediate strings.
+ *
+ * Values are passed to render() in the order in which their names first
+ * appear in the template; a name may appear several times. render() takes
+ * up to four values, with no array allocated for them, and a number can be
+ * passed as the first value without converting it to a String.
+ *
+ * <pre>
+ * Template LINK = Template.compile("&lt;a href=\"{href}\"&gt;{text}&lt;/a&gt;");
+ * LINK.render(sb, href, text);
+ * </pre>
+ */
+final class Template {
+
+    // The literal parts; literals[i] comes before the value of slots[i],
+    // the last literal comes after the last value.
+    private final String[] literals;
+    private final int[] slots;
+    private final int numValues;
+
+    private Template(String[] literals, int[] slots, int numValues) {
+        this.literals = literals;
+        this.slots = slots;
+        this.numValues = numValues;
+    }
+
+    /**
+     * Compiles a template.
+     *
+     * @param template
+     * @return
+     */
+    public static Template compile(String template) {
+        ArrayList<String> literals = new ArrayList<String>();
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        int start = 0;
+        while (true) {
+            int open = template.indexOf('{', start);
+            int close = (open >= 0) ? template.indexOf('}', open) : -1;
+            if (close < 0) {
+                break;
+            }
+            String name = template.substring(open + 1, close);
+            int slot = names.indexOf(name);
+            if (slot < 0) {
+                slot = names.size();
+                names.add(name);
+            }
+            literals.add(template.substring(start, open));
+            slots.add(slot);
+            start = close + 1;
+        }
+        literals.add(template.substring(start));
+
+        int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+        return new Template(literals.toArray(new String[literals.size()]),
+                slotArray, names.size());
+    }
+
+    /**
+     * Appends the template to sb, with the given value in place of its
+     * placeholder.
+     *
+     * @param sb
+     * @param value0
+     */
+    public void render(StringBuilder sb, String value0) {
+        render(sb, 1, value0, null, null, null);
+    }
+
+    /**
+     * Appends the template to sb, with the given values in place of the
+     * placeholders.
+     *
+     * @param sb
+     * @param value0
+     * @param value1
+     */
+    public void render(StringBuilder sb, String value0, String value1) {
+        render(sb, 2, value0, value1, null, null);
+    }
+
+    /**
+     * @see #render(StringBuilder, String, String)
+     */
+    public void render(StringBuilder sb, String value0, String value1,
+            String value2) {
+        render(sb, 3, value0, value1, value2, null);
+    }
+
+    /**
+     * @see #render(StringBuilder, String, String)
+     */
+    public void render(StringBuilder sb, String value0, String value1,
+            String value2, String value3) {
+        render(sb, 4, value0, value1, value2, value3);
+    }
+
+    /**
+     * Appends the template to sb, with the number appended in place of
+     * the first placeholder and the string in place of the second.
+     *
+     * @param sb
+     * @param value0
+     * @param value1
+     */
+    public void render(StringBuilder sb, long value0, String value1) {
+        checkValues(2);
+        for (int i = 0; i < slots.length; i++) {
+            sb.append(literals[i]);
+            if (slots[i] == 0) {
+                sb.append(value0);
+            } else {
+                sb.append(value1);
+            }
+        }
+        sb.append(literals[slots.length]);
+    }
+
+    private void render(StringBuilder sb, int count, String value0,
+            String value1, String value2, String value3) {
+        checkValues(count);
+        for (int i = 0; i < slots.length; i++) {
+            sb.append(literals[i]);
+            switch (slots[i]) {
+            case 0:
+                sb.append(value0);
+                break;
+            case 1:
+                sb.append(value1);
+                break;
+            case 2:
+                sb.append(value2);
+                break;
+            default:
+                sb.append(value3);
+                break;
+            }
+        }
+        sb.append(literals[slots.length]);
+    }
+
+    private void checkValues(int count) {
+        if (count != numValues) {
+            throw new IllegalArgumentException("Expected " + numValues
+                    + " values, got " + count);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.test.AndroidTestCase;
+
+public class FeedStoreTest extends AndroidTestCase {
+
+    // The created_time of the first post; the others are a minute
+    // older each.
+    private static final long NEWEST_TIME = 1300000000000L;
+
+    private File dir;
+    private Context context;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = new File(getContext().getCacheDir(), "feed_store_test");
+        deleteFiles();
+        dir.mkdirs();
+        // keeps the store's files apart from the app's.
+        context = new ContextWrapper(getContext()) {
+            public File getFileStreamPath(String name) {
+                return new File(dir, name);
+            }
+
+            public boolean deleteFile(String name) {
+                return new File(dir, name).delete();
+            }
+
+            public String[] fileList() {
+                return dir.list();
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFiles();
+        super.tearDown();
+    }
+
+    public void testMergeKeepsNewestFirst() throws Exception {
+        FeedStore store = new FeedStore(context);
+        store.merge(posts(post(2), post(0), post(1)));
+        assertIds(load(store), 0, 1, 2);
+    }
+
+    public void testMergeUpdatesKnownPosts() throws Exception {
+        FeedStore store = new FeedStore(context);
+        store.merge(posts(post(0), post(1)));
+        JSONObject liked = post(1);
+        liked.put("likes", new JSONObject().put("count", 2));
+        store.merge(posts(liked));
+
+        JSONArray posts = load(store);
+        assertIds(posts, 0, 1);
+        assertEquals(2, posts.getJSONObject(1)
+                .getJSONObject("likes").getInt("count"));
+    }
+
+    public void testLoadOlder() throws Exception {
+        FeedStore store = new FeedStore(context);
+        store.merge(posts(post(0), post(1), post(2), post(3)));
+        JSONArray older = load(store, time(1), 2);
+        assertIds(older, 2, 3);
+    }
+
+    public void testUpdateChangesStoredPost() throws Exception {
+        FeedStore store = new FeedStore(context);
+        store.merge(posts(post(0)));
+        store.update(id(0), new FeedStore.Updater() {
+            public void update(JSONObject post) throws JSONException {
+                post.put("message", "updated");
+            }
+        });
+        store.update("unknown", new FeedStore.Updater() {
+            public void update(JSONObject post) {
+                fail("only stored posts are updated");
+            }
+        });
+        JSONArray posts = load(store);
+        assertIds(posts, 0);
+        assertEquals("updated", posts.getJSONObject(0).getString("message"));
+    }
+
+    public void testTrimKeepsMaxPosts() throws Exception {
+        FeedStore store = new FeedStore(context);
+        JSONArray posts = new JSONArray();
+        for (int i = 0; i < FeedStore.MAX_POSTS + 5; i++) {
+            posts.put(post(i));
+        }
+        store.merge(posts);
+
+        JSONArray stored = load(store, Long.MAX_VALUE, FeedStore.MAX_POSTS * 2);
+        assertEquals(FeedStore.MAX_POSTS, stored.length());
+        assertEquals(id(FeedStore.MAX_POSTS - 1),
+                stored.getJSONObject(FeedStore.MAX_POSTS - 1).getString("id"));
+        assertEquals(FeedStore.MAX_POSTS, countPostFiles());
+    }
+
+    public void testTrimKeepsMaxBytes() throws Exception {
+        FeedStore store = new FeedStore(context);
+        char[] message = new char[FeedStore.MAX_BYTES / 10];
+        Arrays.fill(message, 'x');
+        JSONArray posts = new JSONArray();
+        for (int i = 0; i < 20; i++) {
+            posts.put(post(i).put("message", new String(message)));
+        }
+        store.merge(posts);
+
+        JSONArray stored = load(store, Long.MAX_VALUE, 20);
+        assertEquals(9, stored.length());
+        assertEquals(id(0), stored.getJSONObject(0).getString("id"));
+        assertEquals(9, countPostFiles());
+    }
+
+    public void testRebuildsUnreadableIndex() throws Exception {
+        FeedStore store = new FeedStore(context);
+        store.merge(posts(post(0), post(1), post(2)));
+        load(store);
+        write("feed_index.json", "[{\"id\":");
+
+        assertIds(load(new FeedStore(context)), 0, 1, 2);
+        assertEquals(3, countPostFiles());
+    }
+
+    public void testRebuildSkipsTemporaryFiles() throws Exception {
+        FeedStore store = new FeedStore(context);
+        store.merge(posts(post(0), post(1)));
+        load(store);
+        write("feed_index.json", "not json");
+        write("feed_post_" + id(2) + ".tmp", post(2).toString());
+        write("feed_index.json.tmp", "[]");
+
+        assertIds(load(new FeedStore(context)), 0, 1);
+        assertFalse(new File(dir, "feed_post_" + id(2) + ".tmp").exists());
+        assertFalse(new File(dir, "feed_index.json.tmp").exists());
+    }
+
+    public void testDeletesPostsMissingFromIndex() throws Exception {
+        FeedStore store = new FeedStore(context);
+        store.merge(posts(post(0)));
+        load(store);
+        write("feed_post_" + id(1), post(1).toString());
+
+        assertIds(load(new FeedStore(context)), 0);
+        assertFalse(new File(dir, "feed_post_" + id(1)).exists());
+    }
+
+    public void testClear() throws Exception {
+        FeedStore store = new FeedStore(context);
+        store.merge(posts(post(0), post(1)));
+        store.clear();
+        assertEquals(0, load(store).length());
+        assertEquals(0, countPostFiles());
+        assertFalse(new File(dir, "feed_index.json").exists());
+    }
+
+    /**
+     * Returns the newest posts of the store, once the work queued
+     * before has run.
+     */
+    private static JSONArray load(FeedStore store) throws Exception {
+        return load(store, Long.MAX_VALUE, 100);
+    }
+
+    private static JSONArray load(FeedStore store, long before, int count)
+            throws Exception {
+        final JSONArray[] result = new JSONArray[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        store.loadOlder(before, count, new FeedStore.LoadListener() {
+            public void onLoaded(JSONObject data) {
+                result[0] = data.optJSONArray("data");
+                done.countDown();
+            }
+        });
+        assertTrue("timed out", done.await(10, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    private static void assertIds(JSONArray posts, int... numbers)
+            throws JSONException {
+        assertEquals(numbers.length, posts.length());
+        for (int i = 0; i < numbers.length; i++) {
+            assertEquals(id(numbers[i]), posts.getJSONObject(i).getString("id"));
+        }
+    }
+
+    private static JSONArray posts(JSONObject... posts) {
+        JSONArray array = new JSONArray();
+        for (JSONObject post : posts) {
+            array.put(post);
+        }
+        return array;
+    }
+
+    private static JSONObject post(int number) throws JSONException {
+        JSONObject post = new JSONObject();
+        post.put("id", id(number));
+        post.put("message", "post " + number);
+        post.put("created_time",
+                StreamRenderer.getDateFormat().format(new Date(time(number))));
+        return post;
+    }
+
+    private static String id(int number) {
+        return "1_" + number;
+    }
+
+    private static long time(int number) {
+        return NEWEST_TIME - number * 60 * 1000L;
+    }
+
+    private int countPostFiles() {
+        int count = 0;
+        for (String name : dir.list()) {
+            if (name.startsWith("feed_post_")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void write(String name, String data) throws IOException {
+        FileOutputStream out = new FileOutputStream(new File(dir, name));
+        try {
+            out.write(data.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void deleteFiles() {
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                new File(dir, name).delete();
+            }
+        }
+    }
+}
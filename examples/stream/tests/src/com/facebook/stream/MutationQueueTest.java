@@ -0,0 +1,152 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+/**
+ * The tests clear the saved session and run logged out, so every
+ * batch that is sent fails, and each mutation it held is reported to
+ * the listener.
+ */
+public class MutationQueueTest extends AndroidTestCase {
+
+    private MutationQueue queue;
+    private RecordingListener listener;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Session.clearSavedSession(getContext());
+        queue = new MutationQueue(new FeedStore(getContext()));
+        listener = new RecordingListener();
+        queue.setListener(listener);
+    }
+
+    public void testLikeFailureIsRolledBack() throws Exception {
+        queue.like("1_1", true);
+        assertEvents("like failed 1_1 false");
+    }
+
+    public void testLikeThenUnlikeSendsNothing() throws Exception {
+        queue.like("1_1", true);
+        queue.like("1_1", false);
+        queue.like("1_2", true);
+        assertEvents("like failed 1_2 false");
+    }
+
+    public void testLikesAreKeptPerPost() throws Exception {
+        queue.like("1_1", true);
+        queue.like("1_2", false);
+        queue.like("1_1", false);
+        queue.like("1_1", true);
+        assertEvents("like failed 1_1 false", "like failed 1_2 true");
+    }
+
+    public void testCommentsGetUniqueIds() throws Exception {
+        String first = queue.postComment("1_1", "first");
+        String second = queue.postComment("1_1", "second");
+        assertFalse(first.equals(second));
+        assertEvents("comment failed 1_1 " + first + " first",
+                "comment failed 1_1 " + second + " second");
+    }
+
+    public void testLogoutDropsPendingMutations() throws Exception {
+        queue.like("1_1", true);
+        queue.postComment("1_1", "dropped");
+        Session.clearSavedSession(getContext());
+        queue.like("1_2", true);
+        assertEvents("like failed 1_2 false");
+    }
+
+    public void testRemovedListenerIsNotTold() throws Exception {
+        queue.removeListener(listener);
+        queue.like("1_1", true);
+        RecordingListener other = new RecordingListener();
+        queue.setListener(other);
+        queue.removeListener(listener);
+        queue.like("1_2", true);
+        other.await(2);
+        assertEquals(Arrays.asList("like failed 1_1 false",
+                "like failed 1_2 false"), other.getEvents());
+        assertTrue(listener.getEvents().isEmpty());
+    }
+
+    /**
+     * Waits for the given events, then checks that no others were
+     * reported.
+     */
+    private void assertEvents(String... expected) throws Exception {
+        listener.await(expected.length);
+        assertEquals(Arrays.asList(expected), listener.getEvents());
+    }
+
+    private class RecordingListener implements MutationQueue.Listener {
+
+        private final ArrayList<String> events = new ArrayList<String>();
+        private CountDownLatch latch;
+
+        public void onLikeFailed(String postId, boolean liked) {
+            record("like failed " + postId + " " + liked);
+        }
+
+        public void onCommentPosted(String postId, String localId,
+                String commentId) {
+            record("comment posted " + postId + " " + localId);
+        }
+
+        public void onCommentFailed(String postId, String localId,
+                String message) {
+            record("comment failed " + postId + " " + localId + " " +
+                    message);
+        }
+
+        private synchronized void record(String event) {
+            events.add(event);
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+
+        /**
+         * Waits for the given number of events, then for the batch
+         * that reported them to be done, since a batch reports its
+         * mutations while it holds the queue's lock.
+         */
+        void await(int count) throws InterruptedException {
+            CountDownLatch latch;
+            synchronized (this) {
+                latch = new CountDownLatch(
+                        Math.max(0, count - events.size()));
+                this.latch = latch;
+            }
+            assertTrue("timed out", latch.await(10, TimeUnit.SECONDS));
+            synchronized (queue) {
+                // the batch is done.
+            }
+        }
+
+        synchronized ArrayList<String> getEvents() {
+            return new ArrayList<String>(events);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.stream;
+
+import junit.framework.TestCase;
+
+public class TemplateTest extends TestCase {
+
+    public void testRendersValuesInPlace() {
+        Template link = Template.compile("<a href=\"{href}\">{text}</a>");
+        StringBuilder sb = new StringBuilder("before ");
+        link.render(sb, "http://example.com", "Example");
+        assertEquals("before <a href=\"http://example.com\">Example</a>",
+                sb.toString());
+    }
+
+    public void testRepeatedNamesTakeOneValue() {
+        Template template = Template.compile("{a}-{b}-{a}");
+        StringBuilder sb = new StringBuilder();
+        template.render(sb, "x", "y");
+        assertEquals("x-y-x", sb.toString());
+    }
+
+    public void testValuesFollowFirstAppearance() {
+        Template template = Template.compile("{b}{a}{b}{c}{d}");
+        StringBuilder sb = new StringBuilder();
+        template.render(sb, "1", "2", "3", "4");
+        assertEquals("12134", sb.toString());
+    }
+
+    public void testLiteralsAtTheEnds() {
+        Template template = Template.compile("{a}middle{b}");
+        StringBuilder sb = new StringBuilder();
+        template.render(sb, "<", ">");
+        assertEquals("<middle>", sb.toString());
+    }
+
+    public void testRendersNumbers() {
+        Template template = Template.compile("{count} {unit} ago");
+        StringBuilder sb = new StringBuilder();
+        template.render(sb, 42L, "minutes");
+        template.render(sb, 1, "day");
+        assertEquals("42 minutes ago1 day ago", sb.toString());
+    }
+
+    public void testUnclosedBraceIsLiteral() {
+        Template template = Template.compile("{a} {b");
+        StringBuilder sb = new StringBuilder();
+        template.render(sb, "x");
+        assertEquals("x {b", sb.toString());
+    }
+
+    public void testWrongNumberOfValues() {
+        Template template = Template.compile("{a}{b}");
+        try {
+            template.render(new StringBuilder(), "only one");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
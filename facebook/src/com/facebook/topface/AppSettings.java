@@ -0,0 +1,217 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.HashMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+
+/**
+ * Small store for application-level settings fetched from the Graph API
+ * (e.g. "supports_attribution").
+ *
+ * Settings are kept in memory and persisted to SharedPreferences together
+ * with the time they were fetched, so the Graph API is queried at most once
+ * per SETTINGS_TTL no matter how many features (install publishing, etc.)
+ * ask for them.
+ */
+public final class AppSettings {
+
+    public static final String SUPPORTS_ATTRIBUTION = "supports_attribution";
+
+    // Settings are considered fresh for 24 hours after they were fetched.
+    public static final long SETTINGS_TTL = 24L * 60L * 60L * 1000L;
+
+    // Application fields requested from the graph. Append new app-level
+    // flags here so that every feature shares the same cached request.
+    private static final String APPLICATION_FIELDS = "fields";
+    private static final String SETTINGS_FIELDS = SUPPORTS_ATTRIBUTION;
+
+    private static final String SETTINGS_PREFERENCES = "com.facebook.sdk.appSettings";
+    private static final String SETTINGS_KEY_SUFFIX = "settings";
+    private static final String FETCHED_KEY_SUFFIX = "fetched";
+
+    private static final HashMap<String, Entry> sCache = new HashMap<String, Entry>();
+
+    // Serializes network fetches so that concurrent callers wait for and
+    // share a single round trip.
+    private static final Object sFetchLock = new Object();
+
+    private AppSettings() {
+    }
+
+    /**
+     * Return the settings for the given application, fetching them from the
+     * Graph API if nothing fresh is cached.
+     *
+     * Note that this method may block waiting for a network response, so do
+     * not call it in a UI thread.
+     *
+     * @param fb
+     *            Facebook object used to issue the request
+     * @param applicationId
+     *            the application whose settings are requested
+     * @param context
+     *            Android context used to access the persistent store
+     * @return the settings JSON object
+     * @throws JSONException
+     * @throws FacebookError
+     * @throws MalformedURLException
+     * @throws IOException
+     */
+    public static JSONObject getSettings(Facebook fb, String applicationId, Context context)
+            throws JSONException, FacebookError, MalformedURLException, IOException {
+        JSONObject settings = getCachedSettings(applicationId, context);
+        if (settings != null) {
+            return settings;
+        }
+
+        synchronized (sFetchLock) {
+            // another thread may have completed the fetch while we waited.
+            settings = getCachedSettings(applicationId, context);
+            if (settings != null) {
+                return settings;
+            }
+
+            Bundle params = new Bundle();
+            params.putString(APPLICATION_FIELDS, SETTINGS_FIELDS);
+            settings = Util.parseJson(fb.request(applicationId, params));
+            put(applicationId, context, settings, System.currentTimeMillis());
+            return settings;
+        }
+    }
+
+    /**
+     * Return the cached settings for the given application without touching
+     * the network, or null if none are cached or they have expired.
+     *
+     * @param applicationId
+     * @param context
+     * @return the settings JSON object, or null
+     */
+    public static JSONObject getCachedSettings(String applicationId, Context context) {
+        Entry entry;
+        synchronized (AppSettings.class) {
+            entry = sCache.get(applicationId);
+        }
+        if (entry == null) {
+            entry = load(applicationId, context);
+        }
+        if (entry == null || entry.isExpired()) {
+            return null;
+        }
+        return entry.settings;
+    }
+
+    /**
+     * Whether the application has install attribution enabled on its
+     * developer config page. Settings without the field, as returned when the
+     * application doesn't set it, mean it hasn't.
+     *
+     * Note that this method may block waiting for a network response, so do
+     * not call it in a UI thread.
+     */
+    public static boolean supportsAttribution(Facebook fb, String applicationId, Context context)
+            throws JSONException, FacebookError, MalformedURLException, IOException {
+        JSONObject settings = getSettings(fb, applicationId, context);
+        Object doesSupportAttribution = settings.opt(SUPPORTS_ATTRIBUTION);
+        if (doesSupportAttribution == null || doesSupportAttribution == JSONObject.NULL) {
+            return false;
+        }
+        if (!(doesSupportAttribution instanceof Boolean)) {
+            // don't keep failing on the cached response until it expires.
+            invalidate(applicationId, context);
+            throw new JSONException(String.format(
+                "%s contains %s instead of a Boolean", SUPPORTS_ATTRIBUTION, doesSupportAttribution));
+        }
+        return (Boolean) doesSupportAttribution;
+    }
+
+    /**
+     * Drop the cached settings for the given application so that the next
+     * access fetches them again.
+     *
+     * @param applicationId
+     * @param context
+     */
+    public static void invalidate(String applicationId, Context context) {
+        synchronized (AppSettings.class) {
+            sCache.remove(applicationId);
+        }
+        getPreferences(context).edit()
+                .remove(applicationId + SETTINGS_KEY_SUFFIX)
+                .remove(applicationId + FETCHED_KEY_SUFFIX)
+                .commit();
+    }
+
+    private static void put(String applicationId, Context context,
+            JSONObject settings, long fetchedAt) {
+        synchronized (AppSettings.class) {
+            sCache.put(applicationId, new Entry(settings, fetchedAt));
+        }
+        getPreferences(context).edit()
+                .putString(applicationId + SETTINGS_KEY_SUFFIX, settings.toString())
+                .putLong(applicationId + FETCHED_KEY_SUFFIX, fetchedAt)
+                .commit();
+    }
+
+    private static Entry load(String applicationId, Context context) {
+        SharedPreferences preferences = getPreferences(context);
+        String json = preferences.getString(applicationId + SETTINGS_KEY_SUFFIX, null);
+        long fetchedAt = preferences.getLong(applicationId + FETCHED_KEY_SUFFIX, 0);
+        if (json == null || fetchedAt == 0) {
+            return null;
+        }
+
+        Entry entry;
+        try {
+            entry = new Entry(new JSONObject(json), fetchedAt);
+        } catch (JSONException e) {
+            return null;
+        }
+        synchronized (AppSettings.class) {
+            sCache.put(applicationId, entry);
+        }
+        return entry;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(SETTINGS_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static class Entry {
+        final JSONObject settings;
+        final long fetchedAt;
+
+        Entry(JSONObject settings, long fetchedAt) {
+            this.settings = settings;
+            this.fetchedAt = fetchedAt;
+        }
+
+        boolean isExpired() {
+            long age = System.currentTimeMillis() - fetchedAt;
+            return age < 0 || age >= SETTINGS_TTL;
+        }
+    }
+}
@@ -242,15 +242,52 @@ public class AsyncFacebookRunner {
      *            returns to the callback. This has no effect on the request
      *            itself.
      */
+    public void request(String graphPath,
+                        Bundle parameters,
+                        String httpMethod,
+                        RequestListener listener,
+                        Object state) {
+        request(graphPath, parameters, httpMethod, listener, null, state);
+    }
+
+    /**
+     * Make a request to the Facebook Graph API as above, reporting the
+     * progress of the request body (e.g. an uploaded photo) as it is sent.
+     *
+     * @param graphPath
+     *            Path to resource in the Facebook graph, e.g. "me/photos"
+     * @param parameters
+     *            key-value parameters, including byte[] or UploadPart
+     *            attachments
+     * @param httpMethod
+     *            http verb, e.g. "POST"
+     * @param listener
+     *            Callback interface to notify the application when the request
+     *            has completed.
+     * @param progressListener
+     *            Callback interface notified, in the request thread, of the
+     *            bytes written and the upload throughput; may be null.
+     * @param state
+     *            An arbitrary object used to identify the request when it
+     *            returns to the callback. This has no effect on the request
+     *            itself.
+     */
     public void request(final String graphPath,
                         final Bundle parameters,
                         final String httpMethod,
                         final RequestListener listener,
+                        final UploadProgressListener progressListener,
                         final Object state) {
+        final long enqueued = System.nanoTime();
         new Thread() {
             @Override public void run() {
+                RequestTrace trace = RequestTracing.start(graphPath, parameters, httpMethod);
+                if (trace != null) {
+                    trace.queueMillis = RequestTrace.millisSince(enqueued);
+                }
                 try {
-                    String resp = fb.request(graphPath, parameters, httpMethod);
+                    String resp = fb.request(graphPath, parameters, httpMethod, trace,
+                            progressListener);
                     listener.onComplete(resp, state);
                 } catch (FileNotFoundException e) {
                     listener.onFileNotFoundException(e, state);
@@ -258,6 +295,10 @@ public class AsyncFacebookRunner {
                     listener.onMalformedURLException(e, state);
                 } catch (IOException e) {
                     listener.onIOException(e, state);
+                } finally {
+                    if (trace != null) {
+                        RequestTracing.complete(trace);
+                    }
                 }
             }
         }.start();
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import android.content.Context;
+
+/**
+ * Caches the attribution ID exposed by the Facebook app's content provider.
+ *
+ * The provider lives in another process, so querying it costs a binder
+ * round trip. The value is looked up once off the UI thread and kept in
+ * memory until it expires or the Facebook app is installed, updated or
+ * removed. getCachedAttributionId() never blocks and is meant for hot
+ * paths such as event logging.
+ */
+public final class AttributionIdProvider {
+
+    private static final String FB_APP_PACKAGE = "com.facebook.katana";
+
+    // The Facebook app may log a different user in without a package
+    // change, so the cached value is refreshed at least once an hour.
+    public static final long ATTRIBUTION_ID_TTL = 60L * 60L * 1000L;
+
+    private static String sAttributionId = null;
+    private static long sFetchedAt = 0;
+    // Bumped by invalidate(), so that a lookup started before it does not
+    // store its stale result.
+    private static int sGeneration = 0;
+    private static boolean sLoading = false;
+    private static boolean sMonitoring = false;
+
+    private AttributionIdProvider() {
+    }
+
+    /**
+     * Return the cached attribution ID without blocking. If nothing is
+     * cached yet, or the cached value has expired, a background lookup is
+     * started and null is returned.
+     *
+     * @param context
+     * @return the attribution ID, or null if it is not known (yet)
+     */
+    public static String getCachedAttributionId(Context context) {
+        synchronized (AttributionIdProvider.class) {
+            if (isFresh()) {
+                return sAttributionId;
+            }
+        }
+        loadAsync(context);
+        return null;
+    }
+
+    /**
+     * Return the attribution ID, querying the Facebook app's content provider
+     * if nothing fresh is cached.
+     *
+     * Note that this method may block on a cross-process query, so do not
+     * call it in a UI thread.
+     *
+     * @param context
+     * @return the attribution ID, or null if the user has not installed or
+     *         logged in to the Facebook app
+     */
+    public static String getAttributionId(Context context) {
+        int generation;
+        synchronized (AttributionIdProvider.class) {
+            if (isFresh()) {
+                return sAttributionId;
+            }
+            generation = sGeneration;
+        }
+        startMonitoring(context);
+
+        String attributionId = Facebook.getAttributionId(context.getContentResolver());
+        synchronized (AttributionIdProvider.class) {
+            if (generation == sGeneration) {
+                sAttributionId = attributionId;
+                sFetchedAt = System.currentTimeMillis();
+            }
+        }
+        return attributionId;
+    }
+
+    /**
+     * Look the attribution ID up on the SDK executor if nothing fresh is
+     * cached. Repeated calls while a lookup is in flight are ignored.
+     *
+     * @param context
+     */
+    public static void loadAsync(Context context) {
+        synchronized (AttributionIdProvider.class) {
+            if (isFresh() || sLoading) {
+                return;
+            }
+            sLoading = true;
+        }
+
+        final Context applicationContext = context.getApplicationContext();
+        SdkExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getAttributionId(applicationContext);
+                } catch (Exception e) {
+                    Logger.d("Facebook-attribution", "Attribution ID lookup failed: {}", e);
+                } finally {
+                    synchronized (AttributionIdProvider.class) {
+                        sLoading = false;
+                    }
+                }
+            }
+        }, SdkExecutor.PRIORITY_LOW);
+    }
+
+    /**
+     * Drop the cached attribution ID so that the next access queries the
+     * content provider again.
+     */
+    public static synchronized void invalidate() {
+        sAttributionId = null;
+        sFetchedAt = 0;
+        sGeneration++;
+    }
+
+    private static boolean isFresh() {
+        long age = System.currentTimeMillis() - sFetchedAt;
+        return sFetchedAt != 0 && age >= 0 && age < ATTRIBUTION_ID_TTL;
+    }
+
+    private static void startMonitoring(Context context) {
+        synchronized (AttributionIdProvider.class) {
+            if (sMonitoring) {
+                return;
+            }
+            sMonitoring = true;
+        }
+        PackageMonitor.addListener(context, new PackageMonitor.PackageListener() {
+            @Override
+            public void onPackageChanged(String packageName) {
+                if (FB_APP_PACKAGE.equals(packageName)) {
+                    invalidate();
+                }
+            }
+        });
+    }
+}
@@ -20,18 +20,14 @@ import android.Manifest;
 import android.app.Activity;
 import android.app.Dialog;
 import android.content.*;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
-import android.content.pm.Signature;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.*;
 import android.text.TextUtils;
 import android.webkit.CookieSyncManager;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -63,8 +59,6 @@ public class Facebook {
     private static final String ATTRIBUTION_PREFERENCES = "com.facebook.sdk.attributionTracking";
     private static final String PUBLISH_ACTIVITY_PATH = "%s/activities";
     private static final String MOBILE_INSTALL_EVENT = "MOBILE_APP_INSTALL";
-    private static final String SUPPORTS_ATTRIBUTION = "supports_attribution";
-    private static final String APPLICATION_FIELDS = "fields";
     private static final String ANALYTICS_EVENT = "event";
     private static final String ATTRIBUTION_KEY = "attribution";
 
@@ -80,6 +74,8 @@ public class Facebook {
         "https://m.facebook.com/dialog/";
     protected static String GRAPH_BASE_URL =
         "https://graph.facebook.com/";
+    protected static String GRAPH_VIDEO_BASE_URL =
+        "https://graph-video.facebook.com/";
     protected static String RESTSERVER_URL =
         "https://api.facebook.com/restserver.php";
 
@@ -99,7 +95,7 @@ public class Facebook {
 
     private boolean publishSuccess = false;
     private boolean shouldAutoPublishInstall = true;
-    private AutoPublishAsyncTask mAutoPublishAsyncTask = null;
+    private AutoPublishTask mAutoPublishTask = null;
 
     /**
      * Constructor for Facebook object.
@@ -313,6 +309,7 @@ public class Facebook {
     /**
      * Query the signature for the application that would be invoked by the
      * given intent and verify that it matches the FB application's signature.
+     * The result is cached per package until the package changes.
      *
      * @param context
      * @param packageName
@@ -320,21 +317,7 @@ public class Facebook {
      */
     private boolean validateAppSignatureForPackage(Context context,
         String packageName) {
-
-        PackageInfo packageInfo;
-        try {
-            packageInfo = context.getPackageManager().getPackageInfo(
-                    packageName, PackageManager.GET_SIGNATURES);
-        } catch (NameNotFoundException e) {
-            return false;
-        }
-
-        for (Signature signature : packageInfo.signatures) {
-            if (signature.toCharsString().equals(FB_APP_SIGNATURE)) {
-                return true;
-            }
-        }
-        return false;
+        return SignatureValidator.validate(context, packageName);
     }
 
     /**
@@ -363,9 +346,8 @@ public class Facebook {
                 setAccessToken(values.getString(TOKEN));
                 setAccessExpiresIn(values.getString(EXPIRES));
                 if (isSessionValid()) {
-                    Util.logd("Facebook-authorize", "Login Success! access_token="
-                            + getAccessToken() + " expires="
-                            + getAccessExpires());
+                    Logger.d("Facebook-authorize", "Login Success! access_token={} expires={}",
+                            getAccessToken(), getAccessExpires());
                     mAuthDialogListener.onComplete(values);
                 } else {
                     mAuthDialogListener.onFacebookError(new FacebookError(
@@ -374,17 +356,17 @@ public class Facebook {
             }
 
             public void onError(DialogError error) {
-                Util.logd("Facebook-authorize", "Login failed: " + error);
+                Logger.d("Facebook-authorize", "Login failed: {}", error);
                 mAuthDialogListener.onError(error);
             }
 
             public void onFacebookError(FacebookError error) {
-                Util.logd("Facebook-authorize", "Login failed: " + error);
+                Logger.d("Facebook-authorize", "Login failed: {}", error);
                 mAuthDialogListener.onFacebookError(error);
             }
 
             public void onCancel() {
-                Util.logd("Facebook-authorize", "Login canceled");
+                Logger.d("Facebook-authorize", "Login canceled");
                 mAuthDialogListener.onCancel();
             }
         });
@@ -419,19 +401,19 @@ public class Facebook {
                 if (error != null) {
                     if (error.equals(SINGLE_SIGN_ON_DISABLED)
                             || error.equals("AndroidAuthKillSwitchException")) {
-                        Util.logd("Facebook-authorize", "Hosted auth currently "
+                        Logger.d("Facebook-authorize", "Hosted auth currently "
                             + "disabled. Retrying dialog auth...");
                         startDialogAuth(mAuthActivity, mAuthPermissions);
                     } else if (error.equals("access_denied")
                             || error.equals("OAuthAccessDeniedException")) {
-                        Util.logd("Facebook-authorize", "Login canceled by user.");
+                        Logger.d("Facebook-authorize", "Login canceled by user.");
                         mAuthDialogListener.onCancel();
                     } else {
                         String description = data.getStringExtra("error_description");
                         if (description != null) {
                             error = error + ":" + description;
                         }
-                        Util.logd("Facebook-authorize", "Login failed: " + error);
+                        Logger.d("Facebook-authorize", "Login failed: {}", error);
                         mAuthDialogListener.onFacebookError(
                           new FacebookError(error));
                     }
@@ -441,10 +423,9 @@ public class Facebook {
                     setAccessToken(data.getStringExtra(TOKEN));
                     setAccessExpiresIn(data.getStringExtra(EXPIRES));
                     if (isSessionValid()) {
-                        Util.logd("Facebook-authorize",
-                                "Login Success! access_token="
-                                        + getAccessToken() + " expires="
-                                        + getAccessExpires());
+                        Logger.d("Facebook-authorize",
+                                "Login Success! access_token={} expires={}",
+                                getAccessToken(), getAccessExpires());
                         mAuthDialogListener.onComplete(data.getExtras());
                     } else {
                         mAuthDialogListener.onFacebookError(new FacebookError(
@@ -457,8 +438,8 @@ public class Facebook {
 
                 // An Android error occured.
                 if (data != null) {
-                    Util.logd("Facebook-authorize",
-                            "Login failed: " + data.getStringExtra("error"));
+                    Logger.d("Facebook-authorize",
+                            "Login failed: {}", data.getStringExtra("error"));
                     mAuthDialogListener.onError(
                             new DialogError(
                                     data.getStringExtra("error"),
@@ -467,7 +448,7 @@ public class Facebook {
 
                 // User pressed the 'back' button.
                 } else {
-                    Util.logd("Facebook-authorize", "Login canceled by user.");
+                    Logger.d("Facebook-authorize", "Login canceled by user.");
                     mAuthDialogListener.onCancel();
                 }
             }
@@ -757,13 +738,40 @@ public class Facebook {
      */
     public String request(String graphPath, Bundle params, String httpMethod)
             throws FileNotFoundException, MalformedURLException, IOException {
+        RequestTrace trace = RequestTracing.start(graphPath, params, httpMethod);
+        try {
+            return request(graphPath, params, httpMethod, trace);
+        } finally {
+            if (trace != null) {
+                RequestTracing.complete(trace);
+            }
+        }
+    }
+
+    /**
+     * Make a request as above, recording timings into the given trace (which
+     * may be null). The caller is responsible for completing the trace.
+     */
+    String request(String graphPath, Bundle params, String httpMethod,
+            RequestTrace trace)
+            throws FileNotFoundException, MalformedURLException, IOException {
+        return request(graphPath, params, httpMethod, trace, null);
+    }
+
+    /**
+     * Make a request as above, also reporting the progress of the request
+     * body to the given listener (which may be null).
+     */
+    String request(String graphPath, Bundle params, String httpMethod,
+            RequestTrace trace, UploadProgressListener progressListener)
+            throws FileNotFoundException, MalformedURLException, IOException {
         params.putString("format", "json");
         if (isSessionValid()) {
             params.putString(TOKEN, getAccessToken());
         }
         String url = (graphPath != null) ? GRAPH_BASE_URL + graphPath
                                          : RESTSERVER_URL;
-        return Util.openUrl(url, httpMethod, params);
+        return Util.openUrl(url, httpMethod, params, trace, progressListener);
     }
 
     /**
@@ -937,6 +945,11 @@ public class Facebook {
 
     /**
      * Get Attribution ID for app install conversion tracking.
+     *
+     * Note that this method queries the Facebook app's content provider on
+     * every call, so do not call it in a UI thread. See AttributionIdProvider
+     * for a cached, non-blocking alternative.
+     *
      * @param contentResolver
      * @return Attribution ID that will be used for conversion tracking. It will be null only if
      *         the user has not installed or logged in to the Facebook app.
@@ -944,7 +957,10 @@ public class Facebook {
     public static String getAttributionId(ContentResolver contentResolver) {
         String [] projection = {ATTRIBUTION_ID_COLUMN_NAME};
         Cursor c = contentResolver.query(ATTRIBUTION_ID_CONTENT_URI, projection, null, null, null);
-        if (c == null || !c.moveToFirst()) {
+        if (c == null) {
+            return null;
+        }
+        if (!c.moveToFirst()) {
             c.close();
             return null;
         }
@@ -993,22 +1009,14 @@ public class Facebook {
     private static void publishInstall(final Facebook fb, final String applicationId, final Context context)
             throws JSONException, FacebookError, MalformedURLException, IOException {
 
-        String attributionId = Facebook.getAttributionId(context.getContentResolver());
         SharedPreferences preferences = context.getSharedPreferences(ATTRIBUTION_PREFERENCES, Context.MODE_PRIVATE);
         String pingKey = applicationId+"ping";
         long lastPing = preferences.getLong(pingKey, 0);
+        // only look the attribution ID up while the install is unpublished.
+        String attributionId = (lastPing == 0) ? AttributionIdProvider.getAttributionId(context) : null;
         if (lastPing == 0 && attributionId != null) {
-            Bundle supportsAttributionParams = new Bundle();
-            supportsAttributionParams.putString(APPLICATION_FIELDS, SUPPORTS_ATTRIBUTION);
-            JSONObject supportResponse = Util.parseJson(fb.request(applicationId, supportsAttributionParams));
-            Object doesSupportAttribution = (Boolean)supportResponse.get(SUPPORTS_ATTRIBUTION);
-
-            if (!(doesSupportAttribution instanceof Boolean)) {
-                throw new JSONException(String.format(
-                    "%s contains %s instead of a Boolean", SUPPORTS_ATTRIBUTION, doesSupportAttribution));
-            }
-
-            if ((Boolean)doesSupportAttribution) {
+            // app settings are cached, so repeated attempts don't re-query the graph.
+            if (AppSettings.supportsAttribution(fb, applicationId, context)) {
                 Bundle publishParams = new Bundle();
                 publishParams.putString(ANALYTICS_EVENT, MOBILE_INSTALL_EVENT);
                 publishParams.putString(ATTRIBUTION_KEY, attributionId);
@@ -1029,51 +1037,47 @@ public class Facebook {
     }
 
     void autoPublishAsync(final Context context, final boolean ignoreSetting) {
-        AutoPublishAsyncTask asyncTask = null;
+        AutoPublishTask task = null;
         synchronized (this) {
-            if (mAutoPublishAsyncTask == null && (ignoreSetting || getShouldAutoPublishInstall())) {
+            if (mAutoPublishTask == null && (ignoreSetting || getShouldAutoPublishInstall())) {
                 // copy the application id to guarantee thread safety against our container.
                 String applicationId = Facebook.this.mAppId;
 
                 // skip publish if we don't have an application id.
                 if (applicationId != null) {
-                    asyncTask = mAutoPublishAsyncTask = new AutoPublishAsyncTask(applicationId, context);
+                    task = mAutoPublishTask = new AutoPublishTask(applicationId, context);
                 }
             }
         }
 
-        if (asyncTask != null) {
-            asyncTask.execute();
+        if (task != null) {
+            SdkExecutor.execute(task, SdkExecutor.PRIORITY_LOW);
         }
     }
 
     /**
-     * Async implementation to allow auto publishing to not block the ui thread.
+     * Background task to allow auto publishing to not block the ui thread.
      */
-    private class AutoPublishAsyncTask extends AsyncTask<Void, Void, Void> {
+    private class AutoPublishTask implements Runnable {
         private final String mApplicationId;
         private final Context mApplicationContext;
 
-        public AutoPublishAsyncTask(String applicationId, Context context) {
+        public AutoPublishTask(String applicationId, Context context) {
             mApplicationId = applicationId;
             mApplicationContext = context.getApplicationContext();
         }
 
         @Override
-        protected Void doInBackground(Void... voids) {
+        public void run() {
             try {
                 Facebook.publishInstall(Facebook.this, mApplicationId, mApplicationContext);
             } catch (Exception e) {
-                Util.logd("Facebook-publish", e.getMessage());
-            }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void result) {
-            // always clear out the publisher to allow other invocations.
-            synchronized (Facebook.this) {
-                mAutoPublishAsyncTask = null;
+                Logger.d("Facebook-publish", "Install publish failed: {}", e);
+            } finally {
+                // always clear out the publisher to allow other invocations.
+                synchronized (Facebook.this) {
+                    mAutoPublishTask = null;
+                }
             }
         }
     }
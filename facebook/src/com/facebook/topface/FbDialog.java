@@ -25,7 +25,6 @@ import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewGroup.LayoutParams;
@@ -132,7 +131,7 @@ public class FbDialog extends Dialog {
 
         @Override
         public boolean shouldOverrideUrlLoading(WebView view, String url) {
-            Util.logd("Facebook-WebView", "Redirect URL: " + url);
+            Logger.d("Facebook-WebView", "Redirect URL: {}", url);
             if (url.startsWith(Facebook.REDIRECT_URI)) {
                 Bundle values = Util.parseUrl(url);
 
@@ -176,7 +175,7 @@ public class FbDialog extends Dialog {
 
         @Override
         public void onPageStarted(WebView view, String url, Bitmap favicon) {
-            Util.logd("Facebook-WebView", "Webview loading URL: " + url);
+            Logger.d("Facebook-WebView", "Webview loading URL: {}", url);
             super.onPageStarted(view, url, favicon);
             showDialog(mSpinner);
         }
@@ -202,8 +201,7 @@ public class FbDialog extends Dialog {
                 dialog.dismiss();
             }
         } catch (Exception e) {
-            Log.e("Facebook", e.toString());
-            e.printStackTrace();
+            Logger.e("Facebook", "{}", e);
         }
     }
 
@@ -213,8 +211,7 @@ public class FbDialog extends Dialog {
                 dialog.show();
             }
         } catch (Exception e) {
-            Log.e("Facebook", e.toString());
-            e.printStackTrace();
+            Logger.e("Facebook", "{}", e);
         }
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * UploadPart streaming the bytes [start, end) of a file.
+ */
+class FileChunkPart implements UploadPart {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File mFile;
+    private final long mStart;
+    private final long mEnd;
+    private final String mContentType;
+
+    FileChunkPart(File file, long start, long end) {
+        this(file, start, end, null);
+    }
+
+    /**
+     * @param contentType
+     *            the MIME type of the file, or null to send it as
+     *            application/octet-stream
+     */
+    FileChunkPart(File file, long start, long end, String contentType) {
+        mFile = file;
+        mStart = start;
+        mEnd = end;
+        mContentType = contentType;
+    }
+
+    @Override
+    public String getContentType() {
+        return mContentType != null ? mContentType : "application/octet-stream";
+    }
+
+    @Override
+    public long getLength() {
+        return mEnd - mStart;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            file.seek(mStart);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = mEnd - mStart;
+            while (remaining > 0) {
+                int n = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new IOException("Unexpected end of " + mFile);
+                }
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
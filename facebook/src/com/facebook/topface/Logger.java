@@ -0,0 +1,257 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.util.regex.Pattern;
+
+import android.util.Log;
+
+/**
+ * Logging facade for the SDK.
+ *
+ * Messages are parameterized with "{}" placeholders and are only formatted
+ * once the level check has passed, so a disabled log statement costs a
+ * field read and no string building. Only errors are logged by default.
+ * Access tokens and other secrets are redacted from the output before it
+ * reaches the sink.
+ *
+ * Example:
+ * <code>
+ *  Logger.d("Facebook-authorize", "Login Success! access_token={} expires={}",
+ *          getAccessToken(), getAccessExpires());
+ * </code>
+ *
+ * A Throwable passed as the last argument is logged with its stack trace,
+ * as android.util.Log.e(tag, message, throwable) does; a "{}" in the message
+ * is replaced with the Throwable itself.
+ *
+ * Note that primitive arguments are boxed at the call site; guard very hot
+ * call sites with isLoggable() if that matters.
+ */
+public final class Logger {
+
+    // Levels mirror android.util.Log.
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    public static final int NONE = Integer.MAX_VALUE;
+
+    private static final String PLACEHOLDER = "{}";
+    private static final String REDACTED = "<redacted>";
+
+    // Matches key=value and "key":"value" pairs for sensitive keys.
+    private static final Pattern SECRET_PATTERN = Pattern.compile(
+            "(\\b(?:access_token|client_secret|code|signed_request)(?:=|\"\\s*:\\s*\"))[^&\\s\"]+");
+
+    private static volatile int sLevel = ERROR;
+    private static volatile boolean sRedact = true;
+    private static volatile LogSink sSink = new AndroidLogSink();
+
+    private Logger() {
+    }
+
+    /**
+     * Set the minimum level that is logged (ERROR by default). Use NONE to
+     * turn logging off. Remember that sending sensitive data to the log is a
+     * security risk.
+     *
+     * @param level
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * Replace the destination of log messages. By default messages are
+     * written to android.util.Log.
+     *
+     * @param sink
+     */
+    public static void setSink(LogSink sink) {
+        sSink = (sink != null) ? sink : new AndroidLogSink();
+    }
+
+    /**
+     * Turn redaction of access tokens and secrets on (the default) or off.
+     *
+     * @param redact
+     */
+    public static void setRedactionEnabled(boolean redact) {
+        sRedact = redact;
+    }
+
+    /**
+     * @return whether a message at the given level would be logged
+     */
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    public static void d(String tag, String message) {
+        if (DEBUG >= sLevel) {
+            log(DEBUG, tag, message, null);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg) {
+        if (DEBUG >= sLevel) {
+            log(DEBUG, tag, format, new Object[] { arg });
+        }
+    }
+
+    public static void d(String tag, String format, Throwable throwable) {
+        if (DEBUG >= sLevel) {
+            logThrowable(DEBUG, tag, format, throwable);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (DEBUG >= sLevel) {
+            log(DEBUG, tag, format, new Object[] { arg1, arg2 });
+        }
+    }
+
+    public static void d(String tag, String format, Object... args) {
+        if (DEBUG >= sLevel) {
+            log(DEBUG, tag, format, args);
+        }
+    }
+
+    public static void w(String tag, String message) {
+        if (WARN >= sLevel) {
+            log(WARN, tag, message, null);
+        }
+    }
+
+    public static void w(String tag, String format, Object arg) {
+        if (WARN >= sLevel) {
+            log(WARN, tag, format, new Object[] { arg });
+        }
+    }
+
+    public static void w(String tag, String format, Throwable throwable) {
+        if (WARN >= sLevel) {
+            logThrowable(WARN, tag, format, throwable);
+        }
+    }
+
+    public static void w(String tag, String format, Object arg1, Object arg2) {
+        if (WARN >= sLevel) {
+            log(WARN, tag, format, new Object[] { arg1, arg2 });
+        }
+    }
+
+    public static void e(String tag, String message) {
+        if (ERROR >= sLevel) {
+            log(ERROR, tag, message, null);
+        }
+    }
+
+    public static void e(String tag, String format, Object arg) {
+        if (ERROR >= sLevel) {
+            log(ERROR, tag, format, new Object[] { arg });
+        }
+    }
+
+    public static void e(String tag, String format, Throwable throwable) {
+        if (ERROR >= sLevel) {
+            logThrowable(ERROR, tag, format, throwable);
+        }
+    }
+
+    /**
+     * Replace the values of access tokens and other secrets in the given
+     * string.
+     *
+     * @param message
+     * @return the redacted message
+     */
+    public static String redact(String message) {
+        if (message == null) {
+            return null;
+        }
+        return SECRET_PATTERN.matcher(message).replaceAll("$1" + REDACTED);
+    }
+
+    /**
+     * Log the message followed by the stack trace of the throwable.
+     */
+    private static void logThrowable(int level, String tag, String format,
+            Throwable throwable) {
+        String message = format(format, new Object[] { throwable });
+        log(level, tag, (message != null ? message : "null") + '\n'
+                + Log.getStackTraceString(throwable), null);
+    }
+
+    private static void log(int level, String tag, String format, Object[] args) {
+        String message = (args == null) ? format : format(format, args);
+        if (message == null) {
+            message = "null";
+        } else if (sRedact) {
+            message = redact(message);
+        }
+        sSink.log(level, tag, message);
+    }
+
+    /**
+     * Substitute each "{}" in the format with the next argument.
+     */
+    static String format(String format, Object[] args) {
+        if (format == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(format.length() + 16 * args.length);
+        int start = 0;
+        for (Object arg : args) {
+            int index = format.indexOf(PLACEHOLDER, start);
+            if (index < 0) {
+                break;
+            }
+            sb.append(format, start, index);
+            sb.append(arg);
+            start = index + PLACEHOLDER.length();
+        }
+        sb.append(format, start, format.length());
+        return sb.toString();
+    }
+
+    /**
+     * Destination for log messages.
+     */
+    public static interface LogSink {
+
+        /**
+         * Called with a fully formatted, redacted message.
+         *
+         * May be executed by any thread.
+         */
+        public void log(int level, String tag, String message);
+    }
+
+    private static class AndroidLogSink implements LogSink {
+        @Override
+        public void log(int level, String tag, String message) {
+            Log.println(level, tag, message);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.util.ArrayList;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+
+/**
+ * Watches package install, update and removal broadcasts so that caches
+ * derived from other installed applications (e.g. the Facebook app) can be
+ * invalidated when those applications change.
+ *
+ * A single receiver is registered on the application context the first
+ * time a listener is added.
+ */
+final class PackageMonitor {
+
+    private static final ArrayList<PackageListener> sListeners =
+        new ArrayList<PackageListener>();
+    private static boolean sRegistered = false;
+
+    private PackageMonitor() {
+    }
+
+    /**
+     * Add a listener to be notified when any package changes.
+     *
+     * @param context
+     *            Android context; its application context is used to
+     *            register the receiver
+     * @param listener
+     */
+    static void addListener(Context context, PackageListener listener) {
+        synchronized (sListeners) {
+            if (!sListeners.contains(listener)) {
+                sListeners.add(listener);
+            }
+            if (sRegistered) {
+                return;
+            }
+            sRegistered = true;
+        }
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.getApplicationContext().registerReceiver(new Receiver(), filter);
+    }
+
+    static void removeListener(PackageListener listener) {
+        synchronized (sListeners) {
+            sListeners.remove(listener);
+        }
+    }
+
+    private static void notifyListeners(String packageName) {
+        PackageListener[] listeners;
+        synchronized (sListeners) {
+            listeners = sListeners.toArray(new PackageListener[sListeners.size()]);
+        }
+        for (PackageListener listener : listeners) {
+            listener.onPackageChanged(packageName);
+        }
+    }
+
+    private static class Receiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data != null) {
+                notifyListeners(data.getSchemeSpecificPart());
+            }
+        }
+    }
+
+    /**
+     * Callback interface for package changes.
+     */
+    static interface PackageListener {
+
+        /**
+         * Called when the given package is installed, updated, changed or
+         * removed.
+         *
+         * Executed by the main thread.
+         */
+        public void onPackageChanged(String packageName);
+    }
+}
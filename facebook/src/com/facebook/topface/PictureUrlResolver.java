@@ -0,0 +1,262 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Bundle;
+import android.text.TextUtils;
+
+/**
+ * Resolves the profile picture URLs of many users at once.
+ *
+ * "http://graph.facebook.com/[uid]/picture" answers with a redirect to the
+ * picture on the CDN, so loading a picture through it costs an extra round
+ * trip. This class asks the Graph API for the CDN URLs of up to
+ * MAX_IDS_PER_REQUEST users per request ("?ids=1,2,3&fields=picture") and
+ * caches them for URL_TTL.
+ *
+ * Example:
+ * <code>
+ *  PictureUrlResolver resolver = new PictureUrlResolver(facebook);
+ *  resolver.resolveAsync(uids, listener);
+ *  ...
+ *  String url = resolver.getUrl(uid);
+ * </code>
+ */
+public class PictureUrlResolver {
+
+    // Ids per Graph API request: keeps the URL short enough for GET.
+    public static final int MAX_IDS_PER_REQUEST = 50;
+
+    // Resolved URLs are considered fresh for 6 hours.
+    public static final long URL_TTL = 6L * 60L * 60L * 1000L;
+
+    // Max number of cached URLs, least recently used are dropped first.
+    private static final int MAX_ENTRIES = 5000;
+
+    private static final String GRAPH_PICTURE_URL = "http://graph.facebook.com/%s/picture";
+
+    private final Facebook mFacebook;
+    private final LinkedHashMap<String, Entry> mCache =
+        new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    public PictureUrlResolver(Facebook facebook) {
+        mFacebook = facebook;
+    }
+
+    /**
+     * Return the cached picture URL of the given user without touching the
+     * network, or null if it is not cached or has expired.
+     *
+     * @param uid
+     * @return the CDN URL of the picture, or null
+     */
+    public synchronized String getCachedUrl(String uid) {
+        Entry entry = mCache.get(uid);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired()) {
+            mCache.remove(uid);
+            return null;
+        }
+        return entry.url;
+    }
+
+    /**
+     * Return the cached picture URL of the given user, or the redirecting
+     * Graph API URL if it has not been resolved.
+     *
+     * @param uid
+     * @return a URL of the picture
+     */
+    public String getUrl(String uid) {
+        String url = getCachedUrl(uid);
+        return url != null ? url : String.format(GRAPH_PICTURE_URL, uid);
+    }
+
+    /**
+     * Resolve the picture URLs of the given users, with one Graph API request
+     * per MAX_IDS_PER_REQUEST users that are not cached.
+     *
+     * Note that this method blocks waiting for a network response, so do not
+     * call it in a UI thread.
+     *
+     * @param uids
+     * @return map of uid to picture URL for the users that were resolved
+     * @throws JSONException
+     * @throws FacebookError
+     * @throws MalformedURLException
+     * @throws IOException
+     */
+    public Map<String, String> resolve(Collection<String> uids)
+            throws JSONException, FacebookError, MalformedURLException, IOException {
+        HashMap<String, String> urls = new HashMap<String, String>();
+        ArrayList<String> missing = new ArrayList<String>();
+        for (String uid : uids) {
+            String url = getCachedUrl(uid);
+            if (url != null) {
+                urls.put(uid, url);
+            } else if (!missing.contains(uid)) {
+                missing.add(uid);
+            }
+        }
+
+        for (int start = 0; start < missing.size(); start += MAX_IDS_PER_REQUEST) {
+            int end = Math.min(start + MAX_IDS_PER_REQUEST, missing.size());
+            fetch(missing.subList(start, end), urls);
+        }
+        return urls;
+    }
+
+    /**
+     * Resolve the picture URLs of the given users on the SDK executor.
+     *
+     * @param uids
+     * @param listener
+     *            notified in the background thread, may be null
+     */
+    public void resolveAsync(Collection<String> uids, final ResolveListener listener) {
+        final ArrayList<String> copy = new ArrayList<String>(uids);
+        SdkExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Map<String, String> urls = resolve(copy);
+                    if (listener != null) {
+                        listener.onResolved(urls);
+                    }
+                } catch (Exception e) {
+                    Logger.d("Facebook-pictures", "Failed to resolve picture URLs: {}", e);
+                    if (listener != null) {
+                        listener.onError(e);
+                    }
+                }
+            }
+        }, SdkExecutor.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Drop the cached URL of the given user, e.g. after a failed download.
+     *
+     * @param uid
+     */
+    public synchronized void invalidate(String uid) {
+        mCache.remove(uid);
+    }
+
+    private void fetch(Collection<String> uids, Map<String, String> urls)
+            throws JSONException, FacebookError, MalformedURLException, IOException {
+        Bundle params = new Bundle();
+        params.putString("ids", TextUtils.join(",", uids));
+        params.putString("fields", "picture");
+        JSONObject json = Util.parseJson(mFacebook.request("", params));
+
+        long now = System.currentTimeMillis();
+        for (String uid : uids) {
+            JSONObject user = json.optJSONObject(uid);
+            String url = user != null ? parsePicture(user.opt("picture")) : null;
+            if (url == null) {
+                continue;
+            }
+            synchronized (this) {
+                mCache.put(uid, new Entry(url, now));
+            }
+            urls.put(uid, url);
+        }
+    }
+
+    /**
+     * Return the URL in a picture field, which is either the URL itself or,
+     * with the "October 2012 Breaking Changes" migration,
+     * {"data": {"url": ...}}.
+     *
+     * @param picture
+     *            the value of the field, may be null
+     * @return the URL, or null if there is none
+     */
+    public static String parsePicture(Object picture) {
+        if (picture instanceof String) {
+            return (String) picture;
+        }
+        if (picture instanceof JSONObject) {
+            JSONObject data = ((JSONObject) picture).optJSONObject("data");
+            if (data != null) {
+                return data.optString("url", null);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Callback interface for resolveAsync().
+     */
+    public static interface ResolveListener {
+
+        /**
+         * Called when the URLs have been resolved.
+         *
+         * Executed by a background thread: do not update the UI in this
+         * method.
+         *
+         * @param urls
+         *            map of uid to picture URL for the users that were
+         *            resolved
+         */
+        public void onResolved(Map<String, String> urls);
+
+        /**
+         * Called when the Graph API request failed.
+         *
+         * Executed by a background thread: do not update the UI in this
+         * method.
+         */
+        public void onError(Throwable error);
+    }
+
+    private static class Entry {
+        final String url;
+        final long fetchedAt;
+
+        Entry(String url, long fetchedAt) {
+            this.url = url;
+            this.fetchedAt = fetchedAt;
+        }
+
+        boolean isExpired() {
+            long age = System.currentTimeMillis() - fetchedAt;
+            return age < 0 || age >= URL_TTL;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Bundle;
+
+/**
+ * A post waiting in an UploadQueue: a file to send as a multi-part request
+ * together with its string parameters.
+ */
+public final class QueuedUpload {
+
+    private final String mId;
+    private final File mFile;
+    private final String mFileParam;
+    private final String mContentType;
+    private final String mGraphPath;
+    private final Bundle mParams;
+    private final boolean mDeleteFile;
+    private final long mCreated;
+
+    int attempts = 0;
+    long nextAttemptAt = 0;
+    // Progress of the current attempt, not persisted.
+    volatile long bytesSent = 0;
+    volatile long totalBytes = 0;
+
+    QueuedUpload(String id, File file, String fileParam, String contentType, String graphPath,
+            Bundle params, boolean deleteFile, long created) {
+        mId = id;
+        mFile = file;
+        mFileParam = fileParam;
+        mContentType = contentType;
+        mGraphPath = graphPath;
+        mParams = params;
+        mDeleteFile = deleteFile;
+        mCreated = created;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public String getGraphPath() {
+        return mGraphPath;
+    }
+
+    /**
+     * @return the time the upload was queued (in milliseconds since the Unix
+     *         epoch)
+     */
+    public long getCreated() {
+        return mCreated;
+    }
+
+    /**
+     * @return the number of attempts that failed so far
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return the bytes of the request body written by the current attempt
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return the size of the request body of the current attempt, 0 before
+     *         it is sent or -1 if it is not known
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the name of the multi-part parameter holding the file
+     */
+    String getFileParam() {
+        return mFileParam;
+    }
+
+    /**
+     * @return the MIME type of the file, or null if unknown
+     */
+    String getContentType() {
+        return mContentType;
+    }
+
+    Bundle getParams() {
+        return mParams;
+    }
+
+    /**
+     * @return whether the file is deleted once the upload is done with
+     */
+    boolean isDeleteFile() {
+        return mDeleteFile;
+    }
+
+    String toJson() throws JSONException {
+        JSONObject params = new JSONObject();
+        for (String key : mParams.keySet()) {
+            Object value = mParams.get(key);
+            if (value instanceof String) {
+                params.put(key, value);
+            }
+        }
+        JSONObject json = new JSONObject();
+        json.put("id", mId);
+        json.put("file", mFile.getAbsolutePath());
+        json.put("file_param", mFileParam);
+        if (mContentType != null) {
+            json.put("content_type", mContentType);
+        }
+        json.put("graph_path", mGraphPath);
+        json.put("params", params);
+        json.put("delete_file", mDeleteFile);
+        json.put("created", mCreated);
+        json.put("attempts", attempts);
+        json.put("next_attempt_at", nextAttemptAt);
+        return json.toString();
+    }
+
+    static QueuedUpload fromJson(String string) throws JSONException {
+        JSONObject json = new JSONObject(string);
+        Bundle params = new Bundle();
+        JSONObject jsonParams = json.getJSONObject("params");
+        Iterator<?> keys = jsonParams.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            params.putString(key, jsonParams.getString(key));
+        }
+        QueuedUpload upload = new QueuedUpload(json.getString("id"),
+                new File(json.getString("file")), json.getString("file_param"),
+                json.optString("content_type", null), json.getString("graph_path"), params, json.optBoolean("delete_file"),
+                json.getLong("created"));
+        upload.attempts = json.optInt("attempts");
+        upload.nextAttemptAt = json.optLong("next_attempt_at");
+        return upload;
+    }
+
+    @Override
+    public String toString() {
+        return mId + " " + mGraphPath + " " + mFile + " attempts=" + attempts;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+/**
+ * Instrumentation interface for API requests. Install an implementation
+ * with RequestTracing.setListener(); RequestMetrics is a ready-made
+ * aggregator.
+ *
+ * Callbacks are executed by the thread making the request and should
+ * return quickly.
+ */
+public interface RequestEventListener {
+
+    /**
+     * Called before the connection is opened.
+     */
+    public void onRequestStart(RequestTrace trace);
+
+    /**
+     * Called once the response body has been read. Connect, upload, first
+     * byte and download timings, byte counts and the HTTP status are set.
+     */
+    public void onResponseReceived(RequestTrace trace);
+
+    /**
+     * Called when Util.parseJson has parsed a response.
+     *
+     * @param trace
+     *            the request whose response was parsed, or null if it was
+     *            not made by this thread
+     * @param parseMillis
+     *            time spent parsing
+     * @param length
+     *            length of the parsed response, in characters
+     */
+    public void onJsonParsed(RequestTrace trace, long parseMillis, int length);
+
+    /**
+     * Called when a request fails with a network error.
+     */
+    public void onRequestFailed(RequestTrace trace, Throwable error);
+
+    /**
+     * Called when a request has completed. For AsyncFacebookRunner
+     * requests this happens after the RequestListener returned, so the
+     * total time includes the callback (and any parsing done in it).
+     */
+    public void onRequestComplete(RequestTrace trace);
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory RequestEventListener that aggregates request timings into
+ * histograms, per phase and per graph path, which can be dumped as text.
+ *
+ * Thread safe: requests may complete on any thread.
+ */
+public class RequestMetrics implements RequestEventListener {
+
+    // Upper bounds of the histogram buckets, in milliseconds.
+    private static final long[] BUCKETS = {
+        5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000
+    };
+
+    private final TreeMap<String, Histogram> mPhases = new TreeMap<String, Histogram>();
+    private final TreeMap<String, Histogram> mPaths = new TreeMap<String, Histogram>();
+    private long mRequests = 0;
+    private long mFailures = 0;
+    private long mBytesSent = 0;
+    private long mBytesReceived = 0;
+    private final TreeMap<Integer, Long> mStatuses = new TreeMap<Integer, Long>();
+
+    @Override
+    public void onRequestStart(RequestTrace trace) {
+    }
+
+    @Override
+    public synchronized void onResponseReceived(RequestTrace trace) {
+        record(mPhases, "connect", trace.getConnectMillis());
+        record(mPhases, "upload", trace.getUploadMillis());
+        record(mPhases, "ttfb", trace.getFirstByteMillis());
+        record(mPhases, "download", trace.getDownloadMillis());
+        mBytesSent += trace.getBytesSent();
+        mBytesReceived += trace.getBytesReceived();
+        Long count = mStatuses.get(trace.getHttpStatus());
+        mStatuses.put(trace.getHttpStatus(), count == null ? 1 : count + 1);
+    }
+
+    @Override
+    public synchronized void onJsonParsed(RequestTrace trace, long parseMillis, int length) {
+        record(mPhases, "parse", parseMillis);
+    }
+
+    @Override
+    public synchronized void onRequestFailed(RequestTrace trace, Throwable error) {
+        mFailures++;
+    }
+
+    @Override
+    public synchronized void onRequestComplete(RequestTrace trace) {
+        mRequests++;
+        record(mPhases, "queue", trace.getQueueMillis());
+        record(mPhases, "total", trace.getTotalMillis());
+        record(mPaths, trace.getHttpMethod() + " " + trace.getGraphPath(),
+                trace.getTotalMillis());
+    }
+
+    /**
+     * Clear all collected data.
+     */
+    public synchronized void reset() {
+        mPhases.clear();
+        mPaths.clear();
+        mStatuses.clear();
+        mRequests = 0;
+        mFailures = 0;
+        mBytesSent = 0;
+        mBytesReceived = 0;
+    }
+
+    /**
+     * @return a human-readable summary of the collected data
+     */
+    public synchronized String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("requests=").append(mRequests)
+          .append(" failures=").append(mFailures)
+          .append(" sent=").append(mBytesSent)
+          .append(" received=").append(mBytesReceived)
+          .append(" statuses=").append(mStatuses)
+          .append('\n');
+        sb.append("-- phases (ms)\n");
+        dump(sb, mPhases);
+        sb.append("-- total by path (ms)\n");
+        dump(sb, mPaths);
+        return sb.toString();
+    }
+
+    /**
+     * @return a snapshot of the histogram for the given phase ("queue",
+     *         "connect", "upload", "ttfb", "download", "parse" or "total"),
+     *         which later requests don't change, or null if no data was
+     *         recorded for it
+     */
+    public synchronized Histogram getPhase(String phase) {
+        Histogram histogram = mPhases.get(phase);
+        return histogram != null ? histogram.copy() : null;
+    }
+
+    private static void record(TreeMap<String, Histogram> histograms, String key,
+            long millis) {
+        if (millis < 0) {
+            return;
+        }
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(key, histogram);
+        }
+        histogram.add(millis);
+    }
+
+    private static void dump(StringBuilder sb, TreeMap<String, Histogram> histograms) {
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+    }
+
+    /**
+     * Fixed-bucket latency histogram.
+     */
+    public static class Histogram {
+        private final long[] mCounts = new long[BUCKETS.length + 1];
+        private long mCount = 0;
+        private long mSum = 0;
+        private long mMax = 0;
+
+        Histogram copy() {
+            Histogram copy = new Histogram();
+            System.arraycopy(mCounts, 0, copy.mCounts, 0, mCounts.length);
+            copy.mCount = mCount;
+            copy.mSum = mSum;
+            copy.mMax = mMax;
+            return copy;
+        }
+
+        void add(long value) {
+            int i = 0;
+            while (i < BUCKETS.length && value > BUCKETS[i]) {
+                i++;
+            }
+            mCounts[i]++;
+            mCount++;
+            mSum += value;
+            mMax = Math.max(mMax, value);
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given
+         *         percentile (0-100), or the maximum for the overflow bucket
+         */
+        public long getPercentile(int percentile) {
+            long target = (mCount * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                seen += mCounts[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(BUCKETS[i], mMax);
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + mCount + " mean=" + getMean()
+                    + " p50<=" + getPercentile(50)
+                    + " p90<=" + getPercentile(90)
+                    + " p99<=" + getPercentile(99)
+                    + " max=" + mMax;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+/**
+ * Timings and sizes collected for a single API request while a
+ * RequestEventListener is installed.
+ *
+ * All durations are in milliseconds; a value of -1 means the phase did not
+ * happen (e.g. no upload for a GET) or was not measured.
+ *
+ * Note that HttpURLConnection does not expose DNS and TLS timings
+ * separately: they are included in the connect phase.
+ */
+public final class RequestTrace {
+
+    private final String mGraphPath;
+    private final String mHttpMethod;
+    private final long mStartTime;
+    private final long mStartNanos;
+
+    long queueMillis = -1;
+    long connectMillis = -1;
+    long uploadMillis = -1;
+    long firstByteMillis = -1;
+    long downloadMillis = -1;
+    long parseMillis = -1;
+    long totalMillis = -1;
+    long bytesSent = 0;
+    long bytesReceived = 0;
+    int httpStatus = -1;
+    Throwable error = null;
+
+    RequestTrace(String graphPath, String httpMethod) {
+        mGraphPath = graphPath;
+        mHttpMethod = httpMethod;
+        mStartTime = System.currentTimeMillis();
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the graph path, or "method/<name>" for REST API calls
+     */
+    public String getGraphPath() {
+        return mGraphPath;
+    }
+
+    public String getHttpMethod() {
+        return mHttpMethod;
+    }
+
+    /**
+     * @return the wall clock time the request started (in milliseconds
+     *         since the Unix epoch)
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return time spent waiting for an AsyncFacebookRunner thread
+     */
+    public long getQueueMillis() {
+        return queueMillis;
+    }
+
+    /**
+     * @return time to open the connection, including DNS and TLS
+     */
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    /**
+     * @return time to write the multi-part request body
+     */
+    public long getUploadMillis() {
+        return uploadMillis;
+    }
+
+    /**
+     * @return time from the end of the request until the response headers
+     *         arrived
+     */
+    public long getFirstByteMillis() {
+        return firstByteMillis;
+    }
+
+    /**
+     * @return time to read the response body
+     */
+    public long getDownloadMillis() {
+        return downloadMillis;
+    }
+
+    /**
+     * @return time spent in Util.parseJson for this response
+     */
+    public long getParseMillis() {
+        return parseMillis;
+    }
+
+    /**
+     * @return time from the start of the request until it completed
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return the HTTP status code, or -1 if no response was received
+     */
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+
+    /**
+     * @return the error the request failed with, or null
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return milliseconds elapsed since the given System.nanoTime() value
+     */
+    static long millisSince(long nanos) {
+        return (System.nanoTime() - nanos) / 1000000L;
+    }
+
+    long elapsedMillis() {
+        return millisSince(mStartNanos);
+    }
+
+    @Override
+    public String toString() {
+        return mHttpMethod + " " + mGraphPath
+                + " status=" + httpStatus
+                + " queue=" + queueMillis
+                + " connect=" + connectMillis
+                + " upload=" + uploadMillis
+                + " ttfb=" + firstByteMillis
+                + " download=" + downloadMillis
+                + " parse=" + parseMillis
+                + " total=" + totalMillis
+                + " sent=" + bytesSent
+                + " received=" + bytesReceived
+                + (error != null ? " error=" + error : "");
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import android.os.Bundle;
+
+/**
+ * Entry point for request instrumentation.
+ *
+ * When no listener is installed (the default) no RequestTrace objects are
+ * created and the transport takes no timestamps.
+ *
+ * Example:
+ * <code>
+ *  RequestMetrics metrics = new RequestMetrics();
+ *  RequestTracing.setListener(metrics);
+ *  ...
+ *  Log.d("metrics", metrics.dump());
+ * </code>
+ */
+public final class RequestTracing {
+
+    private static volatile RequestEventListener sListener = null;
+
+    // The last request made by each thread, so that Util.parseJson can
+    // attribute its parse time to the response it is parsing. Cleared
+    // when the request completes, so that it is never attributed to a
+    // later parse.
+    private static final ThreadLocal<RequestTrace> sLastTrace =
+        new ThreadLocal<RequestTrace>();
+
+    private RequestTracing() {
+    }
+
+    /**
+     * Install the listener to notify about requests, or null to turn
+     * tracing off.
+     *
+     * @param listener
+     */
+    public static void setListener(RequestEventListener listener) {
+        sListener = listener;
+    }
+
+    public static RequestEventListener getListener() {
+        return sListener;
+    }
+
+    /**
+     * Start tracing a request.
+     *
+     * @return the trace, or null if no listener is installed
+     */
+    static RequestTrace start(String graphPath, Bundle params, String httpMethod) {
+        RequestEventListener listener = sListener;
+        if (listener == null) {
+            return null;
+        }
+        if (graphPath == null) {
+            graphPath = "method/" + (params != null ? params.getString("method") : null);
+        }
+        RequestTrace trace = new RequestTrace(graphPath, httpMethod);
+        listener.onRequestStart(trace);
+        return trace;
+    }
+
+    static void responseReceived(RequestTrace trace) {
+        RequestEventListener listener = sListener;
+        sLastTrace.set(trace);
+        if (listener != null) {
+            listener.onResponseReceived(trace);
+        }
+    }
+
+    static void failed(RequestTrace trace, Throwable error) {
+        trace.error = error;
+        RequestEventListener listener = sListener;
+        if (listener != null) {
+            listener.onRequestFailed(trace, error);
+        }
+    }
+
+    static void complete(RequestTrace trace) {
+        trace.totalMillis = trace.elapsedMillis();
+        if (sLastTrace.get() == trace) {
+            sLastTrace.remove();
+        }
+        RequestEventListener listener = sListener;
+        if (listener != null) {
+            listener.onRequestComplete(trace);
+        }
+    }
+
+    static void jsonParsed(long parseMillis, int length) {
+        RequestEventListener listener = sListener;
+        if (listener == null) {
+            return;
+        }
+        RequestTrace trace = sLastTrace.get();
+        sLastTrace.remove();
+        if (trace != null) {
+            trace.parseMillis = parseMillis;
+        }
+        listener.onJsonParsed(trace, parseMillis, length);
+    }
+}
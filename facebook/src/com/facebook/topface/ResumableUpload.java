@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Bundle;
+
+/**
+ * State of a chunked upload made by ResumableUploader. This is what is
+ * persisted between chunks, so that the upload can resume where it stopped
+ * after the process was killed.
+ */
+public final class ResumableUpload {
+
+    private final String mId;
+    private final File mFile;
+    private final long mFileSize;
+    private final long mFileModified;
+    private final String mGraphPath;
+    private final Bundle mParams;
+
+    // Upload session, once started.
+    String sessionId = null;
+    String videoId = null;
+    // The range of the file the server asked for next.
+    long startOffset = 0;
+    long endOffset = 0;
+
+    ResumableUpload(String id, File file, String graphPath, Bundle params) {
+        this(id, file, file.length(), file.lastModified(), graphPath, params);
+    }
+
+    private ResumableUpload(String id, File file, long fileSize, long fileModified,
+            String graphPath, Bundle params) {
+        mId = id;
+        mFile = file;
+        mFileSize = fileSize;
+        mFileModified = fileModified;
+        mGraphPath = graphPath;
+        mParams = params;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    public String getGraphPath() {
+        return mGraphPath;
+    }
+
+    /**
+     * @return the id of the uploaded video, once the upload has started
+     */
+    public String getVideoId() {
+        return videoId;
+    }
+
+    /**
+     * @return the number of bytes the server has acknowledged
+     */
+    public long getBytesUploaded() {
+        return startOffset;
+    }
+
+    /**
+     * String parameters sent when the upload is finished (e.g. "title",
+     * "description").
+     */
+    Bundle getParams() {
+        return mParams;
+    }
+
+    boolean isStarted() {
+        return sessionId != null;
+    }
+
+    /**
+     * @return whether the file was changed since the upload started, in which
+     *         case it cannot be resumed
+     */
+    boolean isFileChanged() {
+        return mFile.length() != mFileSize || mFile.lastModified() != mFileModified;
+    }
+
+    String toJson() throws JSONException {
+        JSONObject params = new JSONObject();
+        for (String key : mParams.keySet()) {
+            Object value = mParams.get(key);
+            if (value instanceof String) {
+                params.put(key, value);
+            }
+        }
+        JSONObject json = new JSONObject();
+        json.put("id", mId);
+        json.put("file", mFile.getAbsolutePath());
+        json.put("file_size", mFileSize);
+        json.put("file_modified", mFileModified);
+        json.put("graph_path", mGraphPath);
+        json.put("params", params);
+        json.put("session_id", sessionId);
+        json.put("video_id", videoId);
+        json.put("start_offset", startOffset);
+        json.put("end_offset", endOffset);
+        return json.toString();
+    }
+
+    static ResumableUpload fromJson(String string) throws JSONException {
+        JSONObject json = new JSONObject(string);
+        Bundle params = new Bundle();
+        JSONObject jsonParams = json.getJSONObject("params");
+        Iterator<?> keys = jsonParams.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            params.putString(key, jsonParams.getString(key));
+        }
+        ResumableUpload upload = new ResumableUpload(json.getString("id"),
+                new File(json.getString("file")), json.getLong("file_size"),
+                json.getLong("file_modified"), json.getString("graph_path"), params);
+        upload.sessionId = json.optString("session_id", null);
+        upload.videoId = json.optString("video_id", null);
+        upload.startOffset = json.optLong("start_offset");
+        upload.endOffset = json.optLong("end_offset");
+        return upload;
+    }
+
+    @Override
+    public String toString() {
+        return mId + " " + mFile + " " + startOffset + "/" + mFileSize;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+
+/**
+ * Uploads videos in chunks with the Graph API resumable upload protocol
+ * (upload_phase=start, transfer, finish against graph-video.facebook.com).
+ *
+ * The state of each upload is persisted after every chunk, so an upload
+ * interrupted by a dropped connection or by process death resumes from the
+ * last acknowledged chunk with resumeAll() instead of starting over. A
+ * chunk that fails with a network error is retried, with exponential
+ * backoff, up to getMaxRetries() times.
+ *
+ * The server decides which range of the file it wants next, so the chunks
+ * of one file are sent in order; up to getMaxParallelUploads() files are
+ * uploaded at the same time.
+ *
+ * Example:
+ * <code>
+ *  ResumableUploader uploader = new ResumableUploader(facebook, context);
+ *  Bundle params = new Bundle();
+ *  params.putString("title", "My video");
+ *  uploader.upload(file, "me/videos", params, listener);
+ * </code>
+ */
+public class ResumableUploader {
+
+    public static final int DEFAULT_MAX_PARALLEL_UPLOADS = 2;
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final String UPLOADS_PREFERENCES = "com.facebook.sdk.uploads";
+
+    private final Facebook mFacebook;
+    private final Context mContext;
+    private final ThreadPoolExecutor mExecutor;
+    private volatile int mMaxRetries = DEFAULT_MAX_RETRIES;
+
+    // Ids of the uploads that are queued or running.
+    private final HashSet<String> mActive = new HashSet<String>();
+    // Ids of the uploads cancelled while queued or running.
+    private final HashSet<String> mCancelled = new HashSet<String>();
+
+    public ResumableUploader(Facebook facebook, Context context) {
+        mFacebook = facebook;
+        mContext = context.getApplicationContext();
+        mExecutor = new ThreadPoolExecutor(DEFAULT_MAX_PARALLEL_UPLOADS,
+                DEFAULT_MAX_PARALLEL_UPLOADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new SdkExecutor.SdkThreadFactory("FacebookUpload"));
+    }
+
+    /**
+     * Set how many files are uploaded at the same time.
+     *
+     * @param max
+     */
+    public void setMaxParallelUploads(int max) {
+        max = Math.max(1, max);
+        if (max > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(max);
+            mExecutor.setCorePoolSize(max);
+        } else {
+            mExecutor.setCorePoolSize(max);
+            mExecutor.setMaximumPoolSize(max);
+        }
+    }
+
+    public int getMaxParallelUploads() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Set how many times in a row a request may fail with a network error
+     * before the upload is given up (it can still be resumed later).
+     *
+     * @param retries
+     */
+    public void setMaxRetries(int retries) {
+        mMaxRetries = Math.max(0, retries);
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    /**
+     * Start uploading a file.
+     *
+     * @param file
+     *            the video to upload
+     * @param graphPath
+     *            the target of the upload, e.g. "me/videos"
+     * @param params
+     *            string parameters of the video, e.g. "title", "description"
+     * @param listener
+     *            notified in a background thread, may be null
+     * @return the id of the upload, to pass to cancel()
+     * @throws FileNotFoundException
+     *             if the file does not exist
+     */
+    public String upload(File file, String graphPath, Bundle params,
+            UploadListener listener) throws FileNotFoundException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        String id = graphPath + ":" + file.getAbsolutePath() + ":" + file.length() + ":"
+                + file.lastModified();
+        ResumableUpload upload = null;
+        String saved = getPreferences().getString(id, null);
+        if (saved != null) {
+            // the same file was being uploaded: pick up where it stopped.
+            try {
+                upload = ResumableUpload.fromJson(saved);
+            } catch (JSONException e) {
+                upload = null;
+            }
+        }
+        if (upload == null) {
+            upload = new ResumableUpload(id, file, graphPath,
+                    params != null ? new Bundle(params) : new Bundle());
+            try {
+                save(upload);
+            } catch (JSONException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        schedule(upload, listener);
+        return id;
+    }
+
+    /**
+     * @return the uploads that were started and have not completed, failed
+     *         for good or been cancelled, including those left by a previous
+     *         process
+     */
+    public List<ResumableUpload> getPendingUploads() {
+        ArrayList<ResumableUpload> uploads = new ArrayList<ResumableUpload>();
+        for (Map.Entry<String, ?> entry : getPreferences().getAll().entrySet()) {
+            try {
+                uploads.add(ResumableUpload.fromJson((String) entry.getValue()));
+            } catch (Exception e) {
+                Logger.w("Facebook-upload", "Dropping unreadable upload {}", entry.getKey());
+                getPreferences().edit().remove(entry.getKey()).commit();
+            }
+        }
+        return uploads;
+    }
+
+    /**
+     * Resume all pending uploads that are not already running, e.g. when the
+     * application starts.
+     *
+     * @param listener
+     *            notified in a background thread, may be null
+     */
+    public void resumeAll(UploadListener listener) {
+        for (ResumableUpload upload : getPendingUploads()) {
+            schedule(upload, listener);
+        }
+    }
+
+    /**
+     * Stop an upload and forget its state. A chunk being sent is completed
+     * first.
+     *
+     * @param id
+     */
+    public void cancel(String id) {
+        synchronized (this) {
+            if (mActive.contains(id)) {
+                mCancelled.add(id);
+            }
+        }
+        getPreferences().edit().remove(id).commit();
+    }
+
+    private void schedule(final ResumableUpload upload, final UploadListener listener) {
+        synchronized (this) {
+            if (!mActive.add(upload.getId())) {
+                return;
+            }
+            mCancelled.remove(upload.getId());
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String response = transfer(upload, listener);
+                    if (response != null) {
+                        getPreferences().edit().remove(upload.getId()).commit();
+                        if (listener != null) {
+                            listener.onComplete(upload, response);
+                        }
+                    }
+                } catch (FacebookError e) {
+                    // rejected by the server: retrying won't help.
+                    getPreferences().edit().remove(upload.getId()).commit();
+                    if (listener != null) {
+                        listener.onError(upload, e);
+                    }
+                } catch (Exception e) {
+                    // keep the state so that the upload can be resumed.
+                    if (listener != null) {
+                        listener.onError(upload, e);
+                    }
+                } finally {
+                    synchronized (ResumableUploader.this) {
+                        mActive.remove(upload.getId());
+                        mCancelled.remove(upload.getId());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Upload the rest of the file.
+     *
+     * @return the response to the finish request, or null if cancelled
+     */
+    private String transfer(ResumableUpload upload, UploadListener listener)
+            throws IOException, JSONException, InterruptedException {
+        if (upload.isFileChanged()) {
+            throw new FacebookError("File changed since the upload started: "
+                    + upload.getFile());
+        }
+
+        if (!upload.isStarted()) {
+            Bundle params = new Bundle();
+            params.putString("upload_phase", "start");
+            params.putString("file_size", String.valueOf(upload.getFileSize()));
+            JSONObject json = post(upload.getGraphPath(), params);
+            upload.sessionId = json.getString("upload_session_id");
+            upload.videoId = json.optString("video_id", null);
+            readOffsets(upload, json);
+            save(upload);
+        }
+
+        while (upload.startOffset < upload.endOffset) {
+            if (isCancelled(upload)) {
+                return null;
+            }
+            Bundle params = new Bundle();
+            params.putString("upload_phase", "transfer");
+            params.putString("upload_session_id", upload.sessionId);
+            params.putString("start_offset", String.valueOf(upload.startOffset));
+            params.putSerializable("video_file_chunk", new FileChunkPart(upload.getFile(),
+                    upload.startOffset, upload.endOffset));
+            JSONObject json = post(upload.getGraphPath(), params);
+            readOffsets(upload, json);
+            save(upload);
+            if (listener != null) {
+                listener.onProgress(upload, upload.startOffset, upload.getFileSize());
+            }
+        }
+
+        if (isCancelled(upload)) {
+            return null;
+        }
+        Bundle params = new Bundle(upload.getParams());
+        params.putString("upload_phase", "finish");
+        params.putString("upload_session_id", upload.sessionId);
+        return post(upload.getGraphPath(), params).toString();
+    }
+
+    /**
+     * Make one request of the protocol, retrying on network errors.
+     */
+    private JSONObject post(String graphPath, Bundle params)
+            throws IOException, JSONException, InterruptedException {
+        long delay = RETRY_DELAY_MILLIS;
+        for (int attempt = 0; ; attempt++) {
+            Bundle attemptParams = new Bundle(params);
+            attemptParams.putString("format", "json");
+            if (mFacebook.isSessionValid()) {
+                attemptParams.putString(Facebook.TOKEN, mFacebook.getAccessToken());
+            }
+            RequestTrace trace = RequestTracing.start(graphPath, attemptParams, "POST");
+            try {
+                return Util.parseJson(Util.openUrl(Facebook.GRAPH_VIDEO_BASE_URL + graphPath,
+                        "POST", attemptParams, trace));
+            } catch (IOException e) {
+                if (attempt >= mMaxRetries) {
+                    throw e;
+                }
+                Logger.d("Facebook-upload", "Retrying in {}ms after {}", delay, e);
+                Thread.sleep(delay);
+                delay = Math.min(delay * 2, MAX_RETRY_DELAY_MILLIS);
+            } finally {
+                if (trace != null) {
+                    RequestTracing.complete(trace);
+                }
+            }
+        }
+    }
+
+    private static void readOffsets(ResumableUpload upload, JSONObject json)
+            throws JSONException {
+        upload.startOffset = Long.parseLong(json.getString("start_offset"));
+        upload.endOffset = Long.parseLong(json.getString("end_offset"));
+    }
+
+    private synchronized boolean isCancelled(ResumableUpload upload) {
+        return mCancelled.contains(upload.getId());
+    }
+
+    private void save(ResumableUpload upload) throws JSONException {
+        if (isCancelled(upload)) {
+            return;
+        }
+        getPreferences().edit().putString(upload.getId(), upload.toJson()).commit();
+    }
+
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(UPLOADS_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Callback interface for resumable uploads.
+     *
+     * All methods are executed by a background thread: do not update the UI
+     * in them.
+     */
+    public static interface UploadListener {
+
+        /**
+         * Called each time a chunk has been acknowledged by the server.
+         */
+        public void onProgress(ResumableUpload upload, long bytesUploaded, long totalBytes);
+
+        /**
+         * Called when the upload has been finished.
+         *
+         * @param response
+         *            the server response to the finish request
+         */
+        public void onComplete(ResumableUpload upload, String response);
+
+        /**
+         * Called when the upload stopped with an error. Uploads stopped by a
+         * network error keep their state and can be resumed with
+         * resumeAll(); uploads rejected by the server (FacebookError) are
+         * forgotten.
+         */
+        public void onError(ResumableUpload upload, Throwable error);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * Dedicated executor for the SDK's own background work (install publishing,
+ * settings refresh, prefetching, ...).
+ *
+ * Unlike AsyncTask.execute(), work scheduled here does not share a queue
+ * with the application's AsyncTasks, so it can neither be starved by them
+ * nor hold them up. Threads run at background priority, and queued work is
+ * ordered by priority first and submission order second.
+ */
+public final class SdkExecutor {
+
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+
+    private static final int POOL_SIZE = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final AtomicLong sSequence = new AtomicLong();
+    private static ThreadPoolExecutor sExecutor = null;
+
+    private SdkExecutor() {
+    }
+
+    /**
+     * Schedule a task with normal priority.
+     *
+     * @param task
+     */
+    public static void execute(Runnable task) {
+        execute(task, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Schedule a task with the given priority. Tasks with a lower priority
+     * value run first; tasks with equal priority run in submission order.
+     *
+     * @param task
+     * @param priority
+     *            one of PRIORITY_HIGH, PRIORITY_NORMAL or PRIORITY_LOW
+     */
+    public static void execute(Runnable task, int priority) {
+        getExecutor().execute(
+                new PrioritizedTask(task, priority, sSequence.getAndIncrement()));
+    }
+
+    /**
+     * Stop accepting new work and let queued tasks finish. A new executor is
+     * created the next time work is scheduled.
+     */
+    public static synchronized void shutdown() {
+        if (sExecutor != null) {
+            sExecutor.shutdown();
+            sExecutor = null;
+        }
+    }
+
+    /**
+     * Stop accepting new work, drop queued tasks and interrupt running ones.
+     * A new executor is created the next time work is scheduled.
+     */
+    public static synchronized void shutdownNow() {
+        if (sExecutor != null) {
+            sExecutor.shutdownNow();
+            sExecutor = null;
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(),
+                    new SdkThreadFactory());
+            // let idle threads die so the SDK holds no threads when idle;
+            // only available from API level 9.
+            if (Build.VERSION.SDK_INT >= 9) {
+                sExecutor.allowCoreThreadTimeOut(true);
+            }
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Creates daemon threads running at background priority.
+     */
+    static class SdkThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        SdkThreadFactory() {
+            this("FacebookSdk");
+        }
+
+        SdkThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(mName + " #" + mCount.getAndIncrement()) {
+                @Override public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            };
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final Runnable mTask;
+        private final int mPriority;
+        private final long mSequence;
+
+        PrioritizedTask(Runnable task, int priority, long sequence) {
+            mTask = task;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.Signature;
+import android.os.SystemClock;
+
+/**
+ * Verifies that a package is signed with the Facebook app's certificate.
+ *
+ * Results are cached per package together with the version code they were
+ * computed for, and dropped when PackageMonitor reports that the package
+ * changed. In case the change broadcast was missed, a cached result older
+ * than VERSION_CHECK_INTERVAL is only used if the installed version code
+ * still matches, which a lookup without GET_SIGNATURES tells cheaply; other
+ * validations make no binder call at all. Signatures are compared by SHA-1
+ * digest instead of by their full hex string.
+ */
+final class SignatureValidator {
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    // How long a cached result is trusted without looking up the installed
+    // version code, in milliseconds.
+    static final long VERSION_CHECK_INTERVAL = 60 * 1000;
+
+    // Digest of the expected certificate, computed once.
+    private static byte[] sExpectedDigest = null;
+
+    private static final HashMap<String, Entry> sCache = new HashMap<String, Entry>();
+    private static boolean sMonitoring = false;
+
+    private SignatureValidator() {
+    }
+
+    /**
+     * Query the signature for the given package and verify that it matches
+     * the FB application's signature.
+     *
+     * @param context
+     * @param packageName
+     * @return true if the app's signature matches the expected signature.
+     */
+    static boolean validate(Context context, String packageName) {
+        Entry entry;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (sCache) {
+            entry = sCache.get(packageName);
+            if (entry != null && now - entry.checkedAt < VERSION_CHECK_INTERVAL) {
+                return entry.valid;
+            }
+        }
+        if (entry != null) {
+            PackageInfo installed;
+            try {
+                installed = context.getPackageManager().getPackageInfo(packageName, 0);
+            } catch (NameNotFoundException e) {
+                synchronized (sCache) {
+                    sCache.remove(packageName);
+                }
+                return false;
+            }
+            if (installed.versionCode == entry.versionCode) {
+                synchronized (sCache) {
+                    entry.checkedAt = now;
+                }
+                return entry.valid;
+            }
+            Logger.d("Facebook-signature", "Rechecking signature of {}: version {} is now {}",
+                    packageName, entry.versionCode, installed.versionCode);
+        }
+        startMonitoring(context);
+
+        PackageInfo packageInfo;
+        try {
+            packageInfo = context.getPackageManager().getPackageInfo(
+                    packageName, PackageManager.GET_SIGNATURES);
+        } catch (NameNotFoundException e) {
+            return false;
+        }
+
+        boolean valid = false;
+        if (packageInfo.signatures != null) {
+            for (Signature signature : packageInfo.signatures) {
+                if (matches(signature)) {
+                    valid = true;
+                    break;
+                }
+            }
+        }
+
+        synchronized (sCache) {
+            sCache.put(packageName, new Entry(packageInfo.versionCode, valid, now));
+        }
+        return valid;
+    }
+
+    /**
+     * Drop all cached results.
+     */
+    static void invalidate() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+
+    private static boolean matches(Signature signature) {
+        byte[] expected = getExpectedDigest();
+        if (expected == null) {
+            // no digest implementation: fall back to the string compare.
+            return signature.toCharsString().equals(Facebook.FB_APP_SIGNATURE);
+        }
+        byte[] actual = digest(signature.toByteArray());
+        return actual != null && MessageDigest.isEqual(expected, actual);
+    }
+
+    private static synchronized byte[] getExpectedDigest() {
+        if (sExpectedDigest == null) {
+            sExpectedDigest = digest(
+                    new Signature(Facebook.FB_APP_SIGNATURE).toByteArray());
+        }
+        return sExpectedDigest;
+    }
+
+    private static byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static void startMonitoring(Context context) {
+        synchronized (sCache) {
+            if (sMonitoring) {
+                return;
+            }
+            sMonitoring = true;
+        }
+        PackageMonitor.addListener(context, new PackageMonitor.PackageListener() {
+            @Override
+            public void onPackageChanged(String packageName) {
+                Entry entry;
+                synchronized (sCache) {
+                    entry = sCache.remove(packageName);
+                }
+                if (entry != null) {
+                    Logger.d("Facebook-signature", "Dropped cached signature check for {} version {}",
+                            packageName, entry.versionCode);
+                }
+            }
+        });
+    }
+
+    private static class Entry {
+        final int versionCode;
+        final boolean valid;
+        // When the version code was last found to match. Guarded by sCache.
+        long checkedAt;
+
+        Entry(int versionCode, boolean valid, long checkedAt) {
+            this.versionCode = versionCode;
+            this.valid = valid;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * File attachment that writes itself into the body of a multi-part request,
+ * so that large uploads (e.g. photos) need not be held in memory as a byte
+ * array.
+ *
+ * Put it in the request parameters with Bundle.putSerializable(). Requests
+ * with an UploadPart are streamed to the network as the body is written,
+ * with a fixed length if every part knows its length and with chunked
+ * transfer encoding otherwise.
+ *
+ * Example:
+ * <code>
+ *  Bundle params = new Bundle();
+ *  params.putSerializable("source", new MyPhotoPart(uri));
+ *  asyncRunner.request("me/photos", params, "POST", listener, null);
+ * </code>
+ *
+ * The Serializable bound is only there because Bundle requires it: the part
+ * is never serialized as long as the parameters stay in the process.
+ */
+public interface UploadPart extends Serializable {
+
+    /**
+     * @return the MIME type of the content, or null if unknown
+     */
+    public String getContentType();
+
+    /**
+     * @return the number of bytes writeTo() writes, or -1 if it is not known
+     *         in advance (e.g. an image encoded while it is written)
+     */
+    public long getLength();
+
+    /**
+     * Write the content. Called by the thread making the request, so it may
+     * do slow work such as decoding and encoding an image.
+     *
+     * @param out
+     *            the request body; do not close it
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException;
+}
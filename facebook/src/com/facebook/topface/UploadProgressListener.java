@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+/**
+ * Callback interface for the progress of a request body being sent, e.g.
+ * to show a progress bar or to adapt the quality of the next upload to the
+ * measured throughput. Pass one to AsyncFacebookRunner.request().
+ *
+ * Executed by the thread making the request, at most every 200ms while the
+ * body is written and once more when it has been written: return quickly
+ * and do not update the UI in it.
+ */
+public interface UploadProgressListener {
+
+    /**
+     * @param bytesWritten
+     *            bytes of the request body written so far
+     * @param totalBytes
+     *            length of the request body, or -1 if it is not known before
+     *            it is written (see UploadPart.getLength())
+     * @param bytesPerSecond
+     *            recent upload throughput
+     */
+    public void onUploadProgress(long bytesWritten, long totalBytes, long bytesPerSecond);
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Persistent queue of file uploads (e.g. photo posts) that outlives the
+ * Activity that queued them.
+ *
+ * Queued uploads are saved to SharedPreferences and survive process death:
+ * call start() when the application starts to pick them up again. The
+ * saved queue is read and written on a background thread, so that queueing
+ * an upload doesn't wait for the disk. Uploads
+ * run one at a time by default, only while the constraints set on the queue
+ * are met (a connection, and optionally an unmetered network and a charging
+ * device), and are retried with exponential backoff after network errors.
+ *
+ * Checking the network requires the ACCESS_NETWORK_STATE permission.
+ *
+ * Example:
+ * <code>
+ *  UploadQueue queue = new UploadQueue(facebook, context);
+ *  queue.setRequiresUnmeteredNetwork(true);
+ *  queue.addListener(listener);
+ *  queue.start();
+ *  queue.enqueue(file, "source", "me/photos", params, true);
+ * </code>
+ */
+public class UploadQueue {
+
+    public static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 1;
+
+    private static final long RETRY_DELAY_MILLIS = 30 * 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 60 * 1000;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final String QUEUE_PREFERENCES = "com.facebook.sdk.uploadQueue";
+
+    private final Facebook mFacebook;
+    private final Context mContext;
+    private final ThreadPoolExecutor mExecutor;
+    // Reads and writes the persisted queue, one change at a time and in
+    // the order they were made.
+    private final ThreadPoolExecutor mWriter;
+    private final Handler mHandler;
+    private final CopyOnWriteArrayList<Listener> mListeners =
+        new CopyOnWriteArrayList<Listener>();
+
+    // All queued uploads, by id, in queue order. Guarded by this.
+    private final LinkedHashMap<String, QueuedUpload> mUploads =
+        new LinkedHashMap<String, QueuedUpload>();
+    private final HashSet<String> mRunning = new HashSet<String>();
+    private boolean mStarted = false;
+    private boolean mLoaded = false;
+    private boolean mLoading = false;
+    private boolean mRequiresUnmetered = false;
+    private boolean mRequiresCharging = false;
+    private int mMaxConcurrent = DEFAULT_MAX_CONCURRENT_UPLOADS;
+    private BroadcastReceiver mConstraintsReceiver = null;
+
+    private final Runnable mPump = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    public UploadQueue(Facebook facebook, Context context) {
+        mFacebook = facebook;
+        mContext = context.getApplicationContext();
+        mHandler = new Handler(Looper.getMainLooper());
+        // with an unbounded queue the pool never grows past its core
+        // size, so the core size is the concurrency limit.
+        mExecutor = new ThreadPoolExecutor(DEFAULT_MAX_CONCURRENT_UPLOADS,
+                DEFAULT_MAX_CONCURRENT_UPLOADS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new SdkExecutor.SdkThreadFactory("FacebookUploadQueue"));
+        // let idle threads die; only available from API level 9.
+        mWriter = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new SdkExecutor.SdkThreadFactory("FacebookUploadQueueWriter"));
+        if (Build.VERSION.SDK_INT >= 9) {
+            mExecutor.allowCoreThreadTimeOut(true);
+            mWriter.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Only upload over networks that are not metered (e.g. Wi-Fi).
+     */
+    public synchronized void setRequiresUnmeteredNetwork(boolean required) {
+        mRequiresUnmetered = required;
+        schedulePump(0);
+    }
+
+    /**
+     * Only upload while the device is charging.
+     */
+    public synchronized void setRequiresCharging(boolean required) {
+        mRequiresCharging = required;
+        schedulePump(0);
+    }
+
+    /**
+     * Set how many uploads may run at the same time.
+     */
+    public synchronized void setMaxConcurrentUploads(int max) {
+        mMaxConcurrent = Math.max(1, max);
+        if (mMaxConcurrent > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(mMaxConcurrent);
+            mExecutor.setCorePoolSize(mMaxConcurrent);
+        } else {
+            mExecutor.setCorePoolSize(mMaxConcurrent);
+            mExecutor.setMaximumPoolSize(mMaxConcurrent);
+        }
+        schedulePump(0);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Load the persisted uploads and start uploading.
+     */
+    public synchronized void start() {
+        mStarted = true;
+        schedulePump(0);
+    }
+
+    /**
+     * Stop starting uploads. Running uploads complete; queued uploads stay
+     * persisted.
+     */
+    public synchronized void stop() {
+        mStarted = false;
+        mHandler.removeCallbacks(mPump);
+        unregisterConstraintsReceiver();
+    }
+
+    /**
+     * Queue a file upload, with the MIME type guessed from the file name.
+     *
+     * @see #enqueue(File, String, String, String, Bundle, boolean)
+     */
+    public String enqueue(File file, String fileParam, String graphPath, Bundle params,
+            boolean deleteFile) throws FileNotFoundException {
+        return enqueue(file, URLConnection.guessContentTypeFromName(file.getName()),
+                fileParam, graphPath, params, deleteFile);
+    }
+
+    /**
+     * Queue a file upload. Returns without waiting for the queue to be
+     * read from or saved to disk.
+     *
+     * @param file
+     *            the file to upload
+     * @param contentType
+     *            the MIME type of the file, e.g. "image/jpeg", or null to
+     *            send it as application/octet-stream
+     * @param fileParam
+     *            name of the multi-part parameter holding the file, e.g.
+     *            "source" for "me/photos"
+     * @param graphPath
+     *            target of the POST request, e.g. "me/photos"
+     * @param params
+     *            string parameters of the request, e.g. "message"
+     * @param deleteFile
+     *            whether to delete the file once the upload succeeded or
+     *            was given up, e.g. for a temporary scaled copy
+     * @return the id of the upload
+     * @throws FileNotFoundException
+     *             if the file does not exist
+     */
+    public String enqueue(File file, String contentType, String fileParam, String graphPath,
+            Bundle params, boolean deleteFile) throws FileNotFoundException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        long now = System.currentTimeMillis();
+        QueuedUpload upload = new QueuedUpload(file.getName() + ":" + now + ":"
+                + System.nanoTime(), file, fileParam, contentType, graphPath,
+                params != null ? new Bundle(params) : new Bundle(), deleteFile, now);
+        synchronized (this) {
+            // the persisted uploads are merged in when they have been read.
+            loadInBackground();
+            mUploads.put(upload.getId(), upload);
+            save(upload);
+            schedulePump(0);
+        }
+        return upload.getId();
+    }
+
+    /**
+     * Remove an upload from the queue. A running upload completes but is
+     * not retried. Reads the persisted queue the first time it is called.
+     *
+     * @param id
+     */
+    public synchronized void cancel(String id) {
+        load();
+        QueuedUpload upload = mUploads.remove(id);
+        if (upload != null) {
+            unsave(id);
+            if (!mRunning.contains(id)) {
+                discard(upload);
+            }
+        }
+    }
+
+    /**
+     * Reads the persisted queue the first time it is called.
+     *
+     * @return the queued uploads, including the running ones, in queue order
+     */
+    public synchronized List<QueuedUpload> getPendingUploads() {
+        load();
+        return new ArrayList<QueuedUpload>(mUploads.values());
+    }
+
+    private void schedulePump(long delay) {
+        if (!mStarted) {
+            return;
+        }
+        mHandler.removeCallbacks(mPump);
+        mHandler.postDelayed(mPump, delay);
+    }
+
+    /**
+     * Start the uploads that may run now. Runs on the main thread.
+     */
+    private synchronized void pump() {
+        if (!mStarted) {
+            return;
+        }
+        if (!mLoaded) {
+            loadInBackground();
+            return;
+        }
+        if (mUploads.isEmpty()) {
+            unregisterConstraintsReceiver();
+            return;
+        }
+        if (!areConstraintsMet()) {
+            // wait for the network or power state to change.
+            registerConstraintsReceiver();
+            return;
+        }
+        unregisterConstraintsReceiver();
+
+        long now = System.currentTimeMillis();
+        long nextAttemptAt = Long.MAX_VALUE;
+        for (QueuedUpload upload : mUploads.values()) {
+            if (mRunning.size() >= mMaxConcurrent) {
+                break;
+            }
+            if (mRunning.contains(upload.getId())) {
+                continue;
+            }
+            if (upload.nextAttemptAt > now) {
+                nextAttemptAt = Math.min(nextAttemptAt, upload.nextAttemptAt);
+                continue;
+            }
+            mRunning.add(upload.getId());
+            mExecutor.execute(new UploadTask(upload));
+        }
+        if (nextAttemptAt != Long.MAX_VALUE) {
+            schedulePump(nextAttemptAt - now);
+        }
+    }
+
+    private boolean areConstraintsMet() {
+        ConnectivityManager connectivity = (ConnectivityManager)
+                mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+        if (network == null || !network.isConnected()) {
+            return false;
+        }
+        if (mRequiresUnmetered && isMetered(connectivity, network)) {
+            return false;
+        }
+        if (mRequiresCharging && !isCharging()) {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isMetered(ConnectivityManager connectivity, NetworkInfo network) {
+        // isActiveNetworkMetered() knows about metered Wi-Fi hotspots, but
+        // only exists from API level 16.
+        if (Build.VERSION.SDK_INT >= 16) {
+            return connectivity.isActiveNetworkMetered();
+        }
+        int type = network.getType();
+        return type != ConnectivityManager.TYPE_WIFI
+                && type != ConnectivityManager.TYPE_ETHERNET;
+    }
+
+    private boolean isCharging() {
+        // ACTION_BATTERY_CHANGED is sticky: no receiver needed to read it.
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private void registerConstraintsReceiver() {
+        if (mConstraintsReceiver != null) {
+            return;
+        }
+        mConstraintsReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                pump();
+            }
+        };
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        mContext.registerReceiver(mConstraintsReceiver, filter);
+    }
+
+    private void unregisterConstraintsReceiver() {
+        if (mConstraintsReceiver != null) {
+            mContext.unregisterReceiver(mConstraintsReceiver);
+            mConstraintsReceiver = null;
+        }
+    }
+
+    /**
+     * Called by the upload thread when an attempt finished.
+     */
+    private synchronized void finished(QueuedUpload upload, boolean done) {
+        mRunning.remove(upload.getId());
+        if (mUploads.get(upload.getId()) != upload) {
+            // cancelled while running.
+            discard(upload);
+        } else if (done) {
+            mUploads.remove(upload.getId());
+            unsave(upload.getId());
+            discard(upload);
+        } else {
+            save(upload);
+        }
+        schedulePump(0);
+    }
+
+    private void discard(QueuedUpload upload) {
+        if (upload.isDeleteFile()) {
+            upload.getFile().delete();
+        }
+    }
+
+    /**
+     * Read the persisted queue on the writer thread, without holding the
+     * lock, then merge it and pump again.
+     */
+    private void loadInBackground() {
+        if (mLoaded || mLoading) {
+            return;
+        }
+        mLoading = true;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<QueuedUpload> uploads = readPersisted();
+                synchronized (UploadQueue.this) {
+                    merge(uploads);
+                    mLoading = false;
+                    schedulePump(0);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the persisted queue now, the first time it is needed.
+     */
+    private void load() {
+        if (!mLoaded) {
+            merge(readPersisted());
+        }
+    }
+
+    /**
+     * Put the persisted uploads ahead of those queued since the queue was
+     * created, unless they have already been merged.
+     */
+    private void merge(List<QueuedUpload> persisted) {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        LinkedHashMap<String, QueuedUpload> queued =
+            new LinkedHashMap<String, QueuedUpload>(mUploads);
+        mUploads.clear();
+        for (QueuedUpload upload : persisted) {
+            if (!queued.containsKey(upload.getId())) {
+                mUploads.put(upload.getId(), upload);
+            }
+        }
+        mUploads.putAll(queued);
+    }
+
+    /**
+     * @return the persisted uploads, oldest first
+     */
+    private List<QueuedUpload> readPersisted() {
+        ArrayList<QueuedUpload> uploads = new ArrayList<QueuedUpload>();
+        for (Map.Entry<String, ?> entry : getPreferences().getAll().entrySet()) {
+            try {
+                uploads.add(QueuedUpload.fromJson((String) entry.getValue()));
+            } catch (Exception e) {
+                Logger.w("Facebook-uploadQueue", "Dropping unreadable upload {}",
+                        entry.getKey());
+                unsave(entry.getKey());
+            }
+        }
+        Collections.sort(uploads, new Comparator<QueuedUpload>() {
+            @Override
+            public int compare(QueuedUpload lhs, QueuedUpload rhs) {
+                long l = lhs.getCreated();
+                long r = rhs.getCreated();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        return uploads;
+    }
+
+    /**
+     * Persist the upload in its current state, on the writer thread.
+     */
+    private void save(QueuedUpload upload) {
+        final String id = upload.getId();
+        final String json;
+        try {
+            json = upload.toJson();
+        } catch (JSONException e) {
+            Logger.e("Facebook-uploadQueue", "Could not save upload {}", e);
+            return;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                getPreferences().edit().putString(id, json).commit();
+            }
+        });
+    }
+
+    /**
+     * Remove the persisted upload, on the writer thread.
+     */
+    private void unsave(final String id) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                getPreferences().edit().remove(id).commit();
+            }
+        });
+    }
+
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(QUEUE_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private class UploadTask implements Runnable {
+        private final QueuedUpload mUpload;
+
+        UploadTask(QueuedUpload upload) {
+            mUpload = upload;
+        }
+
+        @Override
+        public void run() {
+            QueuedUpload upload = mUpload;
+            upload.bytesSent = 0;
+            upload.totalBytes = 0;
+            try {
+                if (!upload.getFile().isFile()) {
+                    throw new FacebookError("File not found: " + upload.getFile());
+                }
+                Bundle params = new Bundle(upload.getParams());
+                params.putSerializable(upload.getFileParam(),
+                        new FileChunkPart(upload.getFile(), 0, upload.getFile().length(),
+                                upload.getContentType()));
+                String response = post(upload, params);
+                // errors are returned as JSON: fail on them like on a network error.
+                Util.parseJson(response);
+                finished(upload, true);
+                for (Listener listener : mListeners) {
+                    listener.onComplete(upload, response);
+                }
+            } catch (FacebookError e) {
+                // rejected by the server: retrying won't help.
+                finished(upload, true);
+                for (Listener listener : mListeners) {
+                    listener.onError(upload, e, false);
+                }
+            } catch (JSONException e) {
+                finished(upload, true);
+                for (Listener listener : mListeners) {
+                    listener.onError(upload, e, false);
+                }
+            } catch (IOException e) {
+                upload.attempts++;
+                upload.nextAttemptAt = System.currentTimeMillis() + Math.min(
+                        RETRY_DELAY_MILLIS << Math.min(upload.attempts - 1, 20),
+                        MAX_RETRY_DELAY_MILLIS);
+                finished(upload, false);
+                for (Listener listener : mListeners) {
+                    listener.onError(upload, e, true);
+                }
+            }
+        }
+    }
+
+    private String post(final QueuedUpload upload, Bundle params) throws IOException {
+        RequestTrace trace = RequestTracing.start(upload.getGraphPath(), params, "POST");
+        try {
+            return mFacebook.request(upload.getGraphPath(), params, "POST", trace,
+                    new UploadProgressListener() {
+                        @Override
+                        public void onUploadProgress(long bytesWritten, long totalBytes,
+                                long bytesPerSecond) {
+                            upload.bytesSent = bytesWritten;
+                            upload.totalBytes = totalBytes;
+                            for (Listener listener : mListeners) {
+                                listener.onProgress(upload, bytesWritten, totalBytes);
+                            }
+                        }
+                    });
+        } finally {
+            if (trace != null) {
+                RequestTracing.complete(trace);
+            }
+        }
+    }
+
+    /**
+     * Callback interface for queued uploads.
+     *
+     * All methods are executed by a background thread: do not update the UI
+     * in them.
+     */
+    public static interface Listener {
+
+        /**
+         * Called as the request body of an upload is sent, at most every
+         * 200ms.
+         *
+         * @param totalBytes
+         *            length of the request body, including the parameters
+         */
+        public void onProgress(QueuedUpload upload, long bytesSent, long totalBytes);
+
+        /**
+         * Called when an upload succeeded and left the queue.
+         */
+        public void onComplete(QueuedUpload upload, String response);
+
+        /**
+         * Called when an upload attempt failed.
+         *
+         * @param willRetry
+         *            true if the upload stays queued and will be retried
+         *            (network errors), false if it left the queue
+         */
+        public void onError(QueuedUpload upload, Throwable error, boolean willRetry);
+    }
+}
@@ -19,6 +19,8 @@ package com.facebook.topface;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -28,6 +30,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -35,7 +38,6 @@ import org.json.JSONObject;
 import android.app.AlertDialog.Builder;
 import android.content.Context;
 import android.os.Bundle;
-import android.util.Log;
 import android.webkit.CookieManager;
 import android.webkit.CookieSyncManager;
 
@@ -48,10 +50,9 @@ import android.webkit.CookieSyncManager;
 public final class Util {
 
     /**
-     * Set this to true to enable log output.  Remember to turn this back off
-     * before releasing.  Sending sensitive data to log is a security risk.
+     * Minimum time between two upload progress callbacks.
      */
-    private static boolean ENABLE_LOG = false;
+    static final long PROGRESS_INTERVAL_MILLIS = 200;
 
     /**
      * Generate the multi-part post body providing the parameters and boundary
@@ -149,26 +150,67 @@ public final class Util {
      */
     public static String openUrl(String url, String method, Bundle params)
           throws MalformedURLException, IOException {
+        return openUrl(url, method, params, null);
+    }
+
+    /**
+     * Connect to an HTTP URL and return the response as a string, recording
+     * per-phase timings and byte counts into the given trace (if any).
+     */
+    static String openUrl(String url, String method, Bundle params,
+          RequestTrace trace) throws MalformedURLException, IOException {
+        return openUrl(url, method, params, trace, null);
+    }
+
+    /**
+     * Connect to an HTTP URL as above, reporting the progress of the request
+     * body to the given listener (if any).
+     */
+    static String openUrl(String url, String method, Bundle params,
+          RequestTrace trace, UploadProgressListener progressListener)
+          throws MalformedURLException, IOException {
+        try {
+            String response = openUrlTraced(url, method, params, trace, progressListener);
+            if (trace != null) {
+                RequestTracing.responseReceived(trace);
+            }
+            return response;
+        } catch (IOException e) {
+            if (trace != null) {
+                RequestTracing.failed(trace, e);
+            }
+            throw e;
+        }
+    }
+
+    private static String openUrlTraced(String url, String method, Bundle params,
+          RequestTrace trace, UploadProgressListener progressListener)
+          throws MalformedURLException, IOException {
         // random string as boundary for multi-part http post
         String strBoundary = "3i2ndDfv2rTHiSisAbouNdArYfORhtTPEefj3q2f";
         String endLine = "\r\n";
 
-        OutputStream os;
+        CountingOutputStream os;
 
         if (method.equals("GET")) {
             url = url + "?" + encodeUrl(params);
         }
-        Util.logd("Facebook-Util", method + " URL: " + url);
+        Logger.d("Facebook-Util", "{} URL: {}", method, url);
+        long phaseStart = (trace != null) ? System.nanoTime() : 0;
         HttpURLConnection conn =
             (HttpURLConnection) new URL(url).openConnection();
         conn.setRequestProperty("User-Agent", System.getProperties().
                 getProperty("http.agent") + " FacebookAndroidSDK");
         if (!method.equals("GET")) {
             Bundle dataparams = new Bundle();
+            boolean streaming = false;
             for (String key : params.keySet()) {
                 Object parameter = params.get(key);
                 if (parameter instanceof byte[]) {
                     dataparams.putByteArray(key, (byte[])parameter);
+                } else if (parameter instanceof UploadPart) {
+                    dataparams.putSerializable(key, (UploadPart) parameter);
+                    streaming = true;
                 }
             }
 
@@ -183,6 +225,33 @@ public final class Util {
                 params.putString("access_token", decoded_token);
             }
 
+            // the body in order, as byte arrays and UploadParts, so that its
+            // length is known before it is sent.
+            ArrayList<Object> body = new ArrayList<Object>();
+            body.add(("--" + strBoundary + endLine
+                    + encodePostBody(params, strBoundary)
+                    + endLine + "--" + strBoundary + endLine).getBytes());
+            for (String key: dataparams.keySet()){
+                Object data = dataparams.get(key);
+                String contentType = (data instanceof UploadPart)
+                        ? ((UploadPart) data).getContentType() : null;
+                body.add(("Content-Disposition: form-data; filename=\"" + key + "\"" + endLine
+                        + "Content-Type: " + (contentType != null ? contentType : "content/unknown")
+                        + endLine + endLine).getBytes());
+                body.add(data);
+                body.add((endLine + "--" + strBoundary + endLine).getBytes());
+            }
+            long bodyLength = 0;
+            for (Object part : body) {
+                long length = (part instanceof UploadPart)
+                        ? ((UploadPart) part).getLength() : ((byte[]) part).length;
+                if (length < 0) {
+                    bodyLength = -1;
+                    break;
+                }
+                bodyLength += length;
+            }
+
             conn.setRequestMethod("POST");
             conn.setRequestProperty(
                     "Content-Type",
@@ -190,32 +259,64 @@ public final class Util {
             conn.setDoOutput(true);
             conn.setDoInput(true);
             conn.setRequestProperty("Connection", "Keep-Alive");
+            if (streaming || progressListener != null) {
+                // don't let the connection buffer the whole body: stream it,
+                // so that progress counts bytes handed to the network.
+                if (bodyLength >= 0 && bodyLength <= Integer.MAX_VALUE) {
+                    conn.setFixedLengthStreamingMode((int) bodyLength);
+                } else {
+                    conn.setChunkedStreamingMode(0);
+                }
+            }
             conn.connect();
-            os = new BufferedOutputStream(conn.getOutputStream());
-
-            os.write(("--" + strBoundary +endLine).getBytes());
-            os.write((encodePostBody(params, strBoundary)).getBytes());
-            os.write((endLine + "--" + strBoundary + endLine).getBytes());
-
-            if (!dataparams.isEmpty()) {
-
-                for (String key: dataparams.keySet()){
-                    os.write(("Content-Disposition: form-data; filename=\"" + key + "\"" + endLine).getBytes());
-                    os.write(("Content-Type: content/unknown" + endLine + endLine).getBytes());
-                    os.write(dataparams.getByteArray(key));
-                    os.write((endLine + "--" + strBoundary + endLine).getBytes());
-
+            if (trace != null) {
+                trace.connectMillis = RequestTrace.millisSince(phaseStart);
+                phaseStart = System.nanoTime();
+            }
+            os = new CountingOutputStream(
+                    new BufferedOutputStream(conn.getOutputStream()),
+                    bodyLength, progressListener);
+
+            for (Object part : body) {
+                if (part instanceof UploadPart) {
+                    ((UploadPart) part).writeTo(os);
+                } else {
+                    os.write((byte[]) part);
                 }
             }
             os.flush();
+            os.reportProgress(true);
+            if (trace != null) {
+                trace.uploadMillis = RequestTrace.millisSince(phaseStart);
+                trace.bytesSent = os.getCount();
+            }
+        } else if (trace != null) {
+            // connect explicitly so the connect phase can be told apart
+            // from the wait for the response.
+            conn.connect();
+            trace.connectMillis = RequestTrace.millisSince(phaseStart);
+        }
+
+        if (trace != null) {
+            phaseStart = System.nanoTime();
+            trace.httpStatus = conn.getResponseCode();
+            trace.firstByteMillis = RequestTrace.millisSince(phaseStart);
+            phaseStart = System.nanoTime();
         }
 
         String response = "";
+        CountingInputStream in = null;
         try {
-            response = read(conn.getInputStream());
+            in = new CountingInputStream(conn.getInputStream());
+            response = read(in);
         } catch (FileNotFoundException e) {
             // Error Stream contains JSON that we can parse to a FB error
-            response = read(conn.getErrorStream());
+            in = new CountingInputStream(conn.getErrorStream());
+            response = read(in);
+        }
+        if (trace != null) {
+            trace.downloadMillis = RequestTrace.millisSince(phaseStart);
+            trace.bytesReceived = in.getCount();
         }
         return response;
     }
@@ -230,6 +331,116 @@ public final class Util {
         return sb.toString();
     }
 
+    /**
+     * Output stream that counts the bytes written through it, and reports
+     * them to an optional progress listener at most every
+     * PROGRESS_INTERVAL_MILLIS.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        // Large writes are split so that progress moves during them.
+        private static final int PROGRESS_CHUNK = 8192;
+
+        private final long mTotal;
+        private final UploadProgressListener mListener;
+        private long mCount = 0;
+        private long mLastReportTime = System.nanoTime();
+        private long mLastReportCount = 0;
+        private long mBytesPerSecond = -1;
+
+        CountingOutputStream(OutputStream out, long total,
+                UploadProgressListener listener) {
+            super(out);
+            mTotal = total;
+            mListener = listener;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+            if (mListener != null) {
+                reportProgress(false);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mListener == null) {
+                out.write(b, off, len);
+                mCount += len;
+                return;
+            }
+            while (len > 0) {
+                int n = Math.min(len, PROGRESS_CHUNK);
+                out.write(b, off, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                reportProgress(false);
+            }
+        }
+
+        /**
+         * Call the listener if the interval has passed, or always if forced
+         * (e.g. once the body has been written).
+         */
+        void reportProgress(boolean force) {
+            if (mListener == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            long elapsedMillis = (now - mLastReportTime) / 1000000;
+            if (!force && elapsedMillis < PROGRESS_INTERVAL_MILLIS) {
+                return;
+            }
+            if (elapsedMillis > 0) {
+                // smooth the throughput over the last few intervals.
+                long rate = (mCount - mLastReportCount) * 1000 / elapsedMillis;
+                mBytesPerSecond = (mBytesPerSecond < 0) ? rate : (mBytesPerSecond + rate) / 2;
+            }
+            mLastReportTime = now;
+            mLastReportCount = mCount;
+            mListener.onUploadProgress(mCount, mTotal, Math.max(0, mBytesPerSecond));
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
+    /**
+     * Input stream that counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                mCount += n;
+            }
+            return n;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
     public static void clearCookies(Context context) {
         // Edge case: an illegal state exception is thrown if an instance of
         // CookieSyncManager has not be created.  CookieSyncManager is normally
@@ -270,7 +481,11 @@ public final class Util {
         if (response.equals("true")) {
             response = "{value : true}";
         }
+        long parseStart = (RequestTracing.getListener() != null) ? System.nanoTime() : 0;
         JSONObject json = new JSONObject(response);
+        if (parseStart != 0) {
+            RequestTracing.jsonParsed(RequestTrace.millisSince(parseStart), response.length());
+        }
 
         // errors set by the server are not consistent
         // they depend on the method and endpoint
@@ -318,12 +533,13 @@ public final class Util {
      * not recommended to send sensitive information to log output in
      * shipping apps.
      *
+     * @deprecated use Logger, which defers formatting until the level check
+     *             has passed and redacts access tokens.
      * @param tag
      * @param msg
      */
+    @Deprecated
     public static void logd(String tag, String msg) {
-        if (ENABLE_LOG) {
-            Log.d(tag, msg);
-        }
+        Logger.d(tag, msg);
     }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+public class LoggerTest extends TestCase {
+
+    private final ArrayList<String> mMessages = new ArrayList<String>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Logger.setSink(new Logger.LogSink() {
+            @Override
+            public void log(int level, String tag, String message) {
+                mMessages.add(message);
+            }
+        });
+        Logger.setLevel(Logger.DEBUG);
+        Logger.setRedactionEnabled(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Logger.setSink(null);
+        Logger.setLevel(Logger.ERROR);
+        Logger.setRedactionEnabled(true);
+        super.tearDown();
+    }
+
+    public void testRedactsQueryParameters() {
+        assertEquals("https://graph.facebook.com/me?access_token=<redacted>&fields=id",
+                Logger.redact("https://graph.facebook.com/me?access_token=AAAB1234&fields=id"));
+        assertEquals("client_secret=<redacted>&code=<redacted>",
+                Logger.redact("client_secret=s3cr3t&code=xyz"));
+    }
+
+    public void testRedactsJsonValues() {
+        assertEquals("{\"access_token\":\"<redacted>\",\"expires\":\"3600\"}",
+                Logger.redact("{\"access_token\":\"AAAB1234\",\"expires\":\"3600\"}"));
+        assertEquals("{\"signed_request\": \"<redacted>\"}",
+                Logger.redact("{\"signed_request\": \"abc.def\"}"));
+    }
+
+    public void testKeepsOtherValues() {
+        String message = "barcode=123 zipcode=456 fields=access_token";
+        assertEquals(message, Logger.redact(message));
+        assertNull(Logger.redact(null));
+    }
+
+    public void testRedactsLoggedMessages() {
+        Logger.d("test", "token {}", "access_token=AAAB1234");
+        assertEquals("token access_token=<redacted>", mMessages.get(0));
+    }
+
+    public void testRedactionCanBeTurnedOff() {
+        Logger.setRedactionEnabled(false);
+        Logger.d("test", "access_token={}", "AAAB1234");
+        assertEquals("access_token=AAAB1234", mMessages.get(0));
+    }
+
+    public void testFormatsPlaceholders() {
+        Logger.d("test", "{} and {}", "a", 2);
+        Logger.d("test", "{}, {} and {}", "a", "b", "c");
+        Logger.d("test", "{} and {}", "only one");
+        assertEquals("a and 2", mMessages.get(0));
+        assertEquals("a, b and c", mMessages.get(1));
+        assertEquals("only one and {}", mMessages.get(2));
+    }
+
+    public void testSkipsLevelsBelowTheThreshold() {
+        Logger.setLevel(Logger.WARN);
+        final int[] formatted = new int[1];
+        Object arg = new Object() {
+            @Override
+            public String toString() {
+                formatted[0]++;
+                return "arg";
+            }
+        };
+        Logger.d("test", "{}", arg);
+        assertTrue(mMessages.isEmpty());
+        assertEquals(0, formatted[0]);
+        assertFalse(Logger.isLoggable(Logger.DEBUG));
+        Logger.w("test", "{}", arg);
+        assertEquals(1, mMessages.size());
+        assertEquals(1, formatted[0]);
+    }
+
+    public void testLogsStackTraces() {
+        Exception error = new IllegalStateException("access_token=AAAB1234");
+        Logger.e("test", "failed: {}", error);
+        String message = mMessages.get(0);
+        assertTrue(message, message.startsWith(
+                "failed: java.lang.IllegalStateException: access_token=<redacted>\n"));
+        assertTrue(message, message.contains("LoggerTest.testLogsStackTraces"));
+        assertFalse(message, message.contains("AAAB1234"));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.test.AndroidTestCase;
+import android.test.mock.MockPackageManager;
+
+public class SignatureValidatorTest extends AndroidTestCase {
+
+    private static final String PACKAGE = "com.facebook.topface.tests.signed";
+
+    private CountingPackageManager mPackageManager;
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SignatureValidator.invalidate();
+        mPackageManager = new CountingPackageManager();
+        mContext = new ContextWrapper(getContext()) {
+            @Override
+            public PackageManager getPackageManager() {
+                return mPackageManager;
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SignatureValidator.invalidate();
+        super.tearDown();
+    }
+
+    public void testFacebookSignatureIsValid() {
+        mPackageManager.signature = new Signature(Facebook.FB_APP_SIGNATURE);
+        assertTrue(SignatureValidator.validate(mContext, PACKAGE));
+    }
+
+    public void testOtherSignatureIsNotValid() {
+        mPackageManager.signature = new Signature("3082");
+        assertFalse(SignatureValidator.validate(mContext, PACKAGE));
+    }
+
+    public void testMissingPackageIsNotValid() {
+        mPackageManager.installed = false;
+        assertFalse(SignatureValidator.validate(mContext, PACKAGE));
+    }
+
+    public void testCachedResultMakesNoBinderCall() {
+        mPackageManager.signature = new Signature(Facebook.FB_APP_SIGNATURE);
+        assertTrue(SignatureValidator.validate(mContext, PACKAGE));
+        assertTrue(SignatureValidator.validate(mContext, PACKAGE));
+        assertTrue(SignatureValidator.validate(mContext, PACKAGE));
+        assertEquals(1, mPackageManager.signatureLookups);
+        assertEquals(0, mPackageManager.versionLookups);
+    }
+
+    public void testInvalidateChecksAgain() {
+        mPackageManager.signature = new Signature(Facebook.FB_APP_SIGNATURE);
+        assertTrue(SignatureValidator.validate(mContext, PACKAGE));
+        SignatureValidator.invalidate();
+        mPackageManager.signature = new Signature("3082");
+        assertFalse(SignatureValidator.validate(mContext, PACKAGE));
+        assertEquals(2, mPackageManager.signatureLookups);
+    }
+
+    /*
+     * Knows a single package, and counts the lookups with and without
+     * GET_SIGNATURES.
+     */
+    private static class CountingPackageManager extends MockPackageManager {
+        boolean installed = true;
+        Signature signature;
+        int signatureLookups = 0;
+        int versionLookups = 0;
+
+        @Override
+        public PackageInfo getPackageInfo(String packageName, int flags)
+                throws NameNotFoundException {
+            if ((flags & PackageManager.GET_SIGNATURES) != 0) {
+                signatureLookups++;
+            } else {
+                versionLookups++;
+            }
+            if (!installed || !PACKAGE.equals(packageName)) {
+                throw new NameNotFoundException();
+            }
+            PackageInfo info = new PackageInfo();
+            info.versionCode = 1;
+            info.signatures = (signature != null) ? new Signature[] { signature } : null;
+            return info;
+        }
+    }
+}
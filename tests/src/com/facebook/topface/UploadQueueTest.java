@@ -0,0 +1,177 @@
+/*
+ * Copyright 2010 Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.topface;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+public class UploadQueueTest extends AndroidTestCase {
+
+    // Where UploadQueue persists the uploads.
+    private static final String QUEUE_PREFERENCES = "com.facebook.sdk.uploadQueue";
+
+    // How long to wait for the queue's writer thread.
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private Facebook mFacebook;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFacebook = new Facebook("110862205611506");
+        getPreferences().edit().clear().commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getPreferences().edit().clear().commit();
+        super.tearDown();
+    }
+
+    public void testUploadsSurviveANewQueue() throws Exception {
+        File file = createFile("photo.jpg");
+        Bundle params = new Bundle();
+        params.putString("caption", "a caption");
+        String id = new UploadQueue(mFacebook, getContext()).enqueue(file, "source",
+                "me/photos", params, true);
+        waitForSaved(id, true);
+
+        List<QueuedUpload> uploads = new UploadQueue(mFacebook, getContext())
+                .getPendingUploads();
+        assertEquals(1, uploads.size());
+        QueuedUpload upload = uploads.get(0);
+        assertEquals(id, upload.getId());
+        assertEquals(file, upload.getFile());
+        assertEquals("source", upload.getFileParam());
+        assertEquals("image/jpeg", upload.getContentType());
+        assertEquals("me/photos", upload.getGraphPath());
+        assertEquals("a caption", upload.getParams().getString("caption"));
+        assertTrue(upload.isDeleteFile());
+    }
+
+    public void testUploadsKeepTheirOrder() throws Exception {
+        UploadQueue queue = new UploadQueue(mFacebook, getContext());
+        String first = queue.enqueue(createFile("first.png"), "image/png", "source",
+                "me/photos", null, true);
+        Thread.sleep(5);
+        String second = queue.enqueue(createFile("second.png"), "image/png", "source",
+                "me/photos", null, true);
+        waitForSaved(first, true);
+        waitForSaved(second, true);
+
+        List<QueuedUpload> uploads = new UploadQueue(mFacebook, getContext())
+                .getPendingUploads();
+        assertEquals(2, uploads.size());
+        assertEquals(first, uploads.get(0).getId());
+        assertEquals(second, uploads.get(1).getId());
+    }
+
+    public void testCancelForgetsTheUpload() throws Exception {
+        File file = createFile("cancelled.jpg");
+        UploadQueue queue = new UploadQueue(mFacebook, getContext());
+        String id = queue.enqueue(file, "source", "me/photos", null, true);
+        waitForSaved(id, true);
+
+        queue.cancel(id);
+        assertTrue(queue.getPendingUploads().isEmpty());
+        assertFalse(file.exists());
+        waitForSaved(id, false);
+        assertTrue(new UploadQueue(mFacebook, getContext()).getPendingUploads().isEmpty());
+    }
+
+    public void testUnreadableUploadsAreDropped() throws Exception {
+        getPreferences().edit().putString("broken", "{not json").commit();
+        File file = createFile("kept.jpg");
+        String id = new UploadQueue(mFacebook, getContext()).enqueue(file, "source",
+                "me/photos", null, false);
+        waitForSaved(id, true);
+
+        List<QueuedUpload> uploads = new UploadQueue(mFacebook, getContext())
+                .getPendingUploads();
+        assertEquals(1, uploads.size());
+        assertEquals(id, uploads.get(0).getId());
+        waitForSaved("broken", false);
+    }
+
+    public void testMissingFileIsRejected() {
+        try {
+            new UploadQueue(mFacebook, getContext()).enqueue(
+                    new File(getContext().getCacheDir(), "missing.jpg"), "source",
+                    "me/photos", null, true);
+            fail("expected FileNotFoundException");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    public void testJsonRoundTrip() throws Exception {
+        Bundle params = new Bundle();
+        params.putString("message", "hello");
+        QueuedUpload upload = new QueuedUpload("id", new File("/tmp/a.mp4"), "source", null,
+                "me/videos", params, false, 1234);
+        upload.attempts = 3;
+        upload.nextAttemptAt = 5678;
+
+        QueuedUpload copy = QueuedUpload.fromJson(upload.toJson());
+        assertEquals("id", copy.getId());
+        assertEquals(new File("/tmp/a.mp4"), copy.getFile());
+        assertNull(copy.getContentType());
+        assertEquals("me/videos", copy.getGraphPath());
+        assertEquals("hello", copy.getParams().getString("message"));
+        assertFalse(copy.isDeleteFile());
+        assertEquals(1234, copy.getCreated());
+        assertEquals(3, copy.getAttempts());
+        assertEquals(5678, copy.nextAttemptAt);
+    }
+
+    private File createFile(String name) throws IOException {
+        File file = new File(getContext().getCacheDir(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 1, 2, 3 });
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /*
+     * The queue persists uploads on its writer thread: wait until the
+     * upload is saved, or removed.
+     */
+    private void waitForSaved(String id, boolean saved) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (getPreferences().contains(id) != saved) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(id + (saved ? " was not saved" : " was not removed"));
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private SharedPreferences getPreferences() {
+        return getContext().getSharedPreferences(QUEUE_PREFERENCES, Context.MODE_PRIVATE);
+    }
+}